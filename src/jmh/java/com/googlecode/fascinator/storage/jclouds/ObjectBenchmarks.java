@@ -0,0 +1,116 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.StorageException;
+
+/**
+ * Object level operations: creating, fetching and listing objects, and
+ * building the manifest of objects with many payloads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjectBenchmarks {
+
+	/**
+	 * An object with a single small payload.
+	 */
+	@State(Scope.Benchmark)
+	public static class ExistingObject {
+		String oid;
+
+		@Setup(Level.Trial)
+		public void create(StorageState state) throws StorageException {
+			oid = state.createObject(1, StorageState.content(1024));
+		}
+	}
+
+	/**
+	 * A container holding many empty objects.
+	 */
+	@State(Scope.Benchmark)
+	public static class LargeContainer {
+		@Param({ "100", "10000" })
+		public int objects;
+
+		@Setup(Level.Trial)
+		public void fill(StorageState state) throws StorageException {
+			for (int i = 0; i < objects; i++) {
+				state.createObject(0, null);
+			}
+		}
+	}
+
+	/**
+	 * An object with many small payloads, so reading its manifest dominates.
+	 */
+	@State(Scope.Benchmark)
+	public static class LargeManifest {
+		@Param({ "10", "1000" })
+		public int payloads;
+
+		String oid;
+
+		@Setup(Level.Trial)
+		public void create(StorageState state) throws StorageException {
+			oid = state.createObject(payloads, StorageState.content(64));
+		}
+	}
+
+	@Benchmark
+	public DigitalObject createObject(StorageState state) throws StorageException {
+		return state.storage.createObject(state.newOid());
+	}
+
+	@Benchmark
+	public DigitalObject getObject(StorageState state, ExistingObject object) throws StorageException {
+		return state.storage.getObject(object.oid);
+	}
+
+	@Benchmark
+	public Set<String> getObjectIdList(StorageState state, LargeContainer container) {
+		return state.storage.getObjectIdList();
+	}
+
+	@Benchmark
+	public Set<String> buildManifest(StorageState state, LargeManifest object) throws StorageException {
+		// Asking for the payloads forces the manifest to be read and parsed
+		return state.storage.getObject(object.oid).getPayloadIdList();
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.Payload;
+import com.googlecode.fascinator.api.storage.StorageException;
+
+/**
+ * Payload level operations with small and large content. Streaming
+ * throughput in bytes per second is the reported operations per second times
+ * the payload size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadBenchmarks {
+
+	private static final String PID = "payload";
+
+	/**
+	 * An object with one payload of the requested size.
+	 */
+	@State(Scope.Benchmark)
+	public static class Content {
+		@Param({ "1024", "16777216" })
+		public int size;
+
+		byte[] content;
+
+		DigitalObject object;
+
+		@Setup(Level.Trial)
+		public void create(StorageState state) throws StorageException {
+			content = StorageState.content(size);
+			object = state.storage.getObject(state.createObject(0, null));
+			object.createStoredPayload(PID, new ByteArrayInputStream(content));
+		}
+	}
+
+	/**
+	 * A scratch payload removed after every store, so the object's manifest
+	 * does not grow during the run. Each invocation takes far longer than
+	 * the per-invocation bookkeeping this costs.
+	 */
+	@State(Scope.Thread)
+	public static class Scratch {
+		DigitalObject object;
+
+		@Setup(Level.Trial)
+		public void create(StorageState state) throws StorageException {
+			object = state.storage.getObject(state.createObject(0, null));
+		}
+
+		@TearDown(Level.Invocation)
+		public void remove() throws StorageException {
+			object.removePayload(PID);
+		}
+	}
+
+	@Benchmark
+	public Payload createStoredPayload(Content content, Scratch scratch) throws StorageException {
+		return scratch.object.createStoredPayload(PID, new ByteArrayInputStream(content.content));
+	}
+
+	@Benchmark
+	public long open(Content content) throws Exception {
+		Payload payload = content.object.getPayload(PID);
+		long total = 0;
+		byte[] buffer = new byte[65536];
+		try (InputStream in = payload.open()) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				total += read;
+			}
+		} finally {
+			payload.close();
+		}
+		return total;
+	}
+}
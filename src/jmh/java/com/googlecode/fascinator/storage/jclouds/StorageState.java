@@ -0,0 +1,140 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.json.simple.JSONArray;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonObject;
+
+/**
+ * A storage plugin connected to a fresh container for the length of a trial.
+ * The 'filesystem' provider writes to a temporary directory, 'transient'
+ * keeps everything in memory and shows the plugin's own overhead.
+ */
+@State(Scope.Benchmark)
+public class StorageState {
+
+	@Param({ "filesystem", "transient" })
+	public String provider;
+
+	/** Round trip time to emulate with {@link LatencyInjectingBlobStore} */
+	@Param({ "0" })
+	public int latencyMillis;
+
+	BlobStoreStorage storage;
+
+	private File directory;
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void connect() throws Exception {
+		JsonObject blobstore = new JsonObject();
+		blobstore.put("provider", provider);
+		blobstore.put("containerName", "benchmark");
+		if ("filesystem".equals(provider)) {
+			directory = Files.createTempDirectory("blobstore-benchmark").toFile();
+			blobstore.put("fileSystemLocation", directory.getAbsolutePath());
+			blobstore.put("supportsUserMetadata", "false");
+		}
+		if (latencyMillis > 0) {
+			JsonObject decorator = new JsonObject();
+			decorator.put("class", LatencyInjectingBlobStore.class.getName());
+			decorator.put("latencyMillis", latencyMillis);
+			JSONArray decorators = new JSONArray();
+			decorators.add(decorator);
+			blobstore.put("decorators", decorators);
+		}
+		JsonObject storageConfig = new JsonObject();
+		storageConfig.put("type", "blobstore");
+		storageConfig.put("blobstore", blobstore);
+		JsonObject config = new JsonObject();
+		config.put("storage", storageConfig);
+
+		storage = new BlobStoreStorage();
+		storage.init(config.toJSONString());
+	}
+
+	@TearDown(Level.Trial)
+	public void disconnect() throws Exception {
+		try {
+			for (String oid : storage.getObjectIdList()) {
+				storage.removeObject(oid);
+			}
+			storage.shutdown();
+		} finally {
+			if (directory != null) {
+				FileUtils.deleteQuietly(directory);
+			}
+		}
+	}
+
+	/**
+	 * @return String an object ID not used before in this trial
+	 */
+	String newOid() {
+		return "benchmark" + sequence.incrementAndGet();
+	}
+
+	/**
+	 * Create an object holding a number of payloads.
+	 *
+	 * @param payloads
+	 *            the number of payloads
+	 * @param content
+	 *            the content of every payload
+	 * @return String the object ID
+	 * @throws StorageException
+	 *             if the object could not be created
+	 */
+	String createObject(int payloads, byte[] content) throws StorageException {
+		String oid = newOid();
+		DigitalObject object = storage.createObject(oid);
+		for (int i = 0; i < payloads; i++) {
+			object.createStoredPayload("payload" + i, new ByteArrayInputStream(content));
+		}
+		return oid;
+	}
+
+	/**
+	 * @param size
+	 *            the number of bytes
+	 * @return byte[] random, incompressible content
+	 */
+	static byte[] content(int size) {
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		return content;
+	}
+}
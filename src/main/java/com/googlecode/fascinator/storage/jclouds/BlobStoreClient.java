@@ -21,22 +21,34 @@ package com.googlecode.fascinator.storage.jclouds;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.attribute.UserDefinedFileAttributeView;
-import java.util.Properties;
-
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang.StringUtils;
-import org.jclouds.Constants;
-import org.jclouds.ContextBuilder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
-import org.jclouds.domain.Location;
-import org.jclouds.filesystem.reference.FilesystemConstants;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.json.simple.JSONArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
 import com.googlecode.fascinator.common.JsonSimpleConfig;
 
 /**
@@ -49,8 +61,11 @@ import com.googlecode.fascinator.common.JsonSimpleConfig;
  */
 public class BlobStoreClient {
 
-	/** Default Container Name **/
-	private static final String DEFAULT_CONTAINER_NAME = "fascinator";
+	/** Default number of threads for parallel BlobStore requests **/
+	private static final int DEFAULT_IO_THREADS = 8;
+
+	/** Default number of threads for asynchronous plugin operations **/
+	private static final int DEFAULT_ASYNC_THREADS = 64;
 
 	/** Logger */
 	private static Logger log = LoggerFactory.getLogger(BlobStoreClient.class);
@@ -61,27 +76,47 @@ public class BlobStoreClient {
 	/** BlobStore client */
 	private static BlobStore blobStore;
 
-	private static String provider;
+	private static String containerName;
 
-	private static String credential;
+	private static BlobStoreContext context;
 
-	private static String identity;
+	private static Boolean supportsUserMetadata = true;
 
-	private static String containerName;
+	private static int connectCount;
 
-	private static String location;
+	private static int ioThreads = DEFAULT_IO_THREADS;
 
-	private static BlobStoreContext context;
+	/** Payloads up to this many bytes are stored inside the manifest */
+	private static int inlineThreshold;
 
-	private static String fileSystemLocation;
-	
-	private static String gridFsConnectionString;
+	/** Executor for parallel BlobStore requests, created on first use */
+	private static ExecutorService executor;
 
-	private static Boolean supportsUserMetadata = true;
+	private static int asyncThreads = DEFAULT_ASYNC_THREADS;
 
-	private static Boolean supportsUserMetadataSetting;
+	/** Executor for asynchronous plugin operations, created on first use */
+	private static Executor asyncExecutor;
 
-	private static int connectCount;
+	/** Local journal for write-behind, if enabled */
+	private static WriteBehindJournal journal;
+
+	/** Hot tier in front of the configured BlobStore, if enabled */
+	private static TieredBlobStore tiered;
+
+	/** Request metrics, if enabled */
+	private static BlobStoreMetrics metrics;
+
+	/** Adaptive limit on concurrent requests, if enabled */
+	private static ConcurrencyLimiter limiter;
+
+	/** Retry and circuit breaker policy applied to every request */
+	private static ResilientBlobStore resilience;
+
+	/** Secondary BlobStores the container is replicated to, if enabled */
+	private static ReplicatedBlobStore replicated;
+
+	/** Demotion of idle payloads to a cold container, if enabled */
+	private static ColdStorage coldStorage;
 
 	/**
 	 * Public init method for File based configuration.
@@ -129,15 +164,14 @@ public class BlobStoreClient {
 			return;
 		}
 
-		// Grab all our information from config
-		provider = systemConfig.getString("swift", "storage", "blobstore", "provider");
-		credential = systemConfig.getString("", "storage", "blobstore", "password");
-		identity = systemConfig.getString("", "storage", "blobstore", "identity");
-		containerName = systemConfig.getString(DEFAULT_CONTAINER_NAME, "storage", "blobstore", "containerName");
-		location = systemConfig.getString(null, "storage", "blobstore", "location");
-		fileSystemLocation = systemConfig.getString(null, "storage", "blobstore", "fileSystemLocation");
-		gridFsConnectionString = systemConfig.getString(null, "storage", "blobstore", "gridFsConnectionString");
-		supportsUserMetadataSetting = systemConfig.getBoolean(null, "storage", "blobstore", "supportsUserMetadata");
+		// Grab all our information from config, connection details are read
+		// by BlobStoreTarget
+		containerName = systemConfig.getString(BlobStoreTarget.DEFAULT_CONTAINER_NAME, "storage", "blobstore",
+				"containerName");
+		ioThreads = systemConfig.getInteger(DEFAULT_IO_THREADS, "storage", "blobstore", "ioThreads");
+		asyncThreads = Math.max(1,
+				systemConfig.getInteger(DEFAULT_ASYNC_THREADS, "storage", "blobstore", "asyncThreads"));
+		inlineThreshold = systemConfig.getInteger(0, "storage", "blobstore", "inlineThreshold");
 
 		blobStoreConnect();
 
@@ -156,58 +190,108 @@ public class BlobStoreClient {
 			return blobStore;
 		}
 		connectCount = 0;
-		ContextBuilder contextBuilder = ContextBuilder.newBuilder(provider);
-		// If we're using filesystem, set local directory to write objects to
-		if ("filesystem".equals(provider)) {
-			if (supportsUserMetadataSetting != null) {
-				supportsUserMetadata = supportsUserMetadataSetting;
-			} else {
-				File storageDir = new File(fileSystemLocation);
-				if (!storageDir.exists()) {
-					try {
-						FileUtils.forceMkdir(storageDir);
-						// Java doesn't support extended attributes in some file
-						// systems like FAT32 and HFS. As JClouds use them to
-						// store
-						// user metadata we'll need to store them differently on
-						// these file systems.
-						if (!Files.getFileStore(storageDir.toPath())
-								.supportsFileAttributeView(UserDefinedFileAttributeView.class)) {
-							supportsUserMetadata = false;
-						}
-					} catch (IOException e) {
-						throw new StorageException("Failed to create storage directory", e);
-					}
+		JsonObject blobStoreConfig = systemConfig.getObject("storage", "blobstore");
+		BlobStoreTarget target = BlobStoreTarget
+				.connect(new JsonSimple(blobStoreConfig != null ? blobStoreConfig : new JsonObject()));
+		context = target.getContext();
+		supportsUserMetadata = target.supportsUserMetadata();
+		blobStore = target.getBlobStore();
+		JSONArray decorators = systemConfig.getArray("storage", "blobstore", "decorators");
+		if (decorators != null) {
+			// Around the provider itself, so the plugin cannot tell them apart
+			for (Object decorator : decorators) {
+				JsonSimple decoratorConfig = new JsonSimple((JsonObject) decorator);
+				blobStore = newDecorator(decoratorConfig.getString(null, "class")).decorate(blobStore,
+						decoratorConfig);
+			}
+		}
+		if (systemConfig.getBoolean(false, "storage", "blobstore", "accounting", "enabled")) {
+			// Innermost, so every request that leaves the plugin is counted
+			CallAccounting.setCallBudget(
+					systemConfig.getInteger(0, "storage", "blobstore", "accounting", "callBudget"));
+			blobStore = CallAccounting.wrap(blobStore);
+		}
+		if (systemConfig.getBoolean(true, "storage", "blobstore", "concurrency", "enabled")) {
+			if (limiter == null) {
+				limiter = new ConcurrencyLimiter(
+						systemConfig.getInteger(32, "storage", "blobstore", "concurrency", "initialLimit"),
+						systemConfig.getInteger(1, "storage", "blobstore", "concurrency", "minLimit"),
+						systemConfig.getInteger(512, "storage", "blobstore", "concurrency", "maxLimit"),
+						systemConfig.getInteger(0, "storage", "blobstore", "concurrency", "readsPerSecond"),
+						systemConfig.getInteger(0, "storage", "blobstore", "concurrency", "writesPerSecond"),
+						systemConfig.getInteger(0, "storage", "blobstore", "concurrency", "listingsPerSecond"));
+			}
+			// Below the retry policy, so backoff never holds a permit
+			blobStore = limiter.wrap(blobStore);
+		}
+		if (resilience == null) {
+			resilience = new ResilientBlobStore(
+					systemConfig.getInteger(3, "storage", "blobstore", "retry", "maxAttempts"),
+					systemConfig.getInteger(100, "storage", "blobstore", "retry", "baseDelayMillis"),
+					systemConfig.getInteger(5000, "storage", "blobstore", "retry", "maxDelayMillis"),
+					systemConfig.getInteger(120, "storage", "blobstore", "retry", "operationTimeoutSeconds"),
+					systemConfig.getInteger(5, "storage", "blobstore", "circuitBreaker", "failureThreshold"),
+					systemConfig.getInteger(30, "storage", "blobstore", "circuitBreaker", "openSeconds"));
+		}
+		blobStore = resilience.wrap(blobStore);
+		if (systemConfig.getBoolean(false, "storage", "blobstore", "replication", "enabled")) {
+			if (replicated == null) {
+				List<BlobStoreTarget> replicas = new ArrayList<BlobStoreTarget>();
+				JSONArray replicaConfigs = systemConfig.getArray("storage", "blobstore", "replication", "replicas");
+				if (replicaConfigs == null || replicaConfigs.isEmpty()) {
+					throw new StorageException("replication requires at least one entry in 'replicas'");
+				}
+				for (Object replicaConfig : replicaConfigs) {
+					replicas.add(BlobStoreTarget.connect(new JsonSimple((JsonObject) replicaConfig)));
 				}
+				replicated = new ReplicatedBlobStore(replicas,
+						systemConfig.getBoolean(true, "storage", "blobstore", "replication", "synchronous"),
+						systemConfig.getInteger(95, "storage", "blobstore", "replication", "hedgePercentile"));
 			}
-			Properties properties = new Properties();
-			properties.setProperty(FilesystemConstants.PROPERTY_BASEDIR, fileSystemLocation);
-			contextBuilder.overrides(properties);
-		} else if ("gridfs".equals(provider)) {
-			Properties properties = new Properties();
-			properties.setProperty(Constants.PROPERTY_ENDPOINT, gridFsConnectionString);
-			contextBuilder.overrides(properties);
-
-		}
-		context = contextBuilder.credentials(identity, credential)
-				.endpoint("https://keystone.rc.nectar.org.au:5000/v2.0").buildView(BlobStoreContext.class);
-
-		blobStore = context.getBlobStore();
-
-		Location loc = null;
-		if (StringUtils.isNotEmpty(location)) {
-			for (Location assignableLoc : blobStore.listAssignableLocations()) {
-				if (assignableLoc.getId().equalsIgnoreCase(location)) {
-					loc = assignableLoc;
-					break;
+			blobStore = replicated.wrap(blobStore, containerName);
+		}
+		if (systemConfig.getBoolean(false, "storage", "blobstore", "tiered", "enabled")) {
+			if (tiered == null) {
+				JsonObject hotConfig = systemConfig.getObject("storage", "blobstore", "tiered", "hot");
+				if (hotConfig == null) {
+					throw new StorageException("tiered requires a 'hot' BlobStore configuration");
 				}
-
+				tiered = new TieredBlobStore(BlobStoreTarget.connect(new JsonSimple(hotConfig)),
+						systemConfig.getInteger(1024, "storage", "blobstore", "tiered", "capacityMegabytes")
+								* 1024L * 1024L);
 			}
-			if (loc == null) {
-				throw new StorageException(location + " location not found in Blobstore");
+			blobStore = tiered.wrap(blobStore, containerName);
+		}
+		if (systemConfig.getBoolean(false, "storage", "blobstore", "writeBehind", "enabled")) {
+			if (journal == null) {
+				String directory = systemConfig.getString(null, "storage", "blobstore", "writeBehind",
+						"journalDirectory");
+				if (directory == null) {
+					throw new StorageException("writeBehind requires a 'journalDirectory'");
+				}
+				journal = new WriteBehindJournal(new File(directory),
+						systemConfig.getInteger(4, "storage", "blobstore", "writeBehind", "uploadThreads"));
+			}
+			blobStore = journal.wrap(blobStore);
+		}
+		if (systemConfig.getBoolean(false, "storage", "blobstore", "metrics", "enabled")) {
+			if (metrics == null) {
+				metrics = new BlobStoreMetrics();
+				JSONArray listeners = systemConfig.getArray("storage", "blobstore", "metrics", "listeners");
+				if (listeners != null) {
+					for (Object listener : listeners) {
+						metrics.addListener(newListener(listener.toString()));
+					}
+				}
+				if (systemConfig.getBoolean(true, "storage", "blobstore", "metrics", "jmx")) {
+					metrics.registerMBean();
+				}
 			}
+			// Outermost, so requests are measured as the plugin makes them
+			blobStore = metrics.wrap(blobStore);
 		}
-		blobStore.createContainerInLocation(loc, containerName);
+		FlightEvents.setEnabled(systemConfig.getBoolean(true, "storage", "blobstore", "jfr", "enabled"));
+		blobStore = FlightEvents.wrap(blobStore);
 
 		return blobStore;
 	}
@@ -223,6 +307,47 @@ public class BlobStoreClient {
 		return blobStoreConnect();
 	}
 
+	/**
+	 * Package-private method to swap the BlobStore client, for example so tests
+	 * can observe the calls made against it.
+	 *
+	 * @param client
+	 *            The BlobStore client to use from now on
+	 * @return BlobStore The client that was replaced
+	 */
+	static BlobStore setClient(BlobStore client) {
+		BlobStore previous = blobStore;
+		blobStore = client;
+		return previous;
+	}
+
+	public static String getContainerName() {
+		return containerName;
+	}
+
+	public static Boolean supportsUserMetadata() {
+		return supportsUserMetadata;
+	}
+
+	/**
+	 * @return int the size in bytes up to which payloads are stored inline in
+	 *         their object's manifest, 0 if disabled
+	 */
+	static int getInlineThreshold() {
+		return inlineThreshold;
+	}
+
+	/**
+	 * Package-private method to change the inline threshold after
+	 * initialisation, for tests.
+	 *
+	 * @param threshold
+	 *            the new threshold in bytes
+	 */
+	static void setInlineThreshold(int threshold) {
+		inlineThreshold = threshold;
+	}
+
 	/**
 	 * A really simple wrapper on closable object to allow trivial close
 	 * attempts when we are unsure if they are even open.
@@ -234,12 +359,299 @@ public class BlobStoreClient {
 		context.close();
 	}
 
-	public static String getContainerName() {
-		return containerName;
+	private static BlobStoreDecorator newDecorator(String className) throws StorageException {
+		if (className == null) {
+			throw new StorageException("BlobStore decorator without a 'class'");
+		}
+		try {
+			return (BlobStoreDecorator) Class.forName(className).newInstance();
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			throw new StorageException("Invalid BlobStore decorator '" + className + "'", e);
+		}
 	}
 
-	public static Boolean supportsUserMetadata() {
-		return supportsUserMetadata;
+	private static MetricsListener newListener(String className) throws StorageException {
+		try {
+			return (MetricsListener) Class.forName(className).newInstance();
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			throw new StorageException("Invalid metrics listener '" + className + "'", e);
+		}
+	}
+
+	/**
+	 * Package-private 'getter' for request metrics.
+	 *
+	 * @return BlobStoreMetrics the metrics, or null if they are disabled
+	 */
+	static BlobStoreMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Package-private 'getter' for the concurrency limiter.
+	 *
+	 * @return ConcurrencyLimiter the limiter, or null if it is disabled
+	 */
+	static ConcurrencyLimiter getLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * Package-private 'getter' for replication.
+	 *
+	 * @return ReplicatedBlobStore the replicas, or null if replication is
+	 *         disabled
+	 */
+	static ReplicatedBlobStore getReplicatedStore() {
+		return replicated;
+	}
+
+	/**
+	 * Package-private 'getter' for the tiered store.
+	 *
+	 * @return TieredBlobStore the hot tier, or null if tiering is disabled
+	 */
+	static TieredBlobStore getTieredStore() {
+		return tiered;
+	}
+
+	/**
+	 * Package-private 'getter' for cold storage.
+	 *
+	 * @return ColdStorage the cold container, or null if demotion is disabled
+	 */
+	static ColdStorage getColdStorage() {
+		return coldStorage;
+	}
+
+	/**
+	 * Package-private 'setter' for cold storage, set up by the plugin.
+	 *
+	 * @param cold
+	 *            the cold container, or null to disable demotion
+	 */
+	static void setColdStorage(ColdStorage cold) {
+		coldStorage = cold;
+	}
+
+	/**
+	 * Drain the write-behind journal, if one is in use, for up to the
+	 * configured 'drainTimeoutSeconds'. Uploads still pending afterwards stay
+	 * in the journal until the next start. Asynchronous replication gets the
+	 * same chance to finish.
+	 */
+	static synchronized void shutdown() {
+		if (journal != null) {
+			journal.shutdown(systemConfig.getInteger(60, "storage", "blobstore", "writeBehind",
+					"drainTimeoutSeconds"));
+		}
+		if (replicated != null) {
+			replicated.shutdown(systemConfig.getInteger(60, "storage", "blobstore", "replication",
+					"drainTimeoutSeconds"));
+		}
+	}
+
+	/**
+	 * Package-private 'getter' for the executor used to run BlobStore requests
+	 * in parallel. Its size is set by the 'ioThreads' configuration option.
+	 *
+	 * @return ExecutorService The shared executor
+	 */
+	static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(ioThreads, daemonThreads("blobstore-io-"));
+		}
+		return executor;
+	}
+
+	/**
+	 * Package-private 'getter' for the executor running asynchronous plugin
+	 * operations. This is kept apart from the parallel request executor so an
+	 * asynchronous operation waiting on parallel requests can never starve
+	 * them of threads.
+	 * <p>
+	 * jclouds requests block their thread until they complete, so the
+	 * asynchronous operations are not non-blocking I/O: each one in flight
+	 * holds a thread of this pool for its whole duration. Its size, the
+	 * 'asyncThreads' configuration option, is therefore the number of
+	 * asynchronous operations that run at once, and further ones queue
+	 * without limit until a thread is free.
+	 * </p>
+	 *
+	 * @return Executor The asynchronous operation executor
+	 */
+	static synchronized Executor getAsyncExecutor() {
+		if (asyncExecutor == null) {
+			asyncExecutor = Executors.newFixedThreadPool(asyncThreads, daemonThreads("blobstore-async-"));
+		}
+		return asyncExecutor;
+	}
+
+	/**
+	 * Replace the executor running asynchronous plugin operations.
+	 *
+	 * @param executor
+	 *            The executor to use from now on
+	 */
+	static synchronized void setAsyncExecutor(Executor executor) {
+		asyncExecutor = executor;
+	}
+
+	/**
+	 * Run a blocking plugin operation on the asynchronous executor. Any
+	 * exception it throws completes the future exceptionally.
+	 *
+	 * @param operation
+	 *            The operation to run
+	 * @return CompletableFuture<T> The future result of the operation
+	 */
+	static <T> CompletableFuture<T> supplyAsync(final Callable<T> operation) {
+		return CompletableFuture.supplyAsync(new Supplier<T>() {
+			@Override
+			public T get() {
+				try {
+					return operation.call();
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			}
+		}, getAsyncExecutor());
+	}
+
+	static ThreadFactory daemonThreads(final String prefix) {
+		final AtomicInteger threadCount = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Run a batch of BlobStore requests on the shared executor and wait for
+	 * all of them to finish.
+	 *
+	 * @param tasks
+	 *            The requests to run
+	 * @throws StorageException
+	 *             if any of the requests failed
+	 */
+	static void invokeAll(Collection<? extends Callable<Void>> tasks) throws StorageException {
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (Callable<Void> task : tasks) {
+			futures.add(getExecutor().submit(PluginOperation.propagate(task)));
+		}
+		StorageException failure = null;
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StorageException("Interrupted waiting for BlobStore requests", e);
+			} catch (ExecutionException e) {
+				log.error("BlobStore request failed", e.getCause());
+				if (failure == null) {
+					failure = new StorageException("BlobStore request failed", e.getCause());
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * List one page of the Object IDs in the plugin's container, for jobs that
+	 * walk every object without holding the whole listing.
+	 *
+	 * @param marker
+	 *            The marker returned with the previous page, or null for the
+	 *            first page
+	 * @param oids
+	 *            Receives the Object IDs of the page
+	 * @return String The marker of the next page, or null after the last page
+	 * @throws StorageException
+	 *             if any errors occur
+	 */
+	static String listObjectIds(String marker, Collection<String> oids) throws StorageException {
+		ListContainerOptions options = new ListContainerOptions();
+		if (marker != null) {
+			options.afterMarker(marker);
+		}
+		PageSet<? extends StorageMetadata> page = getClient().list(containerName, options);
+		for (StorageMetadata metadata : page) {
+			if (metadata.getType() == StorageType.FOLDER || metadata.getType() == StorageType.RELATIVE_PATH) {
+				oids.add(metadata.getName());
+			}
+		}
+		return page.getNextMarker();
+	}
+
+	/**
+	 * List the keys of every blob belonging to an object, page by page. This
+	 * includes payloads, their metadata sidecars and the object manifest.
+	 *
+	 * @param oid
+	 *            The object to list
+	 * @return List<String> The full keys of the object's blobs
+	 * @throws StorageException
+	 *             if any errors occur
+	 */
+	static List<String> listObjectKeys(String oid) throws StorageException {
+		List<String> keys = new ArrayList<String>();
+		for (StorageMetadata metadata : listObjectBlobs(oid)) {
+			keys.add(metadata.getName());
+		}
+		return keys;
+	}
+
+	/**
+	 * List the metadata of every blob belonging to an object, page by page.
+	 *
+	 * @param oid
+	 *            The object to list
+	 * @return List<StorageMetadata> The metadata of the object's blobs
+	 * @throws StorageException
+	 *             if any errors occur
+	 */
+	static List<StorageMetadata> listObjectBlobs(String oid) throws StorageException {
+		return listObjectBlobs(getClient(), containerName, oid);
+	}
+
+	/**
+	 * List the metadata of every blob belonging to an object in any container,
+	 * page by page.
+	 *
+	 * @param client
+	 *            The BlobStore holding the container
+	 * @param containerName
+	 *            The container holding the object
+	 * @param oid
+	 *            The object to list
+	 * @return List<StorageMetadata> The metadata of the object's blobs
+	 */
+	static List<StorageMetadata> listObjectBlobs(BlobStore client, String containerName, String oid) {
+		List<StorageMetadata> blobs = new ArrayList<StorageMetadata>();
+		String marker = null;
+		do {
+			ListContainerOptions options = ListContainerOptions.Builder.inDirectory(oid).recursive();
+			if (marker != null) {
+				options.afterMarker(marker);
+			}
+			PageSet<? extends StorageMetadata> page = client.list(containerName, options);
+			for (StorageMetadata metadata : page) {
+				if (metadata.getType() == StorageType.BLOB) {
+					blobs.add(metadata);
+				}
+			}
+			marker = page.getNextMarker();
+		} while (marker != null);
+		return blobs;
 	}
 
 }
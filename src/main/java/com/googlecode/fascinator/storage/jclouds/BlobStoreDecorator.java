@@ -0,0 +1,47 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import org.jclouds.blobstore.BlobStore;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * Wraps the provider's BlobStore client before any of the plugin's own
+ * decorators, to change how the BlobStore behaves as seen by the plugin, for
+ * example to emulate a remote provider with a local one. Implementations
+ * configured by class name need a public no-argument constructor, and can
+ * extend {@link ForwardingBlobStore} to do the wrapping.
+ */
+public interface BlobStoreDecorator {
+
+	/**
+	 * Wrap a BlobStore client.
+	 *
+	 * @param blobStore
+	 *            the client to wrap
+	 * @param config
+	 *            the decorator's entry in the 'decorators' configuration
+	 * @return BlobStore the wrapped client
+	 * @throws StorageException
+	 *             if the configuration is invalid
+	 */
+	BlobStore decorate(BlobStore blobStore, JsonSimple config) throws StorageException;
+}
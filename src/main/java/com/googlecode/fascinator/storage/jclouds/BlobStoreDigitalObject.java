@@ -22,11 +22,18 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
 import org.json.simple.JSONArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,18 +54,151 @@ public class BlobStoreDigitalObject extends GenericDigitalObject {
 
 	private static String METADATA_PAYLOAD = "TF-OBJ-META";
 
+	/** Key of the manifest blob, relative to the object */
+	static final String MANIFEST_KEY = "object-manifest";
+
+	/** Attempts to write the manifest before giving up on a busy object */
+	private static final int MANIFEST_ATTEMPTS = 5;
+
+	/** Serialise manifest writes to the same object within this JVM */
+	private static final Object[] MANIFEST_LOCKS = new Object[64];
+
+	static {
+		for (int i = 0; i < MANIFEST_LOCKS.length; i++) {
+			MANIFEST_LOCKS[i] = new Object();
+		}
+	}
+
+	/** ETag of the manifest version this object is in sync with, if known */
+	private String manifestVersion;
+
+	/** Payloads added or changed since the manifest was last in sync */
+	private final Set<String> changedPayloads = new HashSet<String>();
+
+	/** Payloads removed since the manifest was last in sync */
+	private final Set<String> removedPayloads = new HashSet<String>();
+
+	/** Whether the manifest has been read, which happens on first use */
+	private boolean manifestLoaded;
+
 	// private static String METADATA_LABEL = "The Fascinator Indexer Metadata";
 
 	/** Logging */
 	private Logger log = LoggerFactory.getLogger(BlobStoreDigitalObject.class);
 
+	/**
+	 * Instantiate an existing object. Nothing is read until the object's
+	 * manifest is first needed.
+	 *
+	 * @param oid
+	 *            the Object ID
+	 */
 	public BlobStoreDigitalObject(String oid) {
 		super(oid);
+	}
+
+	/**
+	 * Instantiate an object whose manifest has just been written, without
+	 * reading it back.
+	 *
+	 * @param oid
+	 *            the Object ID
+	 * @param manifestVersion
+	 *            the ETag of the manifest written
+	 */
+	private BlobStoreDigitalObject(String oid, String manifestVersion) {
+		super(oid);
+		this.manifestVersion = manifestVersion;
+		manifestLoaded = true;
+	}
+
+	/**
+	 * Get the payloads of this object, reading the manifest if this is the
+	 * first time it is needed.
+	 *
+	 * @return Map<String, Payload> the payloads by Payload ID
+	 * @throws RuntimeException
+	 *             if the manifest could not be read
+	 */
+	@Override
+	public synchronized Map<String, Payload> getManifest() {
 		try {
-			buildManifest();
+			return loadedManifest();
 		} catch (StorageException e) {
-			new RuntimeException("Failed to build manifest", e);
+			throw new RuntimeException("Failed to build manifest of " + getId(), e);
+		}
+	}
+
+	@Override
+	public synchronized Set<String> getPayloadIdList() {
+		return getManifest().keySet();
+	}
+
+	@Override
+	public synchronized String getSourceId() {
+		getManifest();
+		return super.getSourceId();
+	}
+
+	/**
+	 * Read the manifest unless it already has been. A failed read is retried
+	 * on the next use.
+	 *
+	 * @return Map<String, Payload> the payloads by Payload ID
+	 * @throws StorageException
+	 *             if the manifest could not be read
+	 */
+	private synchronized Map<String, Payload> loadedManifest() throws StorageException {
+		if (!manifestLoaded) {
+			super.getManifest().clear();
+			buildManifest();
+			manifestLoaded = true;
 		}
+		return super.getManifest();
+	}
+
+	/**
+	 * Create a new, empty object. An object is its manifest, so creating one
+	 * takes a check that there is no manifest yet and the write of an empty
+	 * one; there is no directory marker.
+	 *
+	 * @param oid
+	 *            the Object ID
+	 * @return BlobStoreDigitalObject the new object
+	 * @throws StorageException
+	 *             if the object already exists or could not be written
+	 */
+	static BlobStoreDigitalObject create(String oid) throws StorageException {
+		BlobStore blobStore = BlobStoreClient.getClient();
+		String container = BlobStoreClient.getContainerName();
+		String key = oid + "/" + MANIFEST_KEY;
+		synchronized (manifestLock(oid)) {
+			if (blobStore.blobExists(container, key)) {
+				throw new StorageException("Error; object '" + oid + "' already exists in Blobstore");
+			}
+			BlobStoreDigitalObject object = new BlobStoreDigitalObject(oid, null);
+			Blob manifestBlob = blobStore.blobBuilder(key).build();
+			manifestBlob.setPayload(object.manifestJson());
+			object.manifestVersion = normaliseETag(blobStore.putBlob(container, manifestBlob));
+			return object;
+		}
+	}
+
+	/**
+	 * Check whether an object exists. Objects are recognised by their
+	 * manifest, or by their directory marker if they were created before
+	 * objects went without one.
+	 *
+	 * @param oid
+	 *            the Object ID
+	 * @return boolean true if the object exists
+	 * @throws StorageException
+	 *             if the BlobStore could not be reached
+	 */
+	static boolean exists(String oid) throws StorageException {
+		BlobStore blobStore = BlobStoreClient.getClient();
+		String container = BlobStoreClient.getContainerName();
+		return blobStore.blobExists(container, oid + "/" + MANIFEST_KEY) || blobStore.directoryExists(container, oid);
 	}
 
 	/**
@@ -75,24 +215,27 @@ public class BlobStoreDigitalObject extends GenericDigitalObject {
 	 */
 	@Override
 	public synchronized Payload createStoredPayload(String pid, InputStream in) throws StorageException {
-		// log.debug("createStoredPayload({},{})", getId(), pid);
-		if (pid == null || in == null) {
-			throw new StorageException("Error; Null parameter recieved");
-		}
-
-		Payload payload = createPayload(pid, in, false);
-		return payload;
+		try (PluginOperation operation = PluginOperation.enter("createStoredPayload")) {
+			// log.debug("createStoredPayload({},{})", getId(), pid);
+			if (pid == null || in == null) {
+				throw new StorageException("Error; Null parameter recieved");
+			}
 
+			Payload payload = createPayload(pid, in, false);
+			return payload;
+		} catch (ResilientBlobStore.BlobStoreUnavailableException e) {
+			throw new StorageException(e.getMessage(), e);
+		}
 	}
 
 	private Payload createPayload(String pid, InputStream in, boolean b) throws StorageException {
-		Map<String, Payload> manifest = getManifest();
+		Map<String, Payload> manifest = loadedManifest();
 		if (manifest.containsKey(pid)) {
 			throw new StorageException("ID '" + pid + "' already exists in manifest.");
 		}
 
 		// Payload creation
-		BlobStorePayload payload = new BlobStorePayload(getId(), pid);
+		BlobStorePayload payload = new BlobStorePayload(this, pid);
 		if (METADATA_PAYLOAD.equals(pid)) {
 			payload.setType(PayloadType.Annotation);
 		} else if (getSourceId() == null) {
@@ -102,10 +245,13 @@ public class BlobStoreDigitalObject extends GenericDigitalObject {
 
 		payload.writePayload(in);
 		// re-get the payload from storage to populate store metadata
-		manifest.put(pid, null);
+		manifest.put(pid, payload);
+		BlobStorePayload written = payload;
 		payload = (BlobStorePayload) getPayload(pid);
 		manifest.put(pid, payload);
+		markChanged(pid);
 		updateObjectManifest();
+		written.removeSupersededBlob();
 
 		return payload;
 
@@ -136,6 +282,95 @@ public class BlobStoreDigitalObject extends GenericDigitalObject {
 		}
 	}
 
+	/**
+	 * Store a payload with known metadata and length, such as one read from an
+	 * archive, streaming the content without buffering it. An existing
+	 * payload with the same ID is replaced.
+	 *
+	 * @param pid
+	 *            the Payload ID to use
+	 * @param in
+	 *            an InputStream containing the data to store
+	 * @param length
+	 *            the number of bytes in the stream
+	 * @param label
+	 *            the payload label
+	 * @param type
+	 *            the payload type
+	 * @param contentType
+	 *            the MIME type of the content
+	 * @return Payload the Payload Object
+	 * @throws StorageException
+	 *             if any errors occur
+	 */
+	synchronized Payload importPayload(String pid, InputStream in, long length, String label, PayloadType type,
+			String contentType) throws StorageException {
+		BlobStorePayload payload = new BlobStorePayload(this, pid);
+		payload.setLabel(label);
+		payload.setType(type);
+		payload.setContentType(contentType);
+		payload.writePayload(in, length);
+		if (PayloadType.Source.equals(type)) {
+			setSourceId(pid);
+		}
+		loadedManifest().put(pid, payload);
+		markChanged(pid);
+		updateObjectManifest();
+		return payload;
+	}
+
+	/**
+	 * Store the content of a new payload with a known length, streaming it
+	 * without buffering, but leave the payload out of the manifest so that
+	 * several payloads of the object can be uploaded at once. The payloads are
+	 * added to the manifest with {@link #addPayloads(Collection)}.
+	 *
+	 * @param pid
+	 *            the Payload ID to use
+	 * @param in
+	 *            an InputStream containing the data to store
+	 * @param length
+	 *            the number of bytes in the stream
+	 * @param contentType
+	 *            the MIME type of the content
+	 * @return BlobStorePayload the Payload Object, not in the manifest yet
+	 * @throws StorageException
+	 *             if any errors occur
+	 */
+	BlobStorePayload uploadPayload(String pid, InputStream in, long length, String contentType)
+			throws StorageException {
+		BlobStorePayload payload = new BlobStorePayload(this, pid);
+		payload.setContentType(contentType);
+		payload.writePayload(in, length);
+		return payload;
+	}
+
+	/**
+	 * Add payloads stored by
+	 * {@link #uploadPayload(String, InputStream, long, String)} to the
+	 * manifest with a single manifest write. The first of them becomes the
+	 * source if the object has none yet.
+	 *
+	 * @param payloads
+	 *            the uploaded payloads
+	 * @throws StorageException
+	 *             if the manifest could not be written
+	 */
+	synchronized void addPayloads(Collection<BlobStorePayload> payloads) throws StorageException {
+		if (payloads.isEmpty()) {
+			return;
+		}
+		Map<String, Payload> manifest = loadedManifest();
+		for (BlobStorePayload payload : payloads) {
+			if (getSourceId() == null) {
+				setSourceId(payload.getId());
+			}
+			manifest.put(payload.getId(), payload);
+			markChanged(payload.getId());
+		}
+		updateObjectManifest();
+	}
+
 	/**
 	 * Retrieve and instantiate the requested payload in this Object.
 	 *
@@ -147,19 +382,28 @@ public class BlobStoreDigitalObject extends GenericDigitalObject {
 	 */
 	@Override
 	public synchronized Payload getPayload(String pid) throws StorageException {
-		// log.debug("getPayload({},{})", getId(), pid);
-		if (pid == null) {
-			throw new StorageException("Error; Null PID recieved");
-		}
+		try (PluginOperation operation = PluginOperation.enter("getPayload")) {
+			// log.debug("getPayload({},{})", getId(), pid);
+			if (pid == null) {
+				throw new StorageException("Error; Null PID recieved");
+			}
 
-		// Confirm we actually have this payload first
-		Map<String, Payload> manifest = getManifest();
-		if (!manifest.containsKey(pid)) {
-			throw new StorageException("pID '" + pid + "': was not found");
+			// Confirm we actually have this payload first
+			Map<String, Payload> manifest = loadedManifest();
+			if (!manifest.containsKey(pid)) {
+				throw new StorageException("pID '" + pid + "': was not found");
 
-		}
+			}
 
-		return new BlobStorePayload(getId(), pid);
+			// Inline payloads are served from the manifest record
+			Payload known = manifest.get(pid);
+			if (known instanceof BlobStorePayload && ((BlobStorePayload) known).isInline()) {
+				return BlobStorePayload.fromInlineRecord(this, inlineRecord((BlobStorePayload) known));
+			}
+			return new BlobStorePayload(this, pid);
+		} catch (ResilientBlobStore.BlobStoreUnavailableException e) {
+			throw new StorageException(e.getMessage(), e);
+		}
 	}
 
 	/**
@@ -172,20 +416,39 @@ public class BlobStoreDigitalObject extends GenericDigitalObject {
 	 */
 	@Override
 	public synchronized void removePayload(String pid) throws StorageException {
-		if (pid == null) {
-			throw new StorageException("Error; Null PID recieved");
-		}
-
-		// Confirm we actually have this payload first
-		Map<String, Payload> manifest = getManifest();
-		if (!manifest.containsKey(pid)) {
-			throw new StorageException("pID '" + pid + "': was not found");
+		try (PluginOperation operation = PluginOperation.enter("removePayload")) {
+			if (pid == null) {
+				throw new StorageException("Error; Null PID recieved");
+			}
 
-		}
-		manifest.remove(pid);
+			// Confirm we actually have this payload first
+			Map<String, Payload> manifest = loadedManifest();
+			if (!manifest.containsKey(pid)) {
+				throw new StorageException("pID '" + pid + "': was not found");
 
-		BlobStoreClient.getClient().removeBlob(BlobStoreClient.getContainerName(), getId() + "/" + pid);
+			}
+			Payload removed = manifest.remove(pid);
+			if (pid.equals(getSourceId())) {
+				setSourceId(null);
+			}
+			changedPayloads.remove(pid);
+			removedPayloads.add(pid);
+			// Persist the manifest first; a failure after this point leaves
+			// orphans for the OrphanSweeper rather than a dangling manifest entry
+			updateObjectManifest();
+			if (removed instanceof BlobStorePayload && ((BlobStorePayload) removed).isInline()) {
+				return;
+			}
 
+			String payloadKey = getId() + "/" + pid;
+			BlobStoreClient.getClient().removeBlobs(BlobStoreClient.getContainerName(),
+					Arrays.asList(payloadKey, payloadKey + BlobStorePayload.METADATA_SUFFIX));
+			if (BlobStoreClient.getColdStorage() != null) {
+				BlobStoreClient.getColdStorage().removePayload(payloadKey);
+			}
+		} catch (ResilientBlobStore.BlobStoreUnavailableException e) {
+			throw new StorageException(e.getMessage(), e);
+		}
 	}
 
 	/**
@@ -201,58 +464,336 @@ public class BlobStoreDigitalObject extends GenericDigitalObject {
 	 */
 	@Override
 	public synchronized Payload updatePayload(String pid, InputStream in) throws StorageException {
-		// log.debug("updatePayload({},{})", getId(), pid);
-		if (pid == null || in == null) {
-			throw new StorageException("Error; Null parameter recieved");
-		}
+		try (PluginOperation operation = PluginOperation.enter("updatePayload")) {
+			// log.debug("updatePayload({},{})", getId(), pid);
+			if (pid == null || in == null) {
+				throw new StorageException("Error; Null parameter recieved");
+			}
 
-		// Double-check it actually exists before we try to modify it
-		Map<String, Payload> manifest = getManifest();
-		if (!manifest.containsKey(pid)) {
-			throw new StorageException("pID '" + pid + "': was not found");
+			// Double-check it actually exists before we try to modify it
+			Map<String, Payload> manifest = loadedManifest();
+			if (!manifest.containsKey(pid)) {
+				throw new StorageException("pID '" + pid + "': was not found");
+			}
+			BlobStorePayload payload = (BlobStorePayload) getPayload(pid);
+			boolean wasInline = payload.isInline();
+			payload.writePayload(in);
+			manifest.put(pid, payload);
+			if (wasInline || payload.isInline()) {
+				markChanged(pid);
+				updateObjectManifest();
+				payload.removeSupersededBlob();
+			}
+			payload = (BlobStorePayload) getPayload(pid);
+			manifest.put(pid, payload);
+			return payload;
+		} catch (ResilientBlobStore.BlobStoreUnavailableException e) {
+			throw new StorageException(e.getMessage(), e);
 		}
-		BlobStorePayload payload = new BlobStorePayload(getId(), pid);
-		payload.writePayload(in);
-		payload = (BlobStorePayload) getPayload(pid);
-		manifest.put(pid, payload);
-		return payload;
+	}
+
+	/**
+	 * Persist changed metadata of an inline payload, which lives in the
+	 * manifest.
+	 *
+	 * @param payload
+	 *            the inline payload
+	 * @throws StorageException
+	 *             if the manifest could not be written
+	 */
+	synchronized void updateInlinePayload(BlobStorePayload payload) throws StorageException {
+		loadedManifest().put(payload.getId(), payload);
+		markChanged(payload.getId());
+		updateObjectManifest();
+	}
+
+	private void markChanged(String pid) {
+		removedPayloads.remove(pid);
+		changedPayloads.add(pid);
+	}
+
+	private JsonObject inlineRecord(BlobStorePayload payload) {
+		JsonObject record = payload.toInlineRecord();
+		record.put("name", payload.getId());
+		return record;
 	}
 
 	private void buildManifest() throws StorageException {
-		Map<String, Payload> manifest = getManifest();
+		try (FlightEvents.Span span = FlightEvents.manifestBuild(getId())) {
+			readManifest();
+			span.setItems(super.getManifest().size());
+			span.succeeded();
+		}
+	}
+
+	private void readManifest() throws StorageException {
 		BlobStore blobStore = BlobStoreClient.getClient();
-		Blob manifestBlob = blobStore.getBlob(BlobStoreClient.getContainerName(), getId() + "/object-manifest");
+		String container = BlobStoreClient.getContainerName();
+		String key = getId() + "/" + MANIFEST_KEY;
+		Blob manifestBlob = blobStore.getBlob(container, key);
 		if (manifestBlob == null) {
-			String manifestString = "{}";
-
-			manifestBlob = blobStore.blobBuilder(getId() + "/object-manifest").build();
-			manifestBlob.setPayload(manifestString);
-			blobStore.putBlob(BlobStoreClient.getContainerName(), manifestBlob);
+			if (!blobStore.directoryExists(container, getId())) {
+				throw new StorageException("Object '" + getId() + "' does not exist");
+			}
+			// An object from before manifests were written on creation
+			manifestBlob = blobStore.blobBuilder(key).build();
+			manifestBlob.setPayload("{}");
+			manifestVersion = normaliseETag(blobStore.putBlob(container, manifestBlob));
 		} else {
-			InputStreamReader isr;
-			try {
-
-				JsonSimple manifestObject = new JsonSimple(manifestBlob.getPayload().openStream());
-				if (manifestObject.getArray("items") != null) {
-					for (Object itemObject : manifestObject.getArray("items")) {
-						JsonObject item = (JsonObject) itemObject;
-						String name = (String) item.get("name");
-						Payload payload = new BlobStorePayload(getId(), name);
-						if (PayloadType.Source.equals(payload.getType())) {
-							setSourceId(name);
-						}
-						manifest.put(name, payload);
+			String source = readItems(manifestBlob, super.getManifest());
+			if (source != null) {
+				setSourceId(source);
+			}
+			manifestVersion = normaliseETag(manifestBlob.getMetadata().getETag());
+		}
+	}
+
+	/**
+	 * Instantiate the payloads listed in a manifest, without reading any of
+	 * them.
+	 *
+	 * @param manifestBlob
+	 *            the manifest
+	 * @param payloads
+	 *            the map to add the payloads to
+	 * @return String the ID of the source payload, or null if there is none
+	 * @throws StorageException
+	 *             if the manifest could not be read
+	 */
+	private String readItems(Blob manifestBlob, Map<String, Payload> payloads) throws StorageException {
+		String source = null;
+		try {
+			JSONArray items = new JsonSimple(manifestBlob.getPayload().openStream()).getArray("items");
+			if (items != null) {
+				for (Object itemObject : items) {
+					JsonObject item = (JsonObject) itemObject;
+					String name = (String) item.get("name");
+					if (item.containsKey(BlobStorePayload.INLINE_CONTENT_KEY)) {
+						payloads.put(name, BlobStorePayload.fromInlineRecord(this, item));
+					} else {
+						payloads.put(name, new BlobStorePayload(this, name));
+					}
+					// The manifest marks the source, asking the payload would load it
+					if (PayloadType.Source.toString().equals(String.valueOf(item.get("type")))) {
+						source = name;
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new StorageException("Failed to read manifest of " + getId(), e);
+		}
+		return source;
+	}
+
+	/**
+	 * Asynchronous version of {@link #createStoredPayload(String, InputStream)}.
+	 *
+	 * @param pid
+	 *            the Payload ID to use
+	 * @param in
+	 *            an InputStream containing the data to store
+	 * @return CompletableFuture<Payload> the future Payload
+	 */
+	public CompletableFuture<Payload> createStoredPayloadAsync(final String pid, final InputStream in) {
+		return BlobStoreClient.supplyAsync(new Callable<Payload>() {
+			@Override
+			public Payload call() throws StorageException {
+				return createStoredPayload(pid, in);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of {@link #getPayload(String)}.
+	 *
+	 * @param pid
+	 *            the Payload ID to retrieve
+	 * @return CompletableFuture<Payload> the future Payload
+	 */
+	public CompletableFuture<Payload> getPayloadAsync(final String pid) {
+		return BlobStoreClient.supplyAsync(new Callable<Payload>() {
+			@Override
+			public Payload call() throws StorageException {
+				return getPayload(pid);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of {@link #updatePayload(String, InputStream)}.
+	 *
+	 * @param pid
+	 *            the Payload ID to use
+	 * @param in
+	 *            an InputStream containing the data to store
+	 * @return CompletableFuture<Payload> the future updated Payload
+	 */
+	public CompletableFuture<Payload> updatePayloadAsync(final String pid, final InputStream in) {
+		return BlobStoreClient.supplyAsync(new Callable<Payload>() {
+			@Override
+			public Payload call() throws StorageException {
+				return updatePayload(pid, in);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of {@link #removePayload(String)}.
+	 *
+	 * @param pid
+	 *            the Payload ID to remove
+	 * @return CompletableFuture<Void> completes once the payload is removed
+	 */
+	public CompletableFuture<Void> removePayloadAsync(final String pid) {
+		return BlobStoreClient.supplyAsync(new Callable<Void>() {
+			@Override
+			public Void call() throws StorageException {
+				removePayload(pid);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Read the IDs of the payloads an object's persisted manifest stores in
+	 * blobs of their own, without instantiating the object or its payloads.
+	 * Inline payloads are left out, so a blob under an inline payload's name
+	 * is a leftover.
+	 *
+	 * @param oid
+	 *            the Object ID
+	 * @return Set<String> the payload IDs, or null if the object has no
+	 *         manifest
+	 * @throws StorageException
+	 *             if the manifest could not be read
+	 */
+	static Set<String> readManifestNames(String oid) throws StorageException {
+		Blob manifestBlob = BlobStoreClient.getClient().getBlob(BlobStoreClient.getContainerName(),
+				oid + "/" + MANIFEST_KEY);
+		if (manifestBlob == null) {
+			return null;
+		}
+		Set<String> names = new HashSet<String>();
+		try {
+			JsonSimple manifestObject = new JsonSimple(manifestBlob.getPayload().openStream());
+			if (manifestObject.getArray("items") != null) {
+				for (Object itemObject : manifestObject.getArray("items")) {
+					JsonObject item = (JsonObject) itemObject;
+					if (!item.containsKey(BlobStorePayload.INLINE_CONTENT_KEY)) {
+						names.add((String) item.get("name"));
 					}
 				}
-			} catch (IOException e) {
-				new StorageException("Failed to build manifest", e);
 			}
+		} catch (IOException e) {
+			throw new StorageException("Failed to read manifest of " + oid, e);
 		}
+		return names;
 	}
 
+	/**
+	 * Write the manifest, unless somebody else wrote it since this object
+	 * read it. In that case the newer manifest is read, the changes made
+	 * through this object are applied to it, and the write is tried again.
+	 * After the write the manifest is checked once more, and if another
+	 * version has replaced the one written, the changes are merged into that
+	 * one and written again, so they are only forgotten once the write is
+	 * seen to have stuck. jclouds has no conditional writes, so this narrows
+	 * but cannot close the race between nodes: a node that read the manifest
+	 * before this write and writes it after the check still loses these
+	 * changes. Within this JVM writes to the same object are serialised.
+	 *
+	 * @throws StorageException
+	 *             if the manifest could not be written
+	 */
 	private void updateObjectManifest() throws StorageException {
-		Map<String, Payload> manifest = getManifest();
 		BlobStore blobStore = BlobStoreClient.getClient();
+		String container = BlobStoreClient.getContainerName();
+		String key = getId() + "/" + MANIFEST_KEY;
+		synchronized (manifestLock(getId())) {
+			boolean written = false;
+			for (int attempt = 0; attempt < MANIFEST_ATTEMPTS; attempt++) {
+				BlobMetadata current = blobStore.blobMetadata(container, key);
+				if (current == null) {
+					throw new StorageException("Object '" + getId() + "' was removed while being updated");
+				}
+				String version = normaliseETag(current.getETag());
+				if (written && (version == null || manifestVersion == null || version.equals(manifestVersion))) {
+					// Still the version written, or nothing to tell them apart
+					changedPayloads.clear();
+					removedPayloads.clear();
+					return;
+				}
+				if (version == null || !version.equals(manifestVersion)) {
+					Blob manifestBlob = blobStore.getBlob(container, key);
+					if (manifestBlob == null) {
+						throw new StorageException("Object '" + getId() + "' was removed while being updated");
+					}
+					mergeManifest(manifestBlob);
+					// Compared with the next check rather than the ETag of
+					// the read, in case a provider formats them differently
+					manifestVersion = version;
+					if (version != null) {
+						// Make sure the merged version is still the latest
+						continue;
+					}
+					// Without ETags the manifest just read is as fresh as it gets
+				}
+				Blob manifestBlob = blobStore.blobBuilder(key).build();
+				manifestBlob.setPayload(manifestJson());
+				manifestVersion = normaliseETag(blobStore.putBlob(container, manifestBlob));
+				// The changes are kept until the check confirms the write
+				written = true;
+			}
+		}
+		throw new StorageException(
+				"Manifest of '" + getId() + "' kept changing, gave up after " + MANIFEST_ATTEMPTS + " attempts");
+	}
+
+	/**
+	 * Replace the manifest with a newer version written by somebody else, and
+	 * apply the changes made through this object since it was last in sync.
+	 *
+	 * @param manifestBlob
+	 *            the newer manifest
+	 * @throws StorageException
+	 *             if the manifest could not be read
+	 */
+	private void mergeManifest(Blob manifestBlob) throws StorageException {
+		Map<String, Payload> manifest = super.getManifest();
+		Map<String, Payload> merged = new LinkedHashMap<String, Payload>();
+		String source = readItems(manifestBlob, merged);
+		merged.keySet().removeAll(removedPayloads);
+		for (String pid : changedPayloads) {
+			merged.put(pid, manifest.get(pid));
+		}
+		if (getSourceId() == null || !merged.containsKey(getSourceId())) {
+			setSourceId(source != null && merged.containsKey(source) ? source : null);
+		}
+		manifest.clear();
+		manifest.putAll(merged);
+	}
+
+	/**
+	 * The lock serialising manifest writes of an object inside this JVM. Cold
+	 * storage also takes it around dropping the hot copy of a payload.
+	 *
+	 * @param oid
+	 *            the Object ID
+	 * @return Object the lock, shared with other objects
+	 */
+	static Object manifestLock(String oid) {
+		return MANIFEST_LOCKS[(oid.hashCode() & Integer.MAX_VALUE) % MANIFEST_LOCKS.length];
+	}
+
+	/**
+	 * @return String an ETag without the quotes some providers add, or null
+	 */
+	private static String normaliseETag(String eTag) {
+		return eTag == null ? null : eTag.replace("\"", "");
+	}
+
+	private String manifestJson() {
+		Map<String, Payload> manifest = super.getManifest();
 		JsonObject objectManifest = new JsonObject();
 		JSONArray objectsArray = new JSONArray();
 		// String manifestString = "";
@@ -260,6 +801,10 @@ public class BlobStoreDigitalObject extends GenericDigitalObject {
 
 			if (!manifestItem.endsWith(".meta")) {
 				JsonObject manifestItemObject = new JsonObject();
+				Payload payload = manifest.get(manifestItem);
+				if (payload instanceof BlobStorePayload && ((BlobStorePayload) payload).isInline()) {
+					manifestItemObject.putAll(((BlobStorePayload) payload).toInlineRecord());
+				}
 				manifestItemObject.put("name", manifestItem);
 				if (manifestItem.equals(getSourceId())) {
 					manifestItemObject.put("type", PayloadType.Source);
@@ -270,10 +815,7 @@ public class BlobStoreDigitalObject extends GenericDigitalObject {
 			}
 		}
 		objectManifest.put("items", objectsArray);
-		Blob manifestBlob = blobStore.blobBuilder(getId() + "/object-manifest").build();
-		manifestBlob.setPayload(new JsonSimple(objectManifest).toString(true));
-		blobStore.putBlob(BlobStoreClient.getContainerName(), manifestBlob);
-
+		return new JsonSimple(objectManifest).toString(true);
 	}
 
 }
@@ -0,0 +1,347 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures every BlobStore request made by the plugin: calls, errors, bytes
+ * in and out and a latency histogram, per BlobStore method and per plugin
+ * method that caused it (see {@link PluginOperation}). Statistics are
+ * published through JMX and handed to any registered
+ * {@link MetricsListener}. Bytes are taken from content lengths, so they are
+ * exact for content the plugin wrote and for blobs whose length the provider
+ * reports.
+ * <p>
+ * Histograms are log-linear: eight buckets per power of two microseconds,
+ * so percentiles are accurate to about 12%. When metrics are disabled the
+ * client is not wrapped at all.
+ * </p>
+ */
+public class BlobStoreMetrics extends ForwardingBlobStore implements BlobStoreMetricsMXBean {
+
+	/** Logging */
+	private static Logger log = LoggerFactory.getLogger(BlobStoreMetrics.class);
+
+	/** JMX name of the metrics bean */
+	static final String OBJECT_NAME = "com.googlecode.fascinator.storage.jclouds:type=BlobStoreMetrics";
+
+	private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+
+	private final List<MetricsListener> listeners = new CopyOnWriteArrayList<MetricsListener>();
+
+	/**
+	 * Measure the requests of a BlobStore client.
+	 *
+	 * @param blobStore
+	 *            the client
+	 * @return BlobStore the measured client
+	 */
+	public BlobStore wrap(BlobStore blobStore) {
+		PluginOperation.setTracking(true);
+		return proxy(blobStore);
+	}
+
+	@Override
+	protected Object dispatch(Method method, Object[] args) throws Throwable {
+		long bytesOut = "putBlob".equals(method.getName()) ? contentLength(args[1]) : 0;
+		long start = System.nanoTime();
+		boolean error = true;
+		long bytesIn = 0;
+		try {
+			Object result = forward(method, args);
+			if ("getBlob".equals(method.getName())) {
+				bytesIn = contentLength(result);
+			}
+			error = false;
+			return result;
+		} finally {
+			try {
+				record(method.getName(), PluginOperation.current(), System.nanoTime() - start, error, bytesIn,
+						bytesOut);
+			} catch (RuntimeException e) {
+				// Never replace the request's own result or failure
+				log.warn("Failed to record BlobStore request {}", method.getName(), e);
+			}
+		}
+	}
+
+	static long contentLength(Object blob) {
+		if (blob instanceof Blob && ((Blob) blob).getPayload() != null) {
+			Long length = ((Blob) blob).getPayload().getContentMetadata().getContentLength();
+			return length != null ? length : 0;
+		}
+		return 0;
+	}
+
+	/**
+	 * Record a request against its timer and pass it to the listeners.
+	 */
+	void record(String operation, String caller, long nanos, boolean error, long bytesIn, long bytesOut) {
+		String key = operation + ":" + caller;
+		Timer timer = timers.get(key);
+		if (timer == null) {
+			// reset() may clear the map at any time, so keep hold of our own
+			Timer created = new Timer();
+			timer = timers.putIfAbsent(key, created);
+			if (timer == null) {
+				timer = created;
+			}
+		}
+		timer.record(nanos, error, bytesIn, bytesOut);
+		for (MetricsListener listener : listeners) {
+			try {
+				listener.record(operation, caller, nanos, error, bytesIn, bytesOut);
+			} catch (RuntimeException e) {
+				log.warn("Metrics listener {} failed", listener, e);
+			}
+		}
+	}
+
+	/**
+	 * @param listener
+	 *            a listener to receive every measured request
+	 */
+	public void addListener(MetricsListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @param listener
+	 *            a listener to stop notifying
+	 */
+	public void removeListener(MetricsListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Publish these metrics through the platform MBean server, replacing any
+	 * metrics published before.
+	 */
+	void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (JMException e) {
+			log.warn("Failed to register BlobStore metrics with JMX", e);
+		}
+	}
+
+	@Override
+	public Map<String, TimerStats> getTimers() {
+		Map<String, TimerStats> stats = new TreeMap<String, TimerStats>();
+		for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+			stats.put(timer.getKey(), timer.getValue().snapshot());
+		}
+		return stats;
+	}
+
+	/**
+	 * @param operation
+	 *            the BlobStore method
+	 * @param caller
+	 *            the plugin method
+	 * @return TimerStats the statistics, or null if there were no such calls
+	 */
+	public TimerStats getTimer(String operation, String caller) {
+		Timer timer = timers.get(operation + ":" + caller);
+		return timer != null ? timer.snapshot() : null;
+	}
+
+	@Override
+	public void reset() {
+		timers.clear();
+	}
+
+	/**
+	 * Counters and histogram of one operation and caller.
+	 */
+	private static class Timer {
+		/** Longest duration told apart, about 12 days */
+		private static final int MAX_EXPONENT = 40;
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong errors = new AtomicLong();
+
+		private final AtomicLong bytesIn = new AtomicLong();
+
+		private final AtomicLong bytesOut = new AtomicLong();
+
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		private final AtomicLongArray buckets = new AtomicLongArray((MAX_EXPONENT - 1) * 8);
+
+		void record(long nanos, boolean error, long in, long out) {
+			count.incrementAndGet();
+			if (error) {
+				errors.incrementAndGet();
+			}
+			bytesIn.addAndGet(in);
+			bytesOut.addAndGet(out);
+			totalNanos.addAndGet(nanos);
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+			buckets.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMicros(nanos)));
+		}
+
+		static int bucket(long micros) {
+			if (micros < 8) {
+				return (int) Math.max(0, micros);
+			}
+			int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+			int sub = (int) (micros >>> (exponent - 3)) & 7;
+			return (exponent - 2) * 8 + sub;
+		}
+
+		/**
+		 * @return long the largest value, in microseconds, of a bucket
+		 */
+		static long upperBound(int bucket) {
+			if (bucket < 8) {
+				return bucket;
+			}
+			int exponent = bucket / 8 + 2;
+			long lower = (8L + bucket % 8) << (exponent - 3);
+			return lower + (1L << (exponent - 3)) - 1;
+		}
+
+		double percentileMillis(long total, double percentile) {
+			long rank = (long) Math.ceil(percentile / 100 * total);
+			long seen = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return upperBound(i) / 1000.0;
+				}
+			}
+			return upperBound(buckets.length() - 1) / 1000.0;
+		}
+
+		TimerStats snapshot() {
+			long calls = count.get();
+			return new TimerStats(calls, errors.get(), bytesIn.get(), bytesOut.get(),
+					calls == 0 ? 0 : totalNanos.get() / calls / 1e6, calls == 0 ? 0 : percentileMillis(calls, 50),
+					calls == 0 ? 0 : percentileMillis(calls, 95), calls == 0 ? 0 : percentileMillis(calls, 99),
+					maxNanos.get() / 1e6);
+		}
+	}
+
+	/**
+	 * Point in time statistics of one operation and caller.
+	 */
+	public static class TimerStats {
+		private final long count;
+
+		private final long errors;
+
+		private final long bytesIn;
+
+		private final long bytesOut;
+
+		private final double meanMillis;
+
+		private final double p50Millis;
+
+		private final double p95Millis;
+
+		private final double p99Millis;
+
+		private final double maxMillis;
+
+		@ConstructorProperties({ "count", "errors", "bytesIn", "bytesOut", "meanMillis", "p50Millis", "p95Millis",
+				"p99Millis", "maxMillis" })
+		public TimerStats(long count, long errors, long bytesIn, long bytesOut, double meanMillis, double p50Millis,
+				double p95Millis, double p99Millis, double maxMillis) {
+			this.count = count;
+			this.errors = errors;
+			this.bytesIn = bytesIn;
+			this.bytesOut = bytesOut;
+			this.meanMillis = meanMillis;
+			this.p50Millis = p50Millis;
+			this.p95Millis = p95Millis;
+			this.p99Millis = p99Millis;
+			this.maxMillis = maxMillis;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getErrors() {
+			return errors;
+		}
+
+		public long getBytesIn() {
+			return bytesIn;
+		}
+
+		public long getBytesOut() {
+			return bytesOut;
+		}
+
+		public double getMeanMillis() {
+			return meanMillis;
+		}
+
+		public double getP50Millis() {
+			return p50Millis;
+		}
+
+		public double getP95Millis() {
+			return p95Millis;
+		}
+
+		public double getP99Millis() {
+			return p99Millis;
+		}
+
+		public double getMaxMillis() {
+			return maxMillis;
+		}
+	}
+}
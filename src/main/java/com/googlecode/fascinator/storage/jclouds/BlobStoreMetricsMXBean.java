@@ -0,0 +1,38 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link BlobStoreMetrics}.
+ */
+public interface BlobStoreMetricsMXBean {
+
+	/**
+	 * @return Map<String, BlobStoreMetrics.TimerStats> statistics by
+	 *         'operation:caller'
+	 */
+	Map<String, BlobStoreMetrics.TimerStats> getTimers();
+
+	/**
+	 * Start all statistics again from zero.
+	 */
+	void reset();
+}
@@ -0,0 +1,416 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobBuilder;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.googlecode.fascinator.api.storage.StorageException;
+
+/**
+ * Copies every object of one BlobStore container into another, for example
+ * from the 'filesystem' provider into Swift or between Swift regions. The
+ * source container is enumerated one listing page at a time. For each page
+ * the objects are listed, then all their payloads and sidecars are copied in
+ * parallel, then their manifests, so an object only becomes visible to the
+ * plugin on the target once everything it lists is there.
+ * <p>
+ * Each copied blob is verified against the source by size and, where the
+ * target's ETag is a plain MD5 digest, by checksum; multipart and segmented
+ * uploads have ETags that are not, and are only checked by size. Blobs already
+ * on the target with the same size and the same plain MD5 ETag are skipped,
+ * as are those of the same size written to the target after the source last
+ * changed when either ETag is not a plain MD5.
+ * </p>
+ * <p>
+ * Payload metadata is converted between the two ways the plugin keeps it:
+ * from a source that keeps it in '.meta' sidecar blobs to a target that
+ * supports user metadata it is set on the payload blob and the sidecar is not
+ * copied, and the other way round a sidecar is written next to the payload.
+ * </p>
+ * <p>
+ * The listing marker of the next page
+ * is saved to a checkpoint file once a page has copied without failures, so a
+ * re-run resumes from the first incomplete page.
+ * </p>
+ */
+public class BlobStoreMigration {
+
+	/** Logging */
+	private static Logger log = LoggerFactory.getLogger(BlobStoreMigration.class);
+
+	private static final String MARKER_KEY = "marker";
+
+	private final BlobStoreTarget source;
+
+	private final BlobStoreTarget target;
+
+	private final Path checkpointFile;
+
+	private final AtomicLong objects = new AtomicLong();
+
+	private final AtomicLong blobs = new AtomicLong();
+
+	private final AtomicLong skipped = new AtomicLong();
+
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * @param source
+	 *            the BlobStore to copy from
+	 * @param target
+	 *            the BlobStore to copy to
+	 * @param checkpointFile
+	 *            file recording progress, created if missing
+	 */
+	public BlobStoreMigration(BlobStoreTarget source, BlobStoreTarget target, Path checkpointFile) {
+		this.source = source;
+		this.target = target;
+		this.checkpointFile = checkpointFile;
+	}
+
+	/**
+	 * Run (or resume) the migration, blocking until every page is copied.
+	 *
+	 * @throws StorageException
+	 *             if a page could not be copied completely; re-running
+	 *             resumes at that page
+	 */
+	public void run() throws StorageException {
+		String marker = readCheckpoint();
+		long start = System.nanoTime();
+		do {
+			ListContainerOptions options = new ListContainerOptions();
+			if (marker != null) {
+				options.afterMarker(marker);
+			}
+			PageSet<? extends StorageMetadata> page = source.getBlobStore().list(source.getContainerName(), options);
+			List<String> oids = new ArrayList<String>();
+			for (StorageMetadata metadata : page) {
+				if (metadata.getType() == StorageType.FOLDER || metadata.getType() == StorageType.RELATIVE_PATH) {
+					oids.add(metadata.getName());
+				}
+			}
+			copyObjects(oids);
+			marker = page.getNextMarker();
+			writeCheckpoint(marker);
+
+			double seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+			log.info("Migrated {} objects, {} blobs ({} skipped), {} MB at {} MB/s", objects.get(), blobs.get(),
+					skipped.get(), bytes.get() / (1024 * 1024),
+					String.format("%.2f", bytes.get() / (1024 * 1024) / seconds));
+		} while (marker != null);
+	}
+
+	/**
+	 * Copy the objects of one listing page.
+	 */
+	private void copyObjects(List<String> oids) throws StorageException {
+		// 1) List every object's blobs
+		final Queue<String> keys = new ConcurrentLinkedQueue<String>();
+		final Queue<String> manifests = new ConcurrentLinkedQueue<String>();
+		List<Callable<Void>> listings = new ArrayList<Callable<Void>>();
+		for (final String oid : oids) {
+			listings.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					String manifestKey = oid + "/" + BlobStoreDigitalObject.MANIFEST_KEY;
+					for (StorageMetadata blob : BlobStoreClient.listObjectBlobs(source.getBlobStore(),
+							source.getContainerName(), oid)) {
+						if (manifestKey.equals(blob.getName())) {
+							manifests.add(blob.getName());
+						} else {
+							keys.add(blob.getName());
+						}
+					}
+					return null;
+				}
+			});
+		}
+		BlobStoreClient.invokeAll(listings);
+
+		// 2) Payloads and sidecars, then 3) manifests
+		final AtomicInteger failures = new AtomicInteger();
+		Set<String> listed = new HashSet<String>(keys);
+		BlobStoreClient.invokeAll(copyTasks(keys, listed, true, failures));
+		if (failures.get() == 0) {
+			BlobStoreClient.invokeAll(copyTasks(manifests, listed, false, failures));
+		}
+		if (failures.get() > 0) {
+			throw new StorageException(failures.get() + " blobs failed to migrate, re-run to resume");
+		}
+		objects.addAndGet(oids.size());
+	}
+
+	/**
+	 * @param payloads
+	 *            whether the keys are of payloads and sidecars, whose metadata
+	 *            may need converting, rather than manifests
+	 */
+	private List<Callable<Void>> copyTasks(Queue<String> keys, final Set<String> listed, final boolean payloads,
+			final AtomicInteger failures) {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final String key : keys) {
+			if (payloads && sidecarsToUserMetadata() && isSidecar(key, listed)) {
+				// Goes onto its payload's blob instead
+				continue;
+			}
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					try {
+						String sidecar = key + BlobStorePayload.METADATA_SUFFIX;
+						boolean convert = payloads && sidecarsToUserMetadata() && listed.contains(sidecar);
+						copyBlob(key, convert ? sidecar : null);
+						if (payloads && userMetadataToSidecars()) {
+							writeSidecar(key);
+						}
+					} catch (Exception e) {
+						failures.incrementAndGet();
+						log.error("Failed to migrate '{}'", key, e);
+					}
+					return null;
+				}
+			});
+		}
+		return tasks;
+	}
+
+	private boolean sidecarsToUserMetadata() {
+		return !source.supportsUserMetadata() && target.supportsUserMetadata();
+	}
+
+	private boolean userMetadataToSidecars() {
+		return source.supportsUserMetadata() && !target.supportsUserMetadata();
+	}
+
+	/**
+	 * A key is a sidecar if it is its payload's key plus the suffix, and that
+	 * payload was listed too; a payload ID may end in the suffix itself.
+	 */
+	private static boolean isSidecar(String key, Set<String> listed) {
+		return key.endsWith(BlobStorePayload.METADATA_SUFFIX)
+				&& listed.contains(key.substring(0, key.length() - BlobStorePayload.METADATA_SUFFIX.length()));
+	}
+
+	/**
+	 * Copy and verify a single blob, unless the target already has it.
+	 *
+	 * @param sidecar
+	 *            the source sidecar to take the blob's user metadata from, or
+	 *            null to copy its user metadata as it is
+	 */
+	private void copyBlob(String key, String sidecar) throws IOException, StorageException {
+		BlobStore from = source.getBlobStore();
+		BlobStore to = target.getBlobStore();
+		BlobMetadata sourceMetadata = from.blobMetadata(source.getContainerName(), key);
+		if (sourceMetadata == null) {
+			// Removed since it was listed
+			return;
+		}
+		Map<String, String> userMetadata = sourceMetadata.getUserMetadata();
+		if (sidecar != null) {
+			userMetadata = readSidecar(sidecar);
+		}
+		Long length = sourceMetadata.getContentMetadata().getContentLength();
+		BlobMetadata existing = to.blobMetadata(target.getContainerName(), key);
+		if (existing != null && sameLength(length, existing) && sameContent(sourceMetadata, existing)
+				&& (sidecar == null || userMetadata.equals(existing.getUserMetadata()))) {
+			skipped.incrementAndGet();
+			return;
+		}
+
+		Blob blob = from.getBlob(source.getContainerName(), key);
+		HashingInputStream in = new HashingInputStream(Hashing.md5(), blob.getPayload().openStream());
+		try {
+			BlobBuilder.PayloadBlobBuilder builder = to.blobBuilder(key).userMetadata(userMetadata).payload(in);
+			if (length != null) {
+				builder.contentLength(length);
+			}
+			if (sourceMetadata.getContentMetadata().getContentType() != null) {
+				builder.contentType(sourceMetadata.getContentMetadata().getContentType());
+			}
+			to.putBlob(target.getContainerName(), builder.build());
+		} finally {
+			in.close();
+		}
+
+		BlobMetadata copied = to.blobMetadata(target.getContainerName(), key);
+		if (copied == null || !sameLength(length, copied)) {
+			throw new StorageException("Size mismatch after copying '" + key + "'");
+		}
+		String etag = normalise(copied.getETag());
+		if (isPlainMd5(etag) && !etag.equals(in.hash().toString())) {
+			throw new StorageException("Checksum mismatch after copying '" + key + "'");
+		}
+		blobs.incrementAndGet();
+		if (length != null) {
+			bytes.addAndGet(length);
+		}
+	}
+
+	/**
+	 * Whether a blob on the target holds the source's content, as far as the
+	 * ETags tell. Multipart and segmented uploads have ETags that are not an
+	 * MD5 of the content and differ between stores for the same content, so
+	 * unless both are plain MD5s the target copy only has to be newer.
+	 */
+	private boolean sameContent(BlobMetadata sourceMetadata, BlobMetadata existing) {
+		String sourceETag = normalise(sourceMetadata.getETag());
+		String existingETag = normalise(existing.getETag());
+		if (isPlainMd5(sourceETag) && isPlainMd5(existingETag)) {
+			return sourceETag.equals(existingETag);
+		}
+		return sourceMetadata.getLastModified() != null && existing.getLastModified() != null
+				&& !existing.getLastModified().before(sourceMetadata.getLastModified());
+	}
+
+	/**
+	 * @return boolean whether an ETag is the hex MD5 of the content, and not
+	 *         that of a multipart ('-' and a part count) or segmented upload
+	 */
+	private static boolean isPlainMd5(String etag) {
+		return etag.indexOf('-') < 0 && etag.matches("[0-9a-f]{32}");
+	}
+
+	private Map<String, String> readSidecar(String sidecar) throws IOException {
+		Map<String, String> userMetadata = new HashMap<String, String>();
+		Blob sidecarBlob = source.getBlobStore().getBlob(source.getContainerName(), sidecar);
+		if (sidecarBlob == null) {
+			return userMetadata;
+		}
+		Properties properties = new Properties();
+		try (InputStream in = sidecarBlob.getPayload().openStream()) {
+			properties.load(in);
+		}
+		for (String name : properties.stringPropertyNames()) {
+			userMetadata.put(name, properties.getProperty(name));
+		}
+		return userMetadata;
+	}
+
+	/**
+	 * Write the user metadata of a source payload as its sidecar on the
+	 * target.
+	 */
+	private void writeSidecar(String key) throws IOException {
+		BlobMetadata sourceMetadata = source.getBlobStore().blobMetadata(source.getContainerName(), key);
+		if (sourceMetadata == null || sourceMetadata.getUserMetadata().isEmpty()) {
+			return;
+		}
+		Properties properties = new Properties();
+		properties.putAll(sourceMetadata.getUserMetadata());
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		properties.store(output, null);
+		BlobStore to = target.getBlobStore();
+		to.putBlob(target.getContainerName(), to.blobBuilder(key + BlobStorePayload.METADATA_SUFFIX)
+				.payload(output.toByteArray()).contentLength(output.size()).build());
+	}
+
+	private boolean sameLength(Long length, BlobMetadata metadata) {
+		return length == null || length.equals(metadata.getContentMetadata().getContentLength());
+	}
+
+	private String normalise(String etag) {
+		return etag == null ? "" : etag.replace("\"", "").toLowerCase();
+	}
+
+	private String readCheckpoint() throws StorageException {
+		if (!Files.exists(checkpointFile)) {
+			return null;
+		}
+		Properties checkpoint = new Properties();
+		try (InputStream in = Files.newInputStream(checkpointFile)) {
+			checkpoint.load(in);
+		} catch (IOException e) {
+			throw new StorageException("Failed to read checkpoint " + checkpointFile, e);
+		}
+		return checkpoint.getProperty(MARKER_KEY);
+	}
+
+	private void writeCheckpoint(String marker) throws StorageException {
+		Properties checkpoint = new Properties();
+		if (marker != null) {
+			checkpoint.setProperty(MARKER_KEY, marker);
+		}
+		try (OutputStream out = Files.newOutputStream(checkpointFile)) {
+			checkpoint.store(out, "Blobstore migration progress");
+		} catch (IOException e) {
+			throw new StorageException("Failed to write checkpoint " + checkpointFile, e);
+		}
+	}
+
+	/**
+	 * @return long the number of objects migrated so far
+	 */
+	public long getObjectCount() {
+		return objects.get();
+	}
+
+	/**
+	 * @return long the number of blobs copied so far
+	 */
+	public long getBlobCount() {
+		return blobs.get();
+	}
+
+	/**
+	 * @return long the number of blobs skipped as already present
+	 */
+	public long getSkippedCount() {
+		return skipped.get();
+	}
+
+	/**
+	 * @return long the number of bytes copied so far
+	 */
+	public long getByteCount() {
+		return bytes.get();
+	}
+}
@@ -22,21 +22,30 @@ package com.googlecode.fascinator.storage.jclouds;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.kahadb.util.ByteArrayInputStream;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.options.CopyOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.io.ByteSource;
 import com.googlecode.fascinator.api.storage.PayloadType;
 import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonObject;
 import com.googlecode.fascinator.common.MimeTypeUtil;
 import com.googlecode.fascinator.common.storage.impl.GenericPayload;
 
@@ -52,7 +61,12 @@ public class BlobStorePayload extends GenericPayload {
 
 	private static final String PAYLOAD_TYPE_KEY = "payloadtype";
 
-	private static final String METADATA_SUFFIX = ".meta";
+	private static final String LAST_MODIFIED_KEY = "lastmodified";
+
+	static final String METADATA_SUFFIX = ".meta";
+
+	/** Manifest record key holding the Base64 content of an inline payload */
+	static final String INLINE_CONTENT_KEY = "inline";
 
 	/** Logging */
 	private Logger log = LoggerFactory.getLogger(BlobStorePayload.class);
@@ -62,45 +76,209 @@ public class BlobStorePayload extends GenericPayload {
 
 	private String location;
 
+	/** Whether the blob was found in storage when last loaded */
+	private boolean stored;
+
+	/** Time of the last metadata write, which may be newer than the blob */
+	private Long metadataModified;
+
+	/** Whether metadata has been altered since it was loaded or written */
+	private boolean dirty;
+
+	/** Metadata of the content while it is demoted to cold storage */
+	private BlobMetadata demoted;
+
+	/** Whether the blob's payload was released by close() */
+	private boolean released;
+
+	/** Streams handed out by open() which close() should release */
+	private List<InputStream> openStreams = new ArrayList<InputStream>();
+
+	/** The object owning this payload, which persists inline payloads */
+	private BlobStoreDigitalObject owner;
+
+	/** Content of a payload kept in its object's manifest, not its own blob */
+	private byte[] inlineContent;
+
+	/** Whether the blob this payload had before it went inline awaits removal */
+	private boolean superseded;
+
 	public BlobStorePayload(String oid, String pid) throws StorageException {
 		super(pid);
 		this.oid = oid;
 		location = oid + "/" + pid;
 	}
 
+	/**
+	 * Constructor for payloads of an object which may be stored inline in the
+	 * object's manifest if they are small enough.
+	 *
+	 * @param owner
+	 *            the object this payload belongs to
+	 * @param pid
+	 *            the Payload ID
+	 * @throws StorageException
+	 *             if any errors occur
+	 */
+	BlobStorePayload(BlobStoreDigitalObject owner, String pid) throws StorageException {
+		this(owner.getId(), pid);
+		this.owner = owner;
+	}
+
+	/**
+	 * Instantiate an inline payload from its manifest record, without any
+	 * remote requests.
+	 *
+	 * @param owner
+	 *            the object this payload belongs to
+	 * @param record
+	 *            the payload's manifest record
+	 * @return BlobStorePayload the payload
+	 * @throws StorageException
+	 *             if any errors occur
+	 */
+	static BlobStorePayload fromInlineRecord(BlobStoreDigitalObject owner, JsonObject record)
+			throws StorageException {
+		BlobStorePayload payload = new BlobStorePayload(owner, (String) record.get("name"));
+		payload.inlineContent = Base64.getDecoder().decode((String) record.get(INLINE_CONTENT_KEY));
+		Map<String, String> userMetadata = new HashMap<String, String>();
+		for (Object key : record.keySet()) {
+			if (record.get(key) != null) {
+				userMetadata.put(key.toString(), record.get(key).toString());
+			}
+		}
+		payload.loadBlob();
+		payload.applyUserMetadata(userMetadata);
+		payload.dirty = false;
+		return payload;
+	}
+
+	/**
+	 * The manifest record of an inline payload, holding its metadata and
+	 * content.
+	 *
+	 * @return JsonObject the record, without the 'name' and 'type' entries
+	 *         the manifest adds to every payload
+	 */
+	JsonObject toInlineRecord() {
+		JsonObject record = new JsonObject();
+		record.putAll(buildUserMetadata());
+		if (metadataModified != null) {
+			record.put(LAST_MODIFIED_KEY, String.valueOf(metadataModified));
+		}
+		record.put(INLINE_CONTENT_KEY, Base64.getEncoder().encodeToString(inlineContent));
+		return record;
+	}
+
+	/**
+	 * Remove the blob and metadata this payload had before its content moved
+	 * inline. The owner calls this after writing the manifest; whatever is
+	 * left behind by a failure here is removed by the {@link OrphanSweeper}.
+	 */
+	void removeSupersededBlob() {
+		if (!superseded) {
+			return;
+		}
+		superseded = false;
+		try {
+			BlobStoreClient.getClient().removeBlobs(BlobStoreClient.getContainerName(),
+					Arrays.asList(location, location + METADATA_SUFFIX));
+			if (BlobStoreClient.getColdStorage() != null) {
+				BlobStoreClient.getColdStorage().removePayload(location);
+			}
+		} catch (Exception e) {
+			log.warn("Failed to remove the blob of inline payload '{}', leaving it to the orphan sweeper",
+					location, e);
+		}
+	}
+
+	/**
+	 * @return boolean whether this payload is stored inline in its object's
+	 *         manifest
+	 */
+	boolean isInline() {
+		return inlineContent != null;
+	}
+
 	private void loadBlob() throws StorageException {
-		if (BlobStoreClient.getClient().blobExists(BlobStoreClient.getContainerName(), location)) {
-			blob = BlobStoreClient.getClient().getBlob(BlobStoreClient.getContainerName(), location);
+		loadBlob(true);
+	}
 
-			Map<String, String> userMetaData;
-			try {
-				userMetaData = getUserMetadata(blob);
+	/**
+	 * Load the metadata of this payload, leaving demoted content in cold
+	 * storage.
+	 */
+	private void loadMetadata() throws StorageException {
+		loadBlob(false);
+	}
 
-				if (StringUtils.isNotEmpty(userMetaData.get(PAYLOAD_TYPE_KEY))) {
-					setType(PayloadType.valueOf(userMetaData.get(PAYLOAD_TYPE_KEY)));
+	private void loadBlob(boolean content) throws StorageException {
+		try (PluginOperation operation = PluginOperation.enter("loadBlob")) {
+			demoted = null;
+			if (inlineContent != null) {
+				// Metadata came with the manifest record, only the blob is local
+				blob = BlobStoreClient.getClient().blobBuilder(location).payload(inlineContent)
+						.contentLength(inlineContent.length).build();
+				stored = true;
+				released = false;
+				return;
+			}
+			boolean exists = BlobStoreClient.getClient().blobExists(BlobStoreClient.getContainerName(), location);
+			ColdStorage coldStorage = BlobStoreClient.getColdStorage();
+			if (!exists && coldStorage != null) {
+				if (content) {
+					// Demoted content comes back when it is opened
+					exists = coldStorage.promote(location);
+				} else {
+					demoted = coldStorage.getMetadata(location);
 				}
-				setLabel(userMetaData.get(LABEL_KEY));
-				setContentType(userMetaData.get(CONTENT_TYPE_KEY));
-			} catch (IOException e) {
-				throw new StorageException("Failed to retrieve payload metadata", e);
 			}
-		} else {
-			BlobStore blobStore = BlobStoreClient.getClient();
-			blob = blobStore.blobBuilder(location).build();
+			if (demoted != null || exists) {
+				if (demoted != null) {
+					blob = BlobStoreClient.getClient().blobBuilder(location).build();
+				} else {
+					blob = BlobStoreClient.getClient().getBlob(BlobStoreClient.getContainerName(), location);
+				}
+
+				Map<String, String> userMetaData;
+				try {
+					userMetaData = getUserMetadata(demoted != null ? demoted : blob.getMetadata());
+					applyUserMetadata(userMetaData);
+				} catch (IOException e) {
+					throw new StorageException("Failed to retrieve payload metadata", e);
+				}
+				stored = true;
+			} else {
+				BlobStore blobStore = BlobStoreClient.getClient();
+				blob = blobStore.blobBuilder(location).build();
+				stored = false;
+			}
+			// Values just read from storage are not changes
+			dirty = false;
+			released = false;
 		}
 	}
 
-	private Map<String, String> getUserMetadata(Blob blob2) throws StorageException, IOException {
-		if (blob == null) {
-			loadBlob();
+	private void applyUserMetadata(Map<String, String> userMetaData) {
+		if (StringUtils.isNotEmpty(userMetaData.get(PAYLOAD_TYPE_KEY))) {
+			setType(PayloadType.valueOf(userMetaData.get(PAYLOAD_TYPE_KEY)));
+		}
+		setLabel(userMetaData.get(LABEL_KEY));
+		setContentType(userMetaData.get(CONTENT_TYPE_KEY));
+		if (StringUtils.isNotEmpty(userMetaData.get(LAST_MODIFIED_KEY))) {
+			metadataModified = Long.valueOf(userMetaData.get(LAST_MODIFIED_KEY));
 		}
+	}
+
+	private Map<String, String> getUserMetadata(BlobMetadata metadata) throws StorageException, IOException {
 		if (BlobStoreClient.supportsUserMetadata()) {
-			Map<String, String> properties = blob.getMetadata().getUserMetadata();
+			Map<String, String> properties = metadata.getUserMetadata();
 
 			return properties;
 		} else {
+			// The sidecar stays in the plugin's container when content is demoted
 			Blob metaBlob = BlobStoreClient.getClient().getBlob(BlobStoreClient.getContainerName(),
-					blob.getMetadata().getName() + METADATA_SUFFIX);
+					location + METADATA_SUFFIX);
 			Properties properties = new Properties();
 			properties.load(metaBlob.getPayload().openStream());
 
@@ -117,33 +295,57 @@ public class BlobStorePayload extends GenericPayload {
 	 */
 	@Override
 	public InputStream open() throws StorageException {
-		if (blob == null) {
-			loadBlob();
-		}
-		try {
-			return blob.getPayload().openStream();
-		} catch (IOException ex) {
-			log.error("Error accessing Blob store: ", ex);
-			return null;
+		try (PluginOperation operation = PluginOperation.enter("open")) {
+			if (blob == null || released || demoted != null) {
+				loadBlob();
+			}
+			if (inlineContent == null && BlobStoreClient.getColdStorage() != null) {
+				BlobStoreClient.getColdStorage().recordRead(location);
+			}
+			try {
+				InputStream in = blob.getPayload().openStream();
+				openStreams.add(in);
+				return in;
+			} catch (IOException ex) {
+				log.error("Error accessing Blob store: ", ex);
+				return null;
+			}
+		} catch (ResilientBlobStore.BlobStoreUnavailableException e) {
+			throw new StorageException(e.getMessage(), e);
 		}
 	}
 
 	/**
-	 * the input stream for this payload
+	 * Close this payload, persisting its metadata only if it was changed since
+	 * it was loaded. Content is always persisted by writePayload() so nothing
+	 * remains to be uploaded here. Streams handed out by open() and the blob's
+	 * own payload are released either way.
 	 *
 	 * @throws StorageException
-	 *             if there was an error closing the stream
+	 *             if there was an error persisting changed metadata
 	 */
 	@Override
 	public void close() throws StorageException {
-		if (blob != null) {
+		try (PluginOperation operation = PluginOperation.enter("close")) {
+			if (blob == null) {
+				return;
+			}
 			try {
-				writePayload(blob.getPayload().openStream(), false);
-			} catch (Exception e) {
-				throw new StorageException("Failed to close stream", e);
+				if (dirty) {
+					updateMetadata();
+				}
+			} finally {
+				for (InputStream in : openStreams) {
+					IOUtils.closeQuietly(in);
+				}
+				openStreams.clear();
+				if (blob.getPayload() != null) {
+					blob.getPayload().release();
+				}
+				released = true;
 			}
-			blob = BlobStoreClient.getClient().getBlob(BlobStoreClient.getContainerName(),
-					blob.getMetadata().getName());
+		} catch (ResilientBlobStore.BlobStoreUnavailableException e) {
+			throw new StorageException(e.getMessage(), e);
 		}
 	}
 
@@ -154,22 +356,38 @@ public class BlobStorePayload extends GenericPayload {
 	 */
 	@Override
 	public Long lastModified() {
-		try {
-			if (blob == null) {
-				loadBlob();
-			}
-			if (blob.getMetadata().getLastModified() == null) {
-				// Payload objects stored into the blob store may not have their
-				// timestamp so we'll re-fetch it
+		try (PluginOperation operation = PluginOperation.enter("lastModified")) {
+			try {
+				if (blob == null) {
+					loadMetadata();
+				}
+				if (inlineContent != null) {
+					return metadataModified;
+				}
+				if (demoted != null) {
+					// The cold copy is as old as the demotion, not the content
+					if (metadataModified != null || demoted.getLastModified() == null) {
+						return metadataModified;
+					}
+					return demoted.getLastModified().getTime();
+				}
+				if (blob.getMetadata().getLastModified() == null) {
+					// Payload objects stored into the blob store may not have their
+					// timestamp so we'll re-fetch it
 
-				blob = BlobStoreClient.getClient().getBlob(BlobStoreClient.getContainerName(),
-						blob.getMetadata().getName());
+					blob = BlobStoreClient.getClient().getBlob(BlobStoreClient.getContainerName(),
+							blob.getMetadata().getName());
 
-			}
+				}
 
-			return blob.getMetadata().getLastModified().getTime();
-		} catch (StorageException e) {
-			throw new RuntimeException("Failed to get payload size", e);
+				long blobModified = blob.getMetadata().getLastModified().getTime();
+				if (metadataModified != null && metadataModified > blobModified) {
+					return metadataModified;
+				}
+				return blobModified;
+			} catch (StorageException e) {
+				throw new RuntimeException("Failed to get payload size", e);
+			}
 		}
 	}
 
@@ -180,21 +398,26 @@ public class BlobStorePayload extends GenericPayload {
 	 */
 	@Override
 	public Long size() {
-		try {
-			if (blob == null) {
-				loadBlob();
-			}
-			if (blob.getPayload().getContentMetadata().getContentLength() == null) {
-				// Payload objects stored into the blob store may not have their
-				// content length so we need to re-fetch it
+		try (PluginOperation operation = PluginOperation.enter("size")) {
+			try {
+				if (blob == null) {
+					loadMetadata();
+				}
+				if (demoted != null) {
+					return demoted.getContentMetadata().getContentLength();
+				}
+				if (blob.getPayload().getContentMetadata().getContentLength() == null) {
+					// Payload objects stored into the blob store may not have their
+					// content length so we need to re-fetch it
 
-				blob = BlobStoreClient.getClient().getBlob(BlobStoreClient.getContainerName(),
-						blob.getMetadata().getName());
+					blob = BlobStoreClient.getClient().getBlob(BlobStoreClient.getContainerName(),
+							blob.getMetadata().getName());
 
+				}
+				return blob.getPayload().getContentMetadata().getContentLength();
+			} catch (StorageException e) {
+				throw new RuntimeException("Failed to get payload size", e);
 			}
-			return blob.getPayload().getContentMetadata().getContentLength();
-		} catch (StorageException e) {
-			throw new RuntimeException("Failed to get payload size", e);
 		}
 	}
 
@@ -206,7 +429,7 @@ public class BlobStorePayload extends GenericPayload {
 	public String getLabel() {
 		try {
 			if (blob == null) {
-				loadBlob();
+				loadMetadata();
 			}
 		} catch (StorageException e) {
 			throw new RuntimeException("Failed to get payload label", e);
@@ -218,7 +441,7 @@ public class BlobStorePayload extends GenericPayload {
 	public PayloadType getType() {
 		try {
 			if (blob == null) {
-				loadBlob();
+				loadMetadata();
 			}
 		} catch (StorageException e) {
 			throw new RuntimeException("Failed to get payload type", e);
@@ -230,19 +453,56 @@ public class BlobStorePayload extends GenericPayload {
 	public void setType(PayloadType type) {
 		try {
 			if (blob == null) {
-				loadBlob();
+				loadMetadata();
 			}
 		} catch (StorageException e) {
 			throw new RuntimeException("Failed to set payload type", e);
 		}
 		super.setType(type);
+		dirty = true;
+	}
+
+	@Override
+	public void setLabel(String label) {
+		try {
+			// location is unset while GenericPayload is still constructing
+			if (blob == null && location != null) {
+				loadMetadata();
+			}
+		} catch (StorageException e) {
+			throw new RuntimeException("Failed to set payload label", e);
+		}
+		super.setLabel(label);
+		dirty = true;
+	}
+
+	@Override
+	public void setContentType(String contentType) {
+		try {
+			if (blob == null && location != null) {
+				loadMetadata();
+			}
+		} catch (StorageException e) {
+			throw new RuntimeException("Failed to set payload content type", e);
+		}
+		super.setContentType(contentType);
+		dirty = true;
+	}
+
+	/**
+	 * Whether this payload has metadata changes that close() would persist.
+	 *
+	 * @return boolean true if metadata changed since it was loaded or written
+	 */
+	public boolean isDirty() {
+		return dirty;
 	}
 
 	@Override
 	public String getContentType() {
 		try {
 			if (blob == null) {
-				loadBlob();
+				loadMetadata();
 			}
 		} catch (StorageException e) {
 			throw new RuntimeException("Failed to get payload type", e);
@@ -251,26 +511,217 @@ public class BlobStorePayload extends GenericPayload {
 	}
 
 	public void writePayload(InputStream in, boolean determineContentType) throws StorageException {
-		if (getLabel() == null) {
-			setLabel(getId());
-		}
-		if (getType() == null) {
-			setType(PayloadType.Source);
-		}
-		byte[] bytes = null;
-		if (determineContentType) {
-			// We need to read the stream locally to determine the content type
+		writePayload(in, determineContentType, null);
+	}
+
+	/**
+	 * Write content whose length is known in advance, streaming it straight
+	 * to the BlobStore without buffering it to determine the content type.
+	 *
+	 * @param in
+	 *            an InputStream containing the data to store
+	 * @param length
+	 *            the number of bytes in the stream
+	 * @throws StorageException
+	 *             if the content could not be stored
+	 */
+	void writePayload(InputStream in, long length) throws StorageException {
+		writePayload(in, false, Long.valueOf(length));
+	}
+
+	private void writePayload(InputStream in, boolean determineContentType, Long length) throws StorageException {
+		try (PluginOperation operation = PluginOperation.enter("writePayload")) {
+			if (getLabel() == null) {
+				setLabel(getId());
+			}
+			if (getType() == null) {
+				setType(PayloadType.Source);
+			}
+			byte[] bytes = null;
+			if (determineContentType) {
+				// We need to read the stream locally to determine the content type
+				try {
+
+					bytes = IOUtils.toByteArray(in);
+					setContentType(MimeTypeUtil.getMimeType(bytes,  getId()));
+
+				} catch (IOException e) {
+					throw new StorageException("Failed to determine content type", e);
+				}
+			}
+			String payloadPath = oid + "/" + getId();
+
+			Map<String, String> userMetadata = buildUserMetadata();
+
+			BlobStore blobStore = BlobStoreClient.getClient();
+
+			if (bytes != null && owner != null && bytes.length <= BlobStoreClient.getInlineThreshold()) {
+				// Small enough to live in the manifest, which the owner writes.
+				// The old blob goes once the manifest no longer refers to it.
+				if (stored && inlineContent == null) {
+					superseded = true;
+				}
+				inlineContent = bytes;
+				metadataModified = Long.valueOf(userMetadata.get(LAST_MODIFIED_KEY));
+				loadBlob();
+				dirty = false;
+				return;
+			}
+			inlineContent = null;
+
+			if (bytes != null) {
+
+				blob = blobStore.blobBuilder(payloadPath).userMetadata(userMetadata).build();
+				blob.setPayload(ByteSource.wrap(bytes));
+			} else {
+				blob = blobStore.blobBuilder(payloadPath).userMetadata(userMetadata).build();
+				blob.setPayload(in);
+				if (length != null) {
+					blob.getPayload().getContentMetadata().setContentLength(length);
+				}
+			}
+
+			ColdStorage coldStorage = BlobStoreClient.getColdStorage();
+			if (coldStorage != null) {
+				coldStorage.beginWrite(payloadPath);
+			}
 			try {
+				blobStore.putBlob(BlobStoreClient.getContainerName(), blob);
+			} finally {
+				if (coldStorage != null) {
+					coldStorage.endWrite(payloadPath);
+				}
+			}
+			if (demoted != null) {
+				// The new content is hot, the demoted copy is stale
+				coldStorage.removePayload(payloadPath);
+				demoted = null;
+			}
+			if (!BlobStoreClient.supportsUserMetadata()) {
+				writePayloadMetadata(userMetadata);
+			}
+			stored = true;
+			dirty = false;
+			released = false;
+			metadataModified = Long.valueOf(userMetadata.get(LAST_MODIFIED_KEY));
+		} catch (ResilientBlobStore.BlobStoreUnavailableException e) {
+			throw new StorageException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Asynchronous version of {@link #open()}.
+	 *
+	 * @return CompletableFuture<InputStream> the future content stream
+	 */
+	public CompletableFuture<InputStream> openAsync() {
+		return BlobStoreClient.supplyAsync(new Callable<InputStream>() {
+			@Override
+			public InputStream call() throws StorageException {
+				return open();
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of {@link #close()}.
+	 *
+	 * @return CompletableFuture<Void> completes once the payload is closed
+	 */
+	public CompletableFuture<Void> closeAsync() {
+		return BlobStoreClient.supplyAsync(new Callable<Void>() {
+			@Override
+			public Void call() throws StorageException {
+				close();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of {@link #writePayload(InputStream)}.
+	 *
+	 * @param in
+	 *            an InputStream containing the data to store
+	 * @return CompletableFuture<Void> completes once the content is stored
+	 */
+	public CompletableFuture<Void> writePayloadAsync(final InputStream in) {
+		return BlobStoreClient.supplyAsync(new Callable<Void>() {
+			@Override
+			public Void call() throws StorageException {
+				writePayload(in);
+				return null;
+			}
+		});
+	}
 
-				bytes = IOUtils.toByteArray(in);
-				setContentType(MimeTypeUtil.getMimeType(bytes,  getId()));
+	/**
+	 * Asynchronous version of {@link #updateMetadata()}.
+	 *
+	 * @return CompletableFuture<Void> completes once the metadata is stored
+	 */
+	public CompletableFuture<Void> updateMetadataAsync() {
+		return BlobStoreClient.supplyAsync(new Callable<Void>() {
+			@Override
+			public Void call() throws StorageException {
+				updateMetadata();
+				return null;
+			}
+		});
+	}
 
-			} catch (IOException e) {
-				throw new StorageException("Failed to determine content type", e);
+	/**
+	 * Persist the label, type and content type of this payload without
+	 * re-sending its content. Providers that keep user metadata on the blob get
+	 * a server-side copy of the blob onto itself with the metadata replaced,
+	 * otherwise only the metadata sidecar is rewritten. Either way the cost is
+	 * independent of the payload size.
+	 *
+	 * @throws StorageException
+	 *             if the payload is not in storage or the update fails
+	 */
+	public void updateMetadata() throws StorageException {
+		try (PluginOperation operation = PluginOperation.enter("updateMetadata")) {
+			if (blob == null) {
+				loadMetadata();
+			}
+			if (!stored) {
+				throw new StorageException("Payload '" + location + "' does not exist in storage");
+			}
+			Map<String, String> userMetadata = buildUserMetadata();
+			if (inlineContent != null) {
+				metadataModified = Long.valueOf(userMetadata.get(LAST_MODIFIED_KEY));
+				dirty = false;
+				owner.updateInlinePayload(this);
+				return;
+			}
+			ColdStorage coldStorage = BlobStoreClient.getColdStorage();
+			if (BlobStoreClient.supportsUserMetadata() && demoted != null) {
+				coldStorage.updateMetadata(location, userMetadata);
+			} else if (BlobStoreClient.supportsUserMetadata()) {
+				if (coldStorage != null) {
+					coldStorage.beginWrite(location);
+				}
+				try {
+					BlobStoreClient.getClient().copyBlob(BlobStoreClient.getContainerName(), location,
+							BlobStoreClient.getContainerName(), location,
+							CopyOptions.builder().userMetadata(userMetadata).build());
+				} finally {
+					if (coldStorage != null) {
+						coldStorage.endWrite(location);
+					}
+				}
+			} else {
+				writePayloadMetadata(userMetadata);
 			}
+			dirty = false;
+			metadataModified = Long.valueOf(userMetadata.get(LAST_MODIFIED_KEY));
+		} catch (ResilientBlobStore.BlobStoreUnavailableException e) {
+			throw new StorageException(e.getMessage(), e);
 		}
-		String payloadPath = oid + "/" + getId();
+	}
 
+	private Map<String, String> buildUserMetadata() {
 		Map<String, String> userMetadata = new HashMap<String, String>();
 
 		userMetadata.put("id", getId());
@@ -283,23 +734,8 @@ public class BlobStorePayload extends GenericPayload {
 		} else {
 			userMetadata.put(CONTENT_TYPE_KEY, MimeTypeUtil.DEFAULT_MIME_TYPE);
 		}
-
-		BlobStore blobStore = BlobStoreClient.getClient();
-
-		if (bytes != null) {
-
-			blob = blobStore.blobBuilder(payloadPath).userMetadata(userMetadata).build();
-			blob.setPayload(ByteSource.wrap(bytes));
-		} else {
-			blob = blobStore.blobBuilder(payloadPath).userMetadata(userMetadata).build();
-			blob.setPayload(in);
-		}
-
-		blobStore.putBlob(BlobStoreClient.getContainerName(), blob);
-		if (!BlobStoreClient.supportsUserMetadata()) {
-			writePayloadMetadata(userMetadata);
-		}
-
+		userMetadata.put(LAST_MODIFIED_KEY, String.valueOf(System.currentTimeMillis()));
+		return userMetadata;
 	}
 
 	private void writePayloadMetadata(Map<String, String> userMetadata) throws StorageException {
@@ -315,7 +751,7 @@ public class BlobStorePayload extends GenericPayload {
 			throw new StorageException("Failed to write payload metadata", e);
 		}
 		InputStream input = new ByteArrayInputStream(output.toByteArray());
-		Blob metadataBlob = blobStore.blobBuilder(blob.getMetadata().getName() + METADATA_SUFFIX).build();
+		Blob metadataBlob = blobStore.blobBuilder(location + METADATA_SUFFIX).build();
 		metadataBlob.setPayload(input);
 		blobStore.putBlob(BlobStoreClient.getContainerName(), metadataBlob);
 	}
@@ -21,12 +21,21 @@ package com.googlecode.fascinator.storage.jclouds;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 
+import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.domain.PageSet;
 import org.jclouds.blobstore.domain.StorageMetadata;
 import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.CopyOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -72,6 +81,12 @@ import com.googlecode.fascinator.common.JsonSimpleConfig;
  * <td></td>
  * </tr>
  * <tr>
+ * <td>endpoint</td>
+ * <td>The authentication endpoint, for providers that need one</td>
+ * <td>No</td>
+ * <td>https://keystone.rc.nectar.org.au:5000/v2.0</td>
+ * </tr>
+ * <tr>
  * <td>containerName</td>
  * <td>The name of the container to place the objects</td>
  * <td>Yes</td>
@@ -100,6 +115,177 @@ import com.googlecode.fascinator.common.JsonSimpleConfig;
  * <td>No</td>
  * <td>true</td>
  * </tr>
+ * <tr>
+ * <td>ioThreads</td>
+ * <td>The number of threads used for BlobStore requests that run in parallel,
+ * such as copying or deleting all blobs of an object.</td>
+ * <td>No</td>
+ * <td>8</td>
+ * </tr>
+ * <tr>
+ * <td>deleteBatchSize</td>
+ * <td>The number of blobs removed per request when an object is removed.
+ * Batches run in parallel and use bulk delete where the provider supports
+ * it.</td>
+ * <td>No</td>
+ * <td>100</td>
+ * </tr>
+ * <tr>
+ * <td>orphanSweep</td>
+ * <td>Background removal of payload blobs and metadata sidecars missing from
+ * their object's manifest. An object with 'enabled' (default false),
+ * 'intervalMinutes' (default 60), 'requestsPerSecond' (the I/O budget, default
+ * 10), 'threads' (objects swept in parallel within that budget, default 2) and
+ * 'gracePeriodMinutes' (minimum age of an orphan, default 60).</td>
+ * <td>No</td>
+ * <td>disabled</td>
+ * </tr>
+ * <tr>
+ * <td>asyncThreads</td>
+ * <td>The number of threads running the asynchronous (...Async) operations of
+ * this plugin, unless an executor is supplied with setAsyncExecutor(). jclouds
+ * blocks while a request runs, so every operation in flight takes one thread
+ * for its whole duration: this is the number of asynchronous operations
+ * running at once, and further ones wait in an unbounded queue.</td>
+ * <td>No</td>
+ * <td>64</td>
+ * </tr>
+ * <tr>
+ * <td>inlineThreshold</td>
+ * <td>Payloads of at most this many bytes are stored inside their object's
+ * manifest instead of their own blob, so opening the object delivers them
+ * without further requests. 0 disables inline storage.</td>
+ * <td>No</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>connectTimeoutMillis</td>
+ * <td>Time allowed to open a connection to the BlobStore.</td>
+ * <td>No</td>
+ * <td>10000</td>
+ * </tr>
+ * <tr>
+ * <td>readTimeoutMillis</td>
+ * <td>Time allowed between bytes of a BlobStore response.</td>
+ * <td>No</td>
+ * <td>60000</td>
+ * </tr>
+ * <tr>
+ * <td>retry</td>
+ * <td>Retries of requests failing with a socket error or timeout, a refused
+ * connection or HTTP 408, 429 or 5xx. An object with 'maxAttempts'
+ * (including the first, default 3), 'baseDelayMillis' (default 100),
+ * 'maxDelayMillis' (default 5000) and 'operationTimeoutSeconds' (no retry
+ * starts after this, default 120). Backoff is exponential with full jitter.
+ * Puts of streamed content are not retried since the stream cannot be read
+ * twice.</td>
+ * <td>No</td>
+ * <td>3 attempts</td>
+ * </tr>
+ * <tr>
+ * <td>circuitBreaker</td>
+ * <td>Fail requests fast while the BlobStore is down. An object with
+ * 'failureThreshold' (consecutive transient failures opening the circuit, 0
+ * disables it, default 5) and 'openSeconds' (time before a trial request,
+ * default 30).</td>
+ * <td>No</td>
+ * <td>5 failures</td>
+ * </tr>
+ * <tr>
+ * <td>metrics</td>
+ * <td>Timers with latency percentiles and counters of calls, errors and bytes
+ * for every BlobStore request, by BlobStore method and by the plugin method
+ * that caused it. An object with 'enabled' (default false), 'jmx' (publish as
+ * com.googlecode.fascinator.storage.jclouds:type=BlobStoreMetrics, default
+ * true) and 'listeners' (class names of MetricsListener implementations to
+ * forward every request to, for other metrics libraries).</td>
+ * <td>No</td>
+ * <td>disabled</td>
+ * </tr>
+ * <tr>
+ * <td>decorators</td>
+ * <td>BlobStoreDecorator implementations to wrap around the provider's
+ * client, innermost first, for example to emulate a remote provider in tests
+ * and benchmarks. An array of objects with 'class' (the class name) and any
+ * options of the decorator.</td>
+ * <td>No</td>
+ * <td>none</td>
+ * </tr>
+ * <tr>
+ * <td>jfr</td>
+ * <td>Java Flight Recorder events for every BlobStore request (operation,
+ * plugin method, container, key, bytes, outcome and duration) and for every
+ * manifest build, under the 'Fascinator' category of recordings. An object
+ * with 'enabled' (default true); ignored where the JVM has no Flight
+ * Recorder.</td>
+ * <td>No</td>
+ * <td>enabled</td>
+ * </tr>
+ * <tr>
+ * <td>accounting</td>
+ * <td>Count the BlobStore requests and bytes of every top-level plugin
+ * operation, available afterwards from CallAccounting.lastOperation() on the
+ * calling thread. An object with 'enabled' (default false) and 'callBudget'
+ * (operations making more requests are logged with a breakdown, default 0 to
+ * log none).</td>
+ * <td>No</td>
+ * <td>disabled</td>
+ * </tr>
+ * <tr>
+ * <td>concurrency</td>
+ * <td>Adaptive limits on concurrent reads, writes and listings. Each limit
+ * halves when the BlobStore signals overload (HTTP 429 or 503, or a timeout)
+ * and grows slowly while fully used. An object with 'enabled' (default
+ * true), 'initialLimit' (default 32), 'minLimit' (default 1), 'maxLimit'
+ * (default 512) and optional hard caps 'readsPerSecond', 'writesPerSecond'
+ * and 'listingsPerSecond' (default 0, uncapped).</td>
+ * <td>No</td>
+ * <td>enabled</td>
+ * </tr>
+ * <tr>
+ * <td>replication</td>
+ * <td>Replicate this container to other BlobStores and hedge reads against
+ * them. An object with 'enabled' (default false), 'replicas' (a list of
+ * BlobStore configurations in the same shape as this block), 'synchronous'
+ * (whether writes wait for the replicas, default true), 'hedgePercentile'
+ * (reads slower than this percentile of recent reads are also sent to the
+ * first replica, default 95) and 'drainTimeoutSeconds' (how long shutdown
+ * waits for asynchronous replication, default 60).</td>
+ * <td>No</td>
+ * <td>disabled</td>
+ * </tr>
+ * <tr>
+ * <td>tiered</td>
+ * <td>Serve reads from a fast hot tier, such as a local filesystem, in front of
+ * this BlobStore. An object with 'enabled' (default false), 'hot' (a BlobStore
+ * configuration in the same shape as this block, required when enabled) and
+ * 'capacityMegabytes' (default 1024). Writes go to both tiers; the least
+ * recently used blobs are evicted from the hot tier beyond its capacity.</td>
+ * <td>No</td>
+ * <td>disabled</td>
+ * </tr>
+ * <tr>
+ * <td>coldStorage</td>
+ * <td>Move payloads neither written nor read for a while to a second container
+ * in the same BlobStore, by server-side copy. An object with 'enabled'
+ * (default false), 'containerName' (default this container's name with
+ * '-cold' appended), 'idleDays' (default 7), 'sampleRate' (share of reads
+ * recorded, default 0.1), 'intervalMinutes' (time between demotion runs,
+ * default 1440) and 'requestsPerSecond' (I/O budget of a run, default 10).
+ * Demoted payloads are moved back when next read.</td>
+ * <td>No</td>
+ * <td>disabled</td>
+ * </tr>
+ * <tr>
+ * <td>writeBehind</td>
+ * <td>Acknowledge writes once they are synced to a local journal and upload
+ * them in the background. An object with 'enabled' (default false),
+ * 'journalDirectory' (required when enabled), 'uploadThreads' (default 4) and
+ * 'drainTimeoutSeconds' (how long shutdown waits for pending uploads, default
+ * 60). Uploads not finished by then resume on the next start.</td>
+ * <td>No</td>
+ * <td>disabled</td>
+ * </tr>
  * </table>
  *
  * <h3>Sample configuration</h3>
@@ -132,6 +318,18 @@ public class BlobStoreStorage implements Storage {
 
 	private static String METADATA_PAYLOAD = "TF-OBJ-META";
 
+	/** Default number of keys removed per bulk delete request */
+	private static final int DEFAULT_DELETE_BATCH_SIZE = 100;
+
+	/** Removes blobs no longer referenced by their object's manifest */
+	private OrphanSweeper orphanSweeper;
+
+	/** Object removals currently running, for progress reporting */
+	private ConcurrentMap<String, ObjectPurge> purges = new ConcurrentHashMap<String, ObjectPurge>();
+
+	/** Destinations of copies in progress, which only exist once complete */
+	private Set<String> copying = new HashSet<String>();
+
 	/**
 	 * Return the ID of this plugin.
 	 *
@@ -199,6 +397,27 @@ public class BlobStoreStorage implements Storage {
 	private void init() throws StorageException {
 		// A quick connection test
 		BlobStoreClient.getClient();
+
+		orphanSweeper = new OrphanSweeper(
+				systemConfig.getInteger(10, "storage", "blobstore", "orphanSweep", "requestsPerSecond"),
+				systemConfig.getInteger(60, "storage", "blobstore", "orphanSweep", "gracePeriodMinutes"),
+				systemConfig.getInteger(2, "storage", "blobstore", "orphanSweep", "threads"));
+		if (systemConfig.getBoolean(false, "storage", "blobstore", "orphanSweep", "enabled")) {
+			orphanSweeper.start(systemConfig.getInteger(60, "storage", "blobstore", "orphanSweep", "intervalMinutes"));
+		}
+
+		if (systemConfig.getBoolean(false, "storage", "blobstore", "coldStorage", "enabled")) {
+			String sampleRate = systemConfig.getString("0.1", "storage", "blobstore", "coldStorage", "sampleRate");
+			ColdStorage coldStorage = new ColdStorage(
+					systemConfig.getString(BlobStoreClient.getContainerName() + "-cold", "storage", "blobstore",
+							"coldStorage", "containerName"),
+					systemConfig.getInteger(7, "storage", "blobstore", "coldStorage", "idleDays"),
+					Double.parseDouble(sampleRate),
+					systemConfig.getInteger(10, "storage", "blobstore", "coldStorage", "requestsPerSecond"));
+			coldStorage.init();
+			BlobStoreClient.setColdStorage(coldStorage);
+			coldStorage.start(systemConfig.getInteger(1440, "storage", "blobstore", "coldStorage", "intervalMinutes"));
+		}
 	}
 
 	/**
@@ -209,7 +428,14 @@ public class BlobStoreStorage implements Storage {
 	 */
 	@Override
 	public void shutdown() throws StorageException {
-		// Don't need to do anything on shutdown
+		if (orphanSweeper != null) {
+			orphanSweeper.stop();
+		}
+		if (BlobStoreClient.getColdStorage() != null) {
+			BlobStoreClient.getColdStorage().stop();
+			BlobStoreClient.setColdStorage(null);
+		}
+		BlobStoreClient.shutdown();
 	}
 
 	/**
@@ -234,20 +460,17 @@ public class BlobStoreStorage implements Storage {
 	 */
 	@Override
 	public synchronized DigitalObject createObject(String oid) throws StorageException {
-		// log.debug("createObject({})", oid);
-		if (oid == null) {
-			throw new StorageException("Error; Null OID recieved");
-		}
+		try (PluginOperation operation = PluginOperation.enter("createObject")) {
+			// log.debug("createObject({})", oid);
+			if (oid == null) {
+				throw new StorageException("Error; Null OID recieved");
+			}
 
-		// Can we see object?
-		if (BlobStoreClient.getClient().directoryExists(BlobStoreClient.getContainerName(), oid)) {
-			throw new StorageException("Error; object '" + oid + "' already exists in Blobstore");
+			// Checks for and writes the manifest, nothing more
+			return BlobStoreDigitalObject.create(oid);
+		} catch (ResilientBlobStore.BlobStoreUnavailableException e) {
+			throw new StorageException(e.getMessage(), e);
 		}
-
-		BlobStoreClient.getClient().createDirectory(BlobStoreClient.getContainerName(), oid);
-
-		// Instantiate and return
-		return new BlobStoreDigitalObject(oid);
 	}
 
 	/**
@@ -261,16 +484,18 @@ public class BlobStoreStorage implements Storage {
 	 */
 	@Override
 	public DigitalObject getObject(String oid) throws StorageException {
-
-		if (oid == null) {
-			throw new StorageException("Error; Null OID received");
-		}
-		if (!BlobStoreClient.getClient().directoryExists(BlobStoreClient.getContainerName(), oid)) {
-			throw new StorageException("Error; Object with OID does not exist in storage");
+		try (PluginOperation operation = PluginOperation.enter("getObject")) {
+			if (oid == null) {
+				throw new StorageException("Error; Null OID received");
+			}
+			if (!BlobStoreDigitalObject.exists(oid)) {
+				throw new StorageException("Error; Object with OID does not exist in storage");
+			}
+			// Instantiate and return
+			return new BlobStoreDigitalObject(oid);
+		} catch (ResilientBlobStore.BlobStoreUnavailableException e) {
+			throw new StorageException(e.getMessage(), e);
 		}
-		// Instantiate and return
-		return new BlobStoreDigitalObject(oid);
-
 	}
 
 	/**
@@ -282,35 +507,333 @@ public class BlobStoreStorage implements Storage {
 	 *             if any errors occur
 	 */
 	@Override
-	public synchronized void removeObject(String oid) throws StorageException {
-		// log.debug("removeObject({})", oid);
-		if (oid == null) {
-			throw new StorageException("Error; Null OID recieved");
+	public void removeObject(String oid) throws StorageException {
+		try (PluginOperation operation = PluginOperation.enter("removeObject")) {
+			// log.debug("removeObject({})", oid);
+			if (oid == null) {
+				throw new StorageException("Error; Null OID recieved");
+			}
+
+			try {
+				removeBlobStoreObject(oid);
+			} catch (StorageException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new StorageException("Unable to remove object", e);
+			}
+		} catch (ResilientBlobStore.BlobStoreUnavailableException e) {
+			throw new StorageException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Perform the actual removal from the BlobStore
+	 *
+	 * @param oid
+	 *            the Object ID to remove from storage
+	 * @throws StorageException
+	 *             if any errors occur
+	 */
+	private void removeBlobStoreObject(String oid) throws StorageException {
+		if (!BlobStoreDigitalObject.exists(oid)) {
+			throw new StorageException("Object " + oid + " doesn't exist to be deleted");
+		}
+		ObjectPurge purge = new ObjectPurge(oid,
+				systemConfig.getInteger(DEFAULT_DELETE_BATCH_SIZE, "storage", "blobstore", "deleteBatchSize"));
+		if (purges.putIfAbsent(oid, purge) != null) {
+			throw new StorageException("Object " + oid + " is already being deleted");
+		}
+		try {
+			purge.run();
+			if (BlobStoreClient.getColdStorage() != null) {
+				BlobStoreClient.getColdStorage().removeObject(oid);
+			}
+		} finally {
+			purges.remove(oid);
+		}
+	}
+
+	/**
+	 * Get the progress of an object removal that is currently running.
+	 *
+	 * @param oid
+	 *            the Object ID being removed
+	 * @return ObjectPurge the running removal, or null if there is none
+	 */
+	public ObjectPurge getRemovalProgress(String oid) {
+		return purges.get(oid);
+	}
+
+	/**
+	 * Sweep every object in storage once for orphaned payload blobs and
+	 * metadata sidecars, within the sweeper's I/O budget.
+	 *
+	 * @return int the number of orphans removed
+	 * @throws StorageException
+	 *             if any object could not be swept
+	 */
+	public int sweepOrphans() throws StorageException {
+		return orphanSweeper.sweepAll();
+	}
+
+	/**
+	 * Get the request metrics, for example to add a listener.
+	 *
+	 * @return BlobStoreMetrics the metrics, or null if they are disabled
+	 */
+	public BlobStoreMetrics getMetrics() {
+		return BlobStoreClient.getMetrics();
+	}
+
+	/**
+	 * Get the concurrency limiter, for its current limits.
+	 *
+	 * @return ConcurrencyLimiter the limiter, or null if it is disabled
+	 */
+	public ConcurrencyLimiter getConcurrencyLimiter() {
+		return BlobStoreClient.getLimiter();
+	}
+
+	/**
+	 * Get the replicas when replication is enabled, for their hedging and
+	 * failure counts.
+	 *
+	 * @return ReplicatedBlobStore the replicas, or null if replication is
+	 *         disabled
+	 */
+	public ReplicatedBlobStore getReplicatedStore() {
+		return BlobStoreClient.getReplicatedStore();
+	}
+
+	/**
+	 * Get the hot tier when tiered storage is enabled, for its hit ratios and
+	 * occupancy.
+	 *
+	 * @return TieredBlobStore the hot tier, or null if tiering is disabled
+	 */
+	public TieredBlobStore getTieredStore() {
+		return BlobStoreClient.getTieredStore();
+	}
+
+	/**
+	 * Get cold storage when demotion of idle payloads is enabled, for example
+	 * to run a demotion pass now.
+	 *
+	 * @return ColdStorage the cold container, or null if demotion is disabled
+	 */
+	public ColdStorage getColdStorage() {
+		return BlobStoreClient.getColdStorage();
+	}
+
+	/**
+	 * Copy an object to a new Object ID. Every payload and metadata sidecar is
+	 * copied inside the BlobStore in parallel, so no content passes through
+	 * this client. The destination has no directory marker: only the manifest,
+	 * copied last, makes it an object. If any copy fails, the blobs already
+	 * copied are removed again, since providers that list directories from
+	 * their blobs would otherwise report them as an empty object.
+	 *
+	 * @param srcOid
+	 *            the Object ID to copy from
+	 * @param dstOid
+	 *            the Object ID to copy to, which must not exist yet
+	 * @return DigitalObject the instantiated copy
+	 * @throws StorageException
+	 *             if any errors occur
+	 */
+	public DigitalObject copyObject(String srcOid, String dstOid) throws StorageException {
+		try (PluginOperation operation = PluginOperation.enter("copyObject")) {
+			if (srcOid == null || dstOid == null) {
+				throw new StorageException("Error; Null OID recieved");
+			}
+			final BlobStore client = BlobStoreClient.getClient();
+			final String container = BlobStoreClient.getContainerName();
+			if (!BlobStoreDigitalObject.exists(srcOid)) {
+				throw new StorageException("Error; object '" + srcOid + "' does not exist in Blobstore");
+			}
+			synchronized (this) {
+				if (BlobStoreDigitalObject.exists(dstOid) || !copying.add(dstOid)) {
+					throw new StorageException("Error; object '" + dstOid + "' already exists in Blobstore");
+				}
+			}
+			try {
+				copyObjectBlobs(client, container, srcOid, dstOid);
+			} finally {
+				synchronized (this) {
+					copying.remove(dstOid);
+				}
+			}
+			return new BlobStoreDigitalObject(dstOid);
+		} catch (ResilientBlobStore.BlobStoreUnavailableException e) {
+			throw new StorageException(e.getMessage(), e);
 		}
+	}
 
+	private void copyObjectBlobs(final BlobStore client, final String container, String srcOid, String dstOid)
+			throws StorageException {
+		String manifestKey = null;
+		final List<String> dstKeys = new ArrayList<String>();
+		List<Callable<Void>> copies = new ArrayList<Callable<Void>>();
+		for (final String srcKey : BlobStoreClient.listObjectKeys(srcOid)) {
+			final String dstKey = dstOid + srcKey.substring(srcOid.length());
+			if (srcKey.equals(srcOid + "/" + BlobStoreDigitalObject.MANIFEST_KEY)) {
+				manifestKey = srcKey;
+				continue;
+			}
+			dstKeys.add(dstKey);
+			copies.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					client.copyBlob(container, srcKey, container, dstKey, CopyOptions.NONE);
+					return null;
+				}
+			});
+		}
 		try {
-			removeBlobStoreObject(oid);
+			BlobStoreClient.invokeAll(copies);
+			if (BlobStoreClient.getColdStorage() != null) {
+				BlobStoreClient.getColdStorage().copyObject(srcOid, dstOid);
+			}
+		} catch (StorageException | RuntimeException e) {
+			removeCopiedBlobs(client, container, dstOid, dstKeys);
+			throw e;
+		}
+
+		if (manifestKey == null) {
+			// An object from before manifests were written on creation
+			BlobStoreDigitalObject.create(dstOid);
+			return;
+		}
+		String dstManifestKey = dstOid + "/" + BlobStoreDigitalObject.MANIFEST_KEY;
+		synchronized (BlobStoreDigitalObject.manifestLock(dstOid)) {
+			if (client.blobExists(container, dstManifestKey)) {
+				// Created meanwhile, so the copied keys may be its payloads now
+				throw new StorageException("Error; object '" + dstOid + "' was created while being copied to");
+			}
+			try {
+				client.copyBlob(container, manifestKey, container, dstManifestKey, CopyOptions.NONE);
+			} catch (RuntimeException e) {
+				removeCopiedBlobs(client, container, dstOid, dstKeys);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Undo a failed copy. A blob that cannot be removed is logged and left.
+	 */
+	private void removeCopiedBlobs(BlobStore client, String container, String dstOid, List<String> dstKeys) {
+		try {
+			client.removeBlobs(container, dstKeys);
+			if (BlobStoreClient.getColdStorage() != null) {
+				BlobStoreClient.getColdStorage().removeObject(dstOid);
+			}
 		} catch (Exception e) {
-			throw new StorageException("Unable to remove object", e);
+			log.error("Failed to remove the blobs of the failed copy to '{}'", dstOid, e);
 		}
 	}
 
 	/**
-	 * Perform the actual removal from Fedora
+	 * Move an object to a new Object ID. The object is copied inside the
+	 * BlobStore and the original removed once the copy is complete.
 	 *
-	 * @param fedoraPid
-	 *            the Fedora PID to remove from storage
+	 * @param srcOid
+	 *            the Object ID to rename
+	 * @param dstOid
+	 *            the new Object ID, which must not exist yet
+	 * @return DigitalObject the instantiated object under its new ID
 	 * @throws StorageException
 	 *             if any errors occur
 	 */
-	private void removeBlobStoreObject(String oid) throws StorageException {
-		if (BlobStoreClient.getClient().directoryExists(BlobStoreClient.getContainerName(), oid)) {
-			BlobStoreClient.getClient().deleteDirectory(BlobStoreClient.getContainerName(), oid);
-		} else {
-			throw new StorageException("Object " + oid + " doesn't exist to be deleted");
+	public DigitalObject renameObject(String srcOid, String dstOid) throws StorageException {
+		try (PluginOperation operation = PluginOperation.enter("renameObject")) {
+			DigitalObject object = copyObject(srcOid, dstOid);
+			removeObject(srcOid);
+			return object;
+		} catch (ResilientBlobStore.BlobStoreUnavailableException e) {
+			throw new StorageException(e.getMessage(), e);
 		}
 	}
 
+	/**
+	 * Replace the executor running the asynchronous operations of this plugin
+	 * and of its objects and payloads. Each operation occupies a thread of the
+	 * executor until it completes, since jclouds requests block.
+	 *
+	 * @param executor
+	 *            the executor to use
+	 */
+	public void setAsyncExecutor(Executor executor) {
+		BlobStoreClient.setAsyncExecutor(executor);
+	}
+
+	/**
+	 * Asynchronous version of {@link #createObject(String)}.
+	 *
+	 * @param oid
+	 *            the Object ID to use during creation
+	 * @return CompletableFuture<DigitalObject> the future created object
+	 */
+	public CompletableFuture<DigitalObject> createObjectAsync(final String oid) {
+		return BlobStoreClient.supplyAsync(new Callable<DigitalObject>() {
+			@Override
+			public DigitalObject call() throws StorageException {
+				return createObject(oid);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of {@link #getObject(String)}.
+	 *
+	 * @param oid
+	 *            the Object ID to retrieve
+	 * @return CompletableFuture<DigitalObject> the future requested object
+	 */
+	public CompletableFuture<DigitalObject> getObjectAsync(final String oid) {
+		return BlobStoreClient.supplyAsync(new Callable<DigitalObject>() {
+			@Override
+			public DigitalObject call() throws StorageException {
+				return getObject(oid);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of {@link #removeObject(String)}.
+	 *
+	 * @param oid
+	 *            the Object ID to remove from storage
+	 * @return CompletableFuture<Void> completes once the object is removed
+	 */
+	public CompletableFuture<Void> removeObjectAsync(final String oid) {
+		return BlobStoreClient.supplyAsync(new Callable<Void>() {
+			@Override
+			public Void call() throws StorageException {
+				removeObject(oid);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of {@link #copyObject(String, String)}.
+	 *
+	 * @param srcOid
+	 *            the Object ID to copy from
+	 * @param dstOid
+	 *            the Object ID to copy to
+	 * @return CompletableFuture<DigitalObject> the future copy
+	 */
+	public CompletableFuture<DigitalObject> copyObjectAsync(final String srcOid, final String dstOid) {
+		return BlobStoreClient.supplyAsync(new Callable<DigitalObject>() {
+			@Override
+			public DigitalObject call() throws StorageException {
+				return copyObject(srcOid, dstOid);
+			}
+		});
+	}
+
 	/**
 	 * Return a list of Object IDs currently in storage.
 	 *
@@ -318,23 +841,25 @@ public class BlobStoreStorage implements Storage {
 	 */
 	@Override
 	public Set<String> getObjectIdList() {
-		Set<String> objectIdList = new HashSet<String>();
-		PageSet<? extends StorageMetadata> pageSet;
-		try {
-			pageSet = BlobStoreClient.getClient().list(BlobStoreClient.getContainerName());
+		try (PluginOperation operation = PluginOperation.enter("getObjectIdList")) {
+			Set<String> objectIdList = new HashSet<String>();
+			PageSet<? extends StorageMetadata> pageSet;
+			try {
+				pageSet = BlobStoreClient.getClient().list(BlobStoreClient.getContainerName());
 
-			for (StorageMetadata storageMetadata : pageSet) {
-				if (storageMetadata.getType() == StorageType.FOLDER
-						|| storageMetadata.getType() == StorageType.RELATIVE_PATH) {
-					objectIdList.add(storageMetadata.getName());
+				for (StorageMetadata storageMetadata : pageSet) {
+					if (storageMetadata.getType() == StorageType.FOLDER
+							|| storageMetadata.getType() == StorageType.RELATIVE_PATH) {
+						objectIdList.add(storageMetadata.getName());
+					}
 				}
+
+			} catch (StorageException e) {
+				log.error("Error getting list of object ids", e);
 			}
 
-		} catch (StorageException e) {
-			log.error("Error getting list of object ids", e);
+			return objectIdList;
 		}
-
-		return objectIdList;
 	}
 
 }
@@ -0,0 +1,192 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jclouds.Constants;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.domain.Location;
+import org.jclouds.filesystem.reference.FilesystemConstants;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * A connection to one container of one BlobStore, built from a JSON block in
+ * the same shape as the plugin's 'blobstore' configuration. The plugin's own
+ * connection in {@link BlobStoreClient} is one of these; tools that work with
+ * a second BlobStore, such as migrations, open their own.
+ */
+public class BlobStoreTarget {
+
+	/** Default Container Name **/
+	static final String DEFAULT_CONTAINER_NAME = "fascinator";
+
+	/** Default authentication endpoint, used by providers that need one **/
+	private static final String DEFAULT_ENDPOINT = "https://keystone.rc.nectar.org.au:5000/v2.0";
+
+	/** Default time allowed to open a connection **/
+	private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+	/** Default time allowed between bytes of a response **/
+	private static final int DEFAULT_READ_TIMEOUT_MILLIS = 60000;
+
+	private final BlobStoreContext context;
+
+	private final BlobStore blobStore;
+
+	private final String containerName;
+
+	private final boolean supportsUserMetadata;
+
+	private BlobStoreTarget(BlobStoreContext context, String containerName, boolean supportsUserMetadata) {
+		this.context = context;
+		this.blobStore = context.getBlobStore();
+		this.containerName = containerName;
+		this.supportsUserMetadata = supportsUserMetadata;
+	}
+
+	/**
+	 * Connect to a BlobStore and make sure its container exists.
+	 *
+	 * @param config
+	 *            the 'blobstore' configuration block
+	 * @return BlobStoreTarget the connection
+	 * @throws StorageException
+	 *             if the connection could not be made
+	 */
+	public static BlobStoreTarget connect(JsonSimple config) throws StorageException {
+		String provider = config.getString("swift", "provider");
+		String credential = config.getString("", "password");
+		String identity = config.getString("", "identity");
+		String containerName = config.getString(DEFAULT_CONTAINER_NAME, "containerName");
+		String location = config.getString(null, "location");
+		String fileSystemLocation = config.getString(null, "fileSystemLocation");
+		String gridFsConnectionString = config.getString(null, "gridFsConnectionString");
+		Boolean supportsUserMetadataSetting = config.getBoolean(null, "supportsUserMetadata");
+		boolean supportsUserMetadata = true;
+
+		ContextBuilder contextBuilder = ContextBuilder.newBuilder(provider);
+		// If we're using filesystem, set local directory to write objects to
+		if ("filesystem".equals(provider)) {
+			if (supportsUserMetadataSetting != null) {
+				supportsUserMetadata = supportsUserMetadataSetting;
+			} else {
+				File storageDir = new File(fileSystemLocation);
+				if (!storageDir.exists()) {
+					try {
+						FileUtils.forceMkdir(storageDir);
+						// Java doesn't support extended attributes in some file
+						// systems like FAT32 and HFS. As JClouds use them to
+						// store
+						// user metadata we'll need to store them differently on
+						// these file systems.
+						if (!Files.getFileStore(storageDir.toPath())
+								.supportsFileAttributeView(UserDefinedFileAttributeView.class)) {
+							supportsUserMetadata = false;
+						}
+					} catch (IOException e) {
+						throw new StorageException("Failed to create storage directory", e);
+					}
+				}
+			}
+			Properties properties = new Properties();
+			properties.setProperty(FilesystemConstants.PROPERTY_BASEDIR, fileSystemLocation);
+			contextBuilder.overrides(properties);
+		} else if ("gridfs".equals(provider)) {
+			Properties properties = new Properties();
+			properties.setProperty(Constants.PROPERTY_ENDPOINT, gridFsConnectionString);
+			contextBuilder.overrides(properties);
+
+		}
+		// Bound every request so a stalled backend cannot hold threads forever
+		Properties timeouts = new Properties();
+		timeouts.setProperty(Constants.PROPERTY_CONNECTION_TIMEOUT,
+				String.valueOf(config.getInteger(DEFAULT_CONNECT_TIMEOUT_MILLIS, "connectTimeoutMillis")));
+		timeouts.setProperty(Constants.PROPERTY_SO_TIMEOUT,
+				String.valueOf(config.getInteger(DEFAULT_READ_TIMEOUT_MILLIS, "readTimeoutMillis")));
+		contextBuilder.overrides(timeouts);
+		BlobStoreContext context = contextBuilder.credentials(identity, credential)
+				.endpoint(config.getString(DEFAULT_ENDPOINT, "endpoint")).buildView(BlobStoreContext.class);
+
+		BlobStore blobStore = context.getBlobStore();
+
+		Location loc = null;
+		if (StringUtils.isNotEmpty(location)) {
+			for (Location assignableLoc : blobStore.listAssignableLocations()) {
+				if (assignableLoc.getId().equalsIgnoreCase(location)) {
+					loc = assignableLoc;
+					break;
+				}
+
+			}
+			if (loc == null) {
+				context.close();
+				throw new StorageException(location + " location not found in Blobstore");
+			}
+		}
+		blobStore.createContainerInLocation(loc, containerName);
+
+		return new BlobStoreTarget(context, containerName, supportsUserMetadata);
+	}
+
+	/**
+	 * @return BlobStoreContext the jclouds context of this connection
+	 */
+	public BlobStoreContext getContext() {
+		return context;
+	}
+
+	/**
+	 * @return BlobStore the client of this connection
+	 */
+	public BlobStore getBlobStore() {
+		return blobStore;
+	}
+
+	/**
+	 * @return String the container this connection works in
+	 */
+	public String getContainerName() {
+		return containerName;
+	}
+
+	/**
+	 * @return boolean whether blobs carry user metadata, rather than sidecars
+	 */
+	public boolean supportsUserMetadata() {
+		return supportsUserMetadata;
+	}
+
+	/**
+	 * Close the connection.
+	 */
+	public void close() {
+		context.close();
+	}
+}
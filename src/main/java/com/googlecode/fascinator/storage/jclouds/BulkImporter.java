@@ -0,0 +1,442 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.MimeTypeUtil;
+
+/**
+ * Imports a local directory tree into storage. Every directory holding regular
+ * files becomes an object, named from its path relative to the root, and every
+ * file in it becomes a stored payload. Path segments are joined with the
+ * separator, in which they have any occurrence of the separator and of '%'
+ * percent-encoded, so 'a_b' and 'a/b' stay distinct; the root itself is named
+ * after its own directory, and a directory whose OID another directory has
+ * already claimed is rejected as a failure. Directories are walked on the calling
+ * thread and each one is imported as its own task, with at most
+ * 'concurrency' objects in flight. Tasks run on virtual threads when the
+ * running JVM has them and on a fixed pool of platform threads otherwise.
+ * <p>
+ * Files are streamed to the BlobStore with their known length; the content
+ * type is detected from the first bytes of a file only. The payloads of an
+ * object are uploaded in parallel as far as the same cap allows, each extra
+ * upload taking a spare slot, and are then added to the manifest with a
+ * single write. Files small enough to be kept inline in the manifest are
+ * stored the usual way.
+ * </p>
+ * <p>
+ * Each finished object is appended to a checkpoint file. Re-running an import
+ * with the same checkpoint skips finished objects, and objects that were
+ * interrupted part way only upload the payloads missing from their manifest.
+ * </p>
+ */
+public class BulkImporter {
+
+	/** Logging */
+	private static Logger log = LoggerFactory.getLogger(BulkImporter.class);
+
+	/** Default maximum number of objects imported at once */
+	private static final int DEFAULT_CONCURRENCY = 32;
+
+	/** Bytes at the start of a file the content type is detected from */
+	private static final int DETECTION_BYTES = 64 * 1024;
+
+	private final BlobStoreStorage storage;
+
+	private final Path checkpointFile;
+
+	private int concurrency = DEFAULT_CONCURRENCY;
+
+	private String separator = "_";
+
+	private Set<String> finished;
+
+	/** The directory each OID was assigned to by the current walk */
+	private Map<String, Path> claimed;
+
+	private BufferedWriter checkpoint;
+
+	private final AtomicLong objects = new AtomicLong();
+
+	private final AtomicLong skipped = new AtomicLong();
+
+	private final AtomicLong payloads = new AtomicLong();
+
+	private final AtomicLong bytes = new AtomicLong();
+
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param storage
+	 *            the storage to import into
+	 * @param checkpointFile
+	 *            file recording finished objects, created if missing
+	 */
+	public BulkImporter(BlobStoreStorage storage, Path checkpointFile) {
+		this.storage = storage;
+		this.checkpointFile = checkpointFile;
+	}
+
+	/**
+	 * @param concurrency
+	 *            the maximum number of objects, and of payload uploads,
+	 *            in flight at once
+	 */
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * @param separator
+	 *            replaces path separators when a relative directory path is
+	 *            turned into an OID, '_' by default
+	 */
+	public void setSeparator(String separator) {
+		if (separator.isEmpty() || separator.contains("%")) {
+			throw new IllegalArgumentException("Separator must be non-empty and not contain '%'");
+		}
+		this.separator = separator;
+	}
+
+	/**
+	 * Import a directory tree, blocking until every object has been imported
+	 * or has failed.
+	 *
+	 * @param root
+	 *            the directory to import
+	 * @throws StorageException
+	 *             if the tree or checkpoint could not be read or written
+	 */
+	public void importTree(final Path root) throws StorageException {
+		finished = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		claimed = new HashMap<String, Path>();
+		try {
+			if (Files.exists(checkpointFile)) {
+				finished.addAll(Files.readAllLines(checkpointFile, StandardCharsets.UTF_8));
+			}
+			checkpoint = Files.newBufferedWriter(checkpointFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+		} catch (IOException e) {
+			throw new StorageException("Failed to open checkpoint " + checkpointFile, e);
+		}
+
+		final ExecutorService executor = newExecutor();
+		final Semaphore permits = new Semaphore(concurrency);
+		long start = System.nanoTime();
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(final Path dir, BasicFileAttributes attrs) {
+					final String oid = toOid(root, dir);
+					Path owner = claimed.put(oid, dir);
+					if (owner != null) {
+						claimed.put(oid, owner);
+						failures.incrementAndGet();
+						log.error("Not importing {}: its OID '{}' is already taken by {}", dir, oid, owner);
+						return FileVisitResult.CONTINUE;
+					}
+					if (finished.contains(oid)) {
+						skipped.incrementAndGet();
+						return FileVisitResult.CONTINUE;
+					}
+					permits.acquireUninterruptibly();
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								importDirectory(oid, dir, executor, permits);
+							} catch (Exception e) {
+								failures.incrementAndGet();
+								log.error("Failed to import '{}' from {}", oid, dir, e);
+							} finally {
+								permits.release();
+							}
+						}
+					});
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			// Every task holds a permit until it ends, uploads included
+			permits.acquire(concurrency);
+			executor.shutdown();
+		} catch (IOException e) {
+			throw new StorageException("Failed to walk " + root, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted importing " + root, e);
+		} finally {
+			executor.shutdownNow();
+			try {
+				checkpoint.close();
+			} catch (IOException e) {
+				log.error("Failed to close checkpoint {}", checkpointFile, e);
+			}
+		}
+		long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+		log.info("Imported {} objects ({} payloads, {} bytes, {} bytes/s), skipped {}, failed {}", objects.get(),
+				payloads.get(), bytes.get(), bytes.get() / seconds, skipped.get(), failures.get());
+	}
+
+	/**
+	 * Import the regular files of one directory as the payloads of an object.
+	 * The task holds one permit, with which it uploads whatever no spare
+	 * permit is free for, so it always makes progress.
+	 */
+	private void importDirectory(String oid, Path dir, ExecutorService executor, final Semaphore permits)
+			throws IOException, StorageException {
+		Set<Path> files = new HashSet<Path>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+			for (Path entry : entries) {
+				if (Files.isRegularFile(entry)) {
+					files.add(entry);
+				}
+			}
+		}
+		if (files.isEmpty()) {
+			return;
+		}
+
+		final BlobStoreDigitalObject object;
+		if (BlobStoreDigitalObject.exists(oid)) {
+			// Left behind by an interrupted import; resume it
+			object = (BlobStoreDigitalObject) storage.getObject(oid);
+		} else {
+			object = (BlobStoreDigitalObject) storage.createObject(oid);
+		}
+		Set<String> existing = object.getPayloadIdList();
+		List<Path> inline = new ArrayList<Path>();
+		List<Future<BlobStorePayload>> uploads = new ArrayList<Future<BlobStorePayload>>();
+		for (final Path file : files) {
+			if (existing.contains(file.getFileName().toString())) {
+				continue;
+			}
+			if (Files.size(file) <= BlobStoreClient.getInlineThreshold()) {
+				inline.add(file);
+				continue;
+			}
+			Callable<BlobStorePayload> upload = new Callable<BlobStorePayload>() {
+				@Override
+				public BlobStorePayload call() throws IOException, StorageException {
+					return upload(object, file);
+				}
+			};
+			if (permits.tryAcquire()) {
+				final Callable<BlobStorePayload> task = upload;
+				uploads.add(executor.submit(new Callable<BlobStorePayload>() {
+					@Override
+					public BlobStorePayload call() throws Exception {
+						try {
+							return task.call();
+						} finally {
+							permits.release();
+						}
+					}
+				}));
+			} else {
+				FutureTask<BlobStorePayload> inPlace = new FutureTask<BlobStorePayload>(upload);
+				inPlace.run();
+				uploads.add(inPlace);
+			}
+		}
+
+		// Whatever was uploaded goes into the manifest, even if some failed
+		List<BlobStorePayload> uploaded = new ArrayList<BlobStorePayload>();
+		Throwable failure = null;
+		for (Future<BlobStorePayload> upload : uploads) {
+			try {
+				uploaded.add(upload.get());
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StorageException("Interrupted importing '" + oid + "'", e);
+			}
+		}
+		object.addPayloads(uploaded);
+		if (failure != null) {
+			throw new StorageException("Failed to upload a payload of '" + oid + "'", failure);
+		}
+		for (Path file : inline) {
+			try (InputStream in = Files.newInputStream(file)) {
+				object.createStoredPayload(file.getFileName().toString(), in);
+			}
+			payloads.incrementAndGet();
+			bytes.addAndGet(Files.size(file));
+		}
+		object.close();
+		objects.incrementAndGet();
+		markFinished(oid);
+	}
+
+	/**
+	 * Stream one file to the BlobStore as a payload of the object, detecting
+	 * its content type from its first bytes.
+	 */
+	private BlobStorePayload upload(BlobStoreDigitalObject object, Path file) throws IOException, StorageException {
+		String pid = file.getFileName().toString();
+		long length = Files.size(file);
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file), DETECTION_BYTES)) {
+			in.mark(DETECTION_BYTES);
+			byte[] prefix = new byte[(int) Math.min(length, DETECTION_BYTES)];
+			int read = 0;
+			while (read < prefix.length) {
+				int count = in.read(prefix, read, prefix.length - read);
+				if (count < 0) {
+					break;
+				}
+				read += count;
+			}
+			in.reset();
+			BlobStorePayload payload = object.uploadPayload(pid, in, length,
+					MimeTypeUtil.getMimeType(Arrays.copyOf(prefix, read), pid));
+			payloads.incrementAndGet();
+			bytes.addAndGet(length);
+			return payload;
+		}
+	}
+
+	private synchronized void markFinished(String oid) throws IOException {
+		finished.add(oid);
+		checkpoint.write(oid);
+		checkpoint.newLine();
+		checkpoint.flush();
+	}
+
+	private String toOid(Path root, Path dir) {
+		if (root.equals(dir)) {
+			return dir.getFileName().toString();
+		}
+		StringBuilder oid = new StringBuilder();
+		for (Path part : root.relativize(dir)) {
+			if (oid.length() > 0) {
+				oid.append(separator);
+			}
+			encode(part.toString(), oid);
+		}
+		return oid.toString();
+	}
+
+	/**
+	 * Append a path segment, percent-encoding '%' and the separator so that
+	 * segments cannot be confused with each other.
+	 */
+	private void encode(String part, StringBuilder oid) {
+		int i = 0;
+		while (i < part.length()) {
+			if (part.startsWith(separator, i)) {
+				for (byte b : separator.getBytes(StandardCharsets.UTF_8)) {
+					oid.append(String.format("%%%02X", b & 0xff));
+				}
+				i += separator.length();
+			} else if (part.charAt(i) == '%') {
+				oid.append("%25");
+				i++;
+			} else {
+				oid.append(part.charAt(i));
+				i++;
+			}
+		}
+	}
+
+	/**
+	 * Prefer a virtual thread per task where the JVM supports it; the cap on
+	 * objects in flight is enforced separately by a semaphore.
+	 */
+	private ExecutorService newExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			log.info("Virtual threads are unavailable, importing on {} platform threads", concurrency);
+			return Executors.newFixedThreadPool(concurrency);
+		}
+	}
+
+	/**
+	 * @return long the number of objects imported by the last run
+	 */
+	public long getObjectCount() {
+		return objects.get();
+	}
+
+	/**
+	 * @return long the number of objects skipped as already finished
+	 */
+	public long getSkippedCount() {
+		return skipped.get();
+	}
+
+	/**
+	 * @return long the number of payloads uploaded by the last run
+	 */
+	public long getPayloadCount() {
+		return payloads.get();
+	}
+
+	/**
+	 * @return long the number of payload bytes uploaded by the last run
+	 */
+	public long getByteCount() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return long the number of objects that failed to import
+	 */
+	public long getFailureCount() {
+		return failures.get();
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.blobstore.BlobStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The BlobStore requests one top-level plugin operation caused: how many of
+ * each BlobStore method, and the content bytes sent and received. Requests
+ * are counted by the client returned from {@link #wrap(BlobStore)} and
+ * attributed through {@link PluginOperation}, including work an operation
+ * hands to the parallel executor.
+ * <p>
+ * After each operation its account is available on the calling thread from
+ * {@link #lastOperation()}, which is how tests pin down the number of round
+ * trips of the main operations. With a call budget set, every operation
+ * making more requests than the budget is logged with its breakdown.
+ * </p>
+ */
+public class CallAccounting {
+
+	/** Logging */
+	private static Logger log = LoggerFactory.getLogger(CallAccounting.class);
+
+	private static final ThreadLocal<CallAccounting> LAST = new ThreadLocal<CallAccounting>();
+
+	/** Requests above which an operation is logged, 0 for no logging */
+	private static volatile int callBudget;
+
+	private final String operation;
+
+	private final AtomicInteger calls = new AtomicInteger();
+
+	private final AtomicLong bytesIn = new AtomicLong();
+
+	private final AtomicLong bytesOut = new AtomicLong();
+
+	private final ConcurrentMap<String, AtomicInteger> callsByMethod = new ConcurrentHashMap<String, AtomicInteger>();
+
+	CallAccounting(String operation) {
+		this.operation = operation;
+	}
+
+	/**
+	 * Count the requests of a BlobStore client against the operations making
+	 * them.
+	 *
+	 * @param blobStore
+	 *            the client
+	 * @return BlobStore the counted client
+	 */
+	public static BlobStore wrap(BlobStore blobStore) {
+		PluginOperation.setAccounting(true);
+		return new ForwardingBlobStore() {
+			@Override
+			protected Object dispatch(Method method, Object[] args) throws Throwable {
+				CallAccounting account = PluginOperation.currentAccount();
+				Object result;
+				try {
+					result = forward(method, args);
+				} catch (Throwable e) {
+					if (account != null) {
+						account.count(method.getName(), 0, 0);
+					}
+					throw e;
+				}
+				if (account != null) {
+					account.count(method.getName(),
+							"getBlob".equals(method.getName()) ? BlobStoreMetrics.contentLength(result) : 0,
+							"putBlob".equals(method.getName()) ? BlobStoreMetrics.contentLength(args[1]) : 0);
+				}
+				return result;
+			}
+		}.proxy(blobStore);
+	}
+
+	/**
+	 * @param budget
+	 *            requests above which an operation is logged, 0 to log none
+	 */
+	public static void setCallBudget(int budget) {
+		callBudget = budget;
+	}
+
+	/**
+	 * @return CallAccounting the account of the last operation completed on
+	 *         this thread, or null if there was none
+	 */
+	public static CallAccounting lastOperation() {
+		return LAST.get();
+	}
+
+	private void count(String method, long in, long out) {
+		calls.incrementAndGet();
+		AtomicInteger methodCalls = callsByMethod.get(method);
+		if (methodCalls == null) {
+			callsByMethod.putIfAbsent(method, new AtomicInteger());
+			methodCalls = callsByMethod.get(method);
+		}
+		methodCalls.incrementAndGet();
+		bytesIn.addAndGet(in);
+		bytesOut.addAndGet(out);
+	}
+
+	/**
+	 * Called when the operation returns.
+	 */
+	void complete() {
+		LAST.set(this);
+		int budget = callBudget;
+		if (budget > 0 && calls.get() > budget) {
+			log.warn("{} made {} BlobStore requests, over the budget of {}: {}", operation, calls.get(), budget,
+					getCallsByMethod());
+		}
+	}
+
+	/**
+	 * @return String the plugin method
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return int the number of BlobStore requests made
+	 */
+	public int getCalls() {
+		return calls.get();
+	}
+
+	/**
+	 * @param method
+	 *            a BlobStore method, such as getBlob
+	 * @return int the number of requests made with that method
+	 */
+	public int getCalls(String method) {
+		AtomicInteger methodCalls = callsByMethod.get(method);
+		return methodCalls != null ? methodCalls.get() : 0;
+	}
+
+	/**
+	 * @return Map<String, Integer> the number of requests by BlobStore method
+	 */
+	public Map<String, Integer> getCallsByMethod() {
+		Map<String, Integer> byMethod = new TreeMap<String, Integer>();
+		for (Map.Entry<String, AtomicInteger> methodCalls : callsByMethod.entrySet()) {
+			byMethod.put(methodCalls.getKey(), methodCalls.getValue().get());
+		}
+		return byMethod;
+	}
+
+	/**
+	 * @return long the content bytes received
+	 */
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	/**
+	 * @return long the content bytes sent
+	 */
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	@Override
+	public String toString() {
+		return operation + " " + getCallsByMethod();
+	}
+}
@@ -0,0 +1,585 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+
+/**
+ * Moves payloads that have not been read for a while from the plugin's
+ * container to a cold container in the same BlobStore, using server-side
+ * copies so no content passes through this client.
+ * <p>
+ * Reads are sampled: each payload read is recorded with the configured
+ * probability, as the day it happened, and only the first sampled read of a
+ * payload on any day changes anything. The days are kept in memory and
+ * written as one small properties blob per object, in the cold container,
+ * before each demotion run. A payload read less often than sampling notices
+ * may be demoted while in use; it is promoted again on its next read, so the
+ * cost of a miss is latency, never data.
+ * </p>
+ * <p>
+ * A demoted payload keeps its metadata sidecar in the plugin's container, and
+ * with providers that support user metadata the cold copy carries it, so
+ * {@link BlobStorePayload} serves metadata without promoting. Only opening the
+ * content promotes it back from the cold container.
+ * </p>
+ * <p>
+ * Demotion runs on the thread that asks for it, which is the cold storage
+ * thread in the background, one object after the other and within its own
+ * budget of requests per second, never on the shared I/O threads. The objects
+ * are listed one page at a time.
+ * </p>
+ * <p>
+ * A payload being demoted is marked under the object's manifest lock, which
+ * payload writes in this JVM take to announce themselves: a write already
+ * announced makes demotion skip the payload, and a write announced later
+ * waits until the hot copy is dropped. The requests themselves are made
+ * without holding the lock.
+ * </p>
+ */
+public class ColdStorage {
+
+	/** Logging */
+	private static Logger log = LoggerFactory.getLogger(ColdStorage.class);
+
+	/** Prefix of the access statistics blobs in the cold container */
+	private static final String ACCESS_PREFIX = "_access/";
+
+	private final String coldContainer;
+
+	private final long idleDays;
+
+	private final double sampleRate;
+
+	/** Day of the last sampled read by payload key */
+	private final ConcurrentMap<String, Long> lastRead = new ConcurrentHashMap<String, Long>();
+
+	/** Objects with reads not yet written to their statistics blob */
+	private final Set<String> unsaved = ConcurrentHashMap.newKeySet();
+
+	/** Payload writes in progress by key, guarded by the object's manifest lock */
+	private final Map<String, Integer> writing = new HashMap<String, Integer>();
+
+	/** Payloads whose hot copy is being dropped, guarded likewise */
+	private final Set<String> dropping = new HashSet<String>();
+
+	private final RequestPacer pacer;
+
+	private final AtomicInteger demoted = new AtomicInteger();
+
+	private final AtomicInteger promoted = new AtomicInteger();
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param coldContainer
+	 *            the container demoted payloads are moved to
+	 * @param idleDays
+	 *            days without a read after which a payload is demoted
+	 * @param sampleRate
+	 *            the share of reads recorded, between 0 and 1
+	 * @param requestsPerSecond
+	 *            the I/O budget of demotion runs
+	 */
+	public ColdStorage(String coldContainer, long idleDays, double sampleRate, double requestsPerSecond) {
+		this.coldContainer = coldContainer;
+		this.idleDays = idleDays;
+		this.sampleRate = sampleRate;
+		this.pacer = new RequestPacer(requestsPerSecond);
+	}
+
+	/**
+	 * Create the cold container if it does not exist yet.
+	 *
+	 * @throws StorageException
+	 *             if the BlobStore is unavailable
+	 */
+	void init() throws StorageException {
+		BlobStoreClient.getClient().createContainerInLocation(null, coldContainer);
+	}
+
+	private static long today() {
+		return TimeUnit.MILLISECONDS.toDays(System.currentTimeMillis());
+	}
+
+	/**
+	 * Record a read of a payload, subject to sampling.
+	 *
+	 * @param key
+	 *            the key of the payload's blob
+	 */
+	void recordRead(String key) {
+		if (ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+			return;
+		}
+		Long day = Long.valueOf(today());
+		Long previous = lastRead.put(key, day);
+		if (!day.equals(previous)) {
+			unsaved.add(oidOf(key));
+		}
+	}
+
+	/**
+	 * Announce a write of a payload's content or blob metadata. Demotion
+	 * leaves the payload alone until the matching {@link #endWrite(String)};
+	 * if the payload's hot copy is being dropped, this waits until it is.
+	 *
+	 * @param key
+	 *            the key of the payload's blob
+	 */
+	void beginWrite(String key) {
+		Object lock = BlobStoreDigitalObject.manifestLock(oidOf(key));
+		synchronized (lock) {
+			while (dropping.contains(key)) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			Integer count = writing.get(key);
+			writing.put(key, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+		}
+	}
+
+	/**
+	 * End a write announced by {@link #beginWrite(String)}.
+	 *
+	 * @param key
+	 *            the key of the payload's blob
+	 */
+	void endWrite(String key) {
+		synchronized (BlobStoreDigitalObject.manifestLock(oidOf(key))) {
+			Integer count = writing.remove(key);
+			if (count != null && count.intValue() > 1) {
+				writing.put(key, Integer.valueOf(count.intValue() - 1));
+			}
+		}
+	}
+
+	private static String oidOf(String key) {
+		return key.substring(0, key.lastIndexOf('/'));
+	}
+
+	/**
+	 * Read the metadata of a demoted payload without promoting it.
+	 *
+	 * @param key
+	 *            the key of the payload's blob
+	 * @return BlobMetadata the metadata of the cold copy, or null if the
+	 *         payload is not in the cold container
+	 * @throws StorageException
+	 *             if the BlobStore is unavailable
+	 */
+	BlobMetadata getMetadata(String key) throws StorageException {
+		return BlobStoreClient.getClient().blobMetadata(coldContainer, key);
+	}
+
+	/**
+	 * Replace the user metadata of a demoted payload, copying it onto itself
+	 * inside the cold container.
+	 *
+	 * @param key
+	 *            the key of the payload's blob
+	 * @param userMetadata
+	 *            the new user metadata
+	 * @throws StorageException
+	 *             if the BlobStore is unavailable
+	 */
+	void updateMetadata(String key, Map<String, String> userMetadata) throws StorageException {
+		BlobStoreClient.getClient().copyBlob(coldContainer, key, coldContainer, key,
+				CopyOptions.builder().userMetadata(userMetadata).build());
+	}
+
+	/**
+	 * Move a demoted payload back into the plugin's container.
+	 *
+	 * @param key
+	 *            the key of the payload's blob
+	 * @return boolean true if the payload was found in the cold container
+	 * @throws StorageException
+	 *             if the BlobStore is unavailable
+	 */
+	boolean promote(String key) throws StorageException {
+		BlobStore blobStore = BlobStoreClient.getClient();
+		if (!blobStore.blobExists(coldContainer, key)) {
+			return false;
+		}
+		try {
+			blobStore.copyBlob(coldContainer, key, BlobStoreClient.getContainerName(), key, CopyOptions.NONE);
+		} catch (RuntimeException e) {
+			// A concurrent read may have promoted it already
+			if (!blobStore.blobExists(BlobStoreClient.getContainerName(), key)) {
+				throw e;
+			}
+		}
+		blobStore.removeBlob(coldContainer, key);
+		lastRead.put(key, Long.valueOf(today()));
+		promoted.incrementAndGet();
+		log.debug("Promoted '{}' from cold storage", key);
+		return true;
+	}
+
+	/**
+	 * Remove an object's demoted payloads and statistics.
+	 *
+	 * @param oid
+	 *            the Object ID
+	 * @throws StorageException
+	 *             if the BlobStore is unavailable
+	 */
+	void removeObject(String oid) throws StorageException {
+		BlobStore blobStore = BlobStoreClient.getClient();
+		blobStore.deleteDirectory(coldContainer, oid);
+		blobStore.removeBlob(coldContainer, ACCESS_PREFIX + oid);
+		unsaved.remove(oid);
+	}
+
+	/**
+	 * Remove a payload's demoted content, if any.
+	 *
+	 * @param key
+	 *            the key of the payload's blob
+	 * @throws StorageException
+	 *             if the BlobStore is unavailable
+	 */
+	void removePayload(String key) throws StorageException {
+		BlobStoreClient.getClient().removeBlob(coldContainer, key);
+		lastRead.remove(key);
+	}
+
+	/**
+	 * Copy an object's demoted payloads to a new Object ID, inside the cold
+	 * container.
+	 *
+	 * @param srcOid
+	 *            the Object ID to copy from
+	 * @param dstOid
+	 *            the Object ID to copy to
+	 * @throws StorageException
+	 *             if any copy fails
+	 */
+	void copyObject(final String srcOid, final String dstOid) throws StorageException {
+		final BlobStore blobStore = BlobStoreClient.getClient();
+		List<Callable<Void>> copies = new ArrayList<Callable<Void>>();
+		for (StorageMetadata blob : BlobStoreClient.listObjectBlobs(blobStore, coldContainer, srcOid)) {
+			final String srcKey = blob.getName();
+			copies.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					blobStore.copyBlob(coldContainer, srcKey, coldContainer,
+							dstOid + srcKey.substring(srcOid.length()), CopyOptions.NONE);
+					return null;
+				}
+			});
+		}
+		BlobStoreClient.invokeAll(copies);
+	}
+
+	/**
+	 * Demote every payload of every object in the plugin's container that was
+	 * neither written nor read within the idle window, one page of the object
+	 * listing at a time. A page that cannot be processed does not stop the
+	 * run.
+	 *
+	 * @return int the number of payloads demoted
+	 * @throws StorageException
+	 *             if any object could not be processed
+	 */
+	public int demoteAll() throws StorageException {
+		int count = 0;
+		StorageException failure = null;
+		String marker = null;
+		do {
+			List<String> oids = new ArrayList<String>();
+			pacer.acquire();
+			marker = BlobStoreClient.listObjectIds(marker, oids);
+			try {
+				count += demote(oids);
+			} catch (StorageException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		} while (marker != null && !Thread.currentThread().isInterrupted());
+		if (failure != null) {
+			throw failure;
+		}
+		return count;
+	}
+
+	/**
+	 * Demote every payload of the given objects that was neither written nor
+	 * read within the idle window, one object after the other on the calling
+	 * thread. An object that cannot be processed does not stop the others.
+	 *
+	 * @param oids
+	 *            the Object IDs to check
+	 * @return int the number of payloads demoted
+	 * @throws StorageException
+	 *             if any object could not be processed
+	 */
+	public int demote(Collection<String> oids) throws StorageException {
+		int count = 0;
+		StorageException failure = null;
+		for (String oid : oids) {
+			if (Thread.currentThread().isInterrupted()) {
+				break;
+			}
+			try {
+				count += demoteObject(oid);
+			} catch (StorageException | RuntimeException e) {
+				log.warn("Demotion of '{}' failed", oid, e);
+				if (failure == null) {
+					failure = new StorageException("Demotion of '" + oid + "' failed", e);
+				}
+			}
+		}
+		demoted.addAndGet(count);
+		log.info("Cold storage run over {} objects demoted {} payloads", oids.size(), count);
+		if (failure != null) {
+			throw failure;
+		}
+		return count;
+	}
+
+	private int demoteObject(String oid) throws StorageException {
+		pacer.acquire();
+		Properties stats = loadStatistics(oid);
+		if (unsaved.remove(oid)) {
+			pacer.acquire();
+			saveStatistics(oid, stats);
+		}
+		pacer.acquire();
+		Set<String> payloads = BlobStoreDigitalObject.readManifestNames(oid);
+		if (payloads == null) {
+			return 0;
+		}
+
+		BlobStore blobStore = BlobStoreClient.getClient();
+		String container = BlobStoreClient.getContainerName();
+		String prefix = oid + "/";
+		long cutoffDay = today() - idleDays;
+		long cutoff = TimeUnit.DAYS.toMillis(cutoffDay);
+		int count = 0;
+		pacer.acquire();
+		for (StorageMetadata blob : BlobStoreClient.listObjectBlobs(oid)) {
+			String key = blob.getName();
+			String pid = key.substring(prefix.length());
+			if (!payloads.contains(pid) || blob.getLastModified() == null
+					|| blob.getLastModified().getTime() >= cutoff) {
+				continue;
+			}
+			String read = stats.getProperty(pid);
+			if (read != null && Long.parseLong(read) >= cutoffDay) {
+				continue;
+			}
+			pacer.acquire();
+			blobStore.copyBlob(container, key, coldContainer, key, CopyOptions.NONE);
+			if (dropHotCopy(blobStore, container, key, blob.getETag())) {
+				lastRead.remove(key);
+				count++;
+			} else {
+				pacer.acquire();
+				blobStore.removeBlob(coldContainer, key);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Remove the hot copy of a payload just copied to the cold container,
+	 * unless it was rewritten since it was listed. Writes in this JVM
+	 * announced meanwhile wait until this returns, so none can land between
+	 * the check and the delete.
+	 *
+	 * @return boolean true if the cold copy is now the only one
+	 */
+	private boolean dropHotCopy(BlobStore blobStore, String container, String key, String listedETag) {
+		Object lock = BlobStoreDigitalObject.manifestLock(oidOf(key));
+		synchronized (lock) {
+			if (writing.containsKey(key)) {
+				return false;
+			}
+			dropping.add(key);
+		}
+		try {
+			pacer.acquire();
+			BlobMetadata current = blobStore.blobMetadata(container, key);
+			if (current == null || !equal(current.getETag(), listedETag)) {
+				return false;
+			}
+			pacer.acquire();
+			blobStore.removeBlob(container, key);
+			// Another client may still have written between the check and the delete
+			pacer.acquire();
+			return !blobStore.blobExists(container, key);
+		} finally {
+			synchronized (lock) {
+				dropping.remove(key);
+				lock.notifyAll();
+			}
+		}
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Merge the object's persisted read days with those recorded since.
+	 */
+	private Properties loadStatistics(String oid) throws StorageException {
+		Properties stats = new Properties();
+		Blob statsBlob = BlobStoreClient.getClient().getBlob(coldContainer, ACCESS_PREFIX + oid);
+		if (statsBlob != null) {
+			try {
+				stats.load(statsBlob.getPayload().openStream());
+			} catch (IOException e) {
+				throw new StorageException("Failed to read access statistics of " + oid, e);
+			}
+		}
+		String prefix = oid + "/";
+		for (Map.Entry<String, Long> read : lastRead.entrySet()) {
+			if (read.getKey().startsWith(prefix) && read.getKey().indexOf('/', prefix.length()) < 0) {
+				String pid = read.getKey().substring(prefix.length());
+				String known = stats.getProperty(pid);
+				if (known == null || Long.parseLong(known) < read.getValue()) {
+					stats.setProperty(pid, String.valueOf(read.getValue()));
+				}
+			}
+		}
+		return stats;
+	}
+
+	private void saveStatistics(String oid, Properties stats) throws StorageException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try {
+			stats.store(output, null);
+		} catch (IOException e) {
+			throw new StorageException("Failed to write access statistics of " + oid, e);
+		}
+		BlobStore blobStore = BlobStoreClient.getClient();
+		Blob statsBlob = blobStore.blobBuilder(ACCESS_PREFIX + oid).payload(output.toByteArray())
+				.contentLength(output.size()).build();
+		blobStore.putBlob(coldContainer, statsBlob);
+	}
+
+	/**
+	 * Write the recorded reads of every object that has unsaved ones.
+	 *
+	 * @throws StorageException
+	 *             if any statistics could not be written
+	 */
+	public void saveStatistics() throws StorageException {
+		for (String oid : new HashSet<String>(unsaved)) {
+			if (unsaved.remove(oid)) {
+				saveStatistics(oid, loadStatistics(oid));
+			}
+		}
+	}
+
+	/**
+	 * Demote idle payloads of every object periodically in the background.
+	 *
+	 * @param intervalMinutes
+	 *            time between the end of one run and the start of the next
+	 */
+	public synchronized void start(long intervalMinutes) {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "blobstore-cold-storage");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					demoteAll();
+				} catch (Exception e) {
+					log.error("Cold storage run failed", e);
+				}
+			}
+		}, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Stop background demotion and write the recorded reads.
+	 */
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		try {
+			saveStatistics();
+		} catch (StorageException e) {
+			log.warn("Failed to write access statistics", e);
+		}
+	}
+
+	/**
+	 * @return int the number of payloads demoted since this was created
+	 */
+	public int getDemoted() {
+		return demoted.get();
+	}
+
+	/**
+	 * @return int the number of payloads promoted since this was created
+	 */
+	public int getPromoted() {
+		return promoted.get();
+	}
+}
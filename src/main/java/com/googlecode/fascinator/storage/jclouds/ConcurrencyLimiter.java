@@ -0,0 +1,275 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.lang.reflect.Method;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.http.HttpResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adaptive limit on concurrent BlobStore requests. Reads, writes and listings
+ * each have their own budget, so a burst of one kind cannot starve the
+ * others. Each budget follows AIMD: while requests succeed with the budget in
+ * full use its limit grows by about one per round of requests, and a request
+ * failing with a sign of overload, HTTP 429 or 503 or a timeout, halves it.
+ * Throughput thereby settles just below what the backend can take, whether
+ * one job or many share it.
+ * <p>
+ * Each budget can also be given a hard cap in requests per second, enforced
+ * with a token bucket holding up to a second's worth of requests, for
+ * providers with documented rate limits.
+ * </p>
+ */
+public class ConcurrencyLimiter extends ForwardingBlobStore {
+
+	/** Logging */
+	private static Logger log = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+
+	private static final List<String> READS = Arrays.asList("getBlob", "blobExists", "blobMetadata",
+			"directoryExists", "containerExists");
+
+	private static final List<String> LISTINGS = Arrays.asList("list", "countBlobs", "listAssignableLocations");
+
+	private static final List<String> WRITES = Arrays.asList("putBlob", "removeBlob", "removeBlobs", "copyBlob",
+			"createDirectory", "deleteDirectory", "clearContainer", "createContainerInLocation", "deleteContainer",
+			"deleteContainerIfEmpty");
+
+	/** Minimum time between two decreases of a limit */
+	private static final long DECREASE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+	private final Budget reads;
+
+	private final Budget writes;
+
+	private final Budget listings;
+
+	/**
+	 * @param initialLimit
+	 *            the starting concurrency of each budget
+	 * @param minLimit
+	 *            the lowest concurrency a budget is reduced to
+	 * @param maxLimit
+	 *            the highest concurrency a budget grows to
+	 * @param readsPerSecond
+	 *            hard cap on reads, 0 for none
+	 * @param writesPerSecond
+	 *            hard cap on writes, 0 for none
+	 * @param listingsPerSecond
+	 *            hard cap on listings, 0 for none
+	 */
+	public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double readsPerSecond,
+			double writesPerSecond, double listingsPerSecond) {
+		reads = new Budget("reads", initialLimit, minLimit, maxLimit, readsPerSecond);
+		writes = new Budget("writes", initialLimit, minLimit, maxLimit, writesPerSecond);
+		listings = new Budget("listings", initialLimit, minLimit, maxLimit, listingsPerSecond);
+	}
+
+	/**
+	 * Limit the requests of a BlobStore client.
+	 *
+	 * @param blobStore
+	 *            the client
+	 * @return BlobStore the limited client
+	 */
+	public BlobStore wrap(BlobStore blobStore) {
+		return proxy(blobStore);
+	}
+
+	@Override
+	protected Object dispatch(Method method, Object[] args) throws Throwable {
+		Budget budget = budgetFor(method.getName());
+		if (budget == null) {
+			return forward(method, args);
+		}
+		budget.acquire();
+		boolean overloaded = false;
+		try {
+			return forward(method, args);
+		} catch (Throwable e) {
+			overloaded = isOverload(e);
+			throw e;
+		} finally {
+			budget.release(overloaded);
+		}
+	}
+
+	private Budget budgetFor(String method) {
+		if (READS.contains(method)) {
+			return reads;
+		}
+		if (WRITES.contains(method)) {
+			return writes;
+		}
+		if (LISTINGS.contains(method)) {
+			return listings;
+		}
+		return null;
+	}
+
+	/**
+	 * Whether a failure says the backend is taking more than it can handle.
+	 */
+	private static boolean isOverload(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof HttpResponseException && ((HttpResponseException) cause).getResponse() != null) {
+				int status = ((HttpResponseException) cause).getResponse().getStatusCode();
+				return status == 429 || status == 503;
+			}
+			if (cause instanceof SocketTimeoutException || cause instanceof TimeoutException) {
+				return true;
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param kind
+	 *            'reads', 'writes' or 'listings'
+	 * @return int the current concurrency limit of that budget
+	 */
+	public int getLimit(String kind) {
+		return budget(kind).getLimit();
+	}
+
+	/**
+	 * @param kind
+	 *            'reads', 'writes' or 'listings'
+	 * @return int the requests of that budget currently running
+	 */
+	public int getInFlight(String kind) {
+		return budget(kind).getInFlight();
+	}
+
+	private Budget budget(String kind) {
+		if ("reads".equals(kind)) {
+			return reads;
+		}
+		if ("writes".equals(kind)) {
+			return writes;
+		}
+		if ("listings".equals(kind)) {
+			return listings;
+		}
+		throw new IllegalArgumentException("Unknown budget '" + kind + "'");
+	}
+
+	/**
+	 * One AIMD concurrency limit plus an optional token bucket.
+	 */
+	private static class Budget {
+		private final String name;
+
+		private final int minLimit;
+
+		private final int maxLimit;
+
+		private final double ratePerSecond;
+
+		private double limit;
+
+		private int inFlight;
+
+		private long lastDecrease;
+
+		/** Tokens available; negative while requests wait on reservations */
+		private double tokens;
+
+		private long lastRefill = System.nanoTime();
+
+		Budget(String name, int initialLimit, int minLimit, int maxLimit, double ratePerSecond) {
+			this.name = name;
+			this.minLimit = Math.max(1, minLimit);
+			this.maxLimit = Math.max(this.minLimit, maxLimit);
+			this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+			this.ratePerSecond = ratePerSecond;
+			this.tokens = ratePerSecond;
+			this.lastDecrease = System.nanoTime() - DECREASE_INTERVAL_NANOS;
+		}
+
+		void acquire() {
+			try {
+				long wait = reserveToken();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				synchronized (this) {
+					while (inFlight >= (int) limit) {
+						wait();
+					}
+					inFlight++;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted waiting for BlobStore " + name + " capacity", e);
+			}
+		}
+
+		/**
+		 * Take a token, or reserve the next one.
+		 *
+		 * @return long nanoseconds to wait before the request may start
+		 */
+		private synchronized long reserveToken() {
+			if (ratePerSecond <= 0) {
+				return 0;
+			}
+			long now = System.nanoTime();
+			tokens = Math.min(ratePerSecond, tokens + (now - lastRefill) * ratePerSecond / TimeUnit.SECONDS.toNanos(1));
+			lastRefill = now;
+			tokens--;
+			return tokens >= 0 ? 0 : (long) (-tokens / ratePerSecond * TimeUnit.SECONDS.toNanos(1));
+		}
+
+		synchronized void release(boolean overloaded) {
+			boolean saturated = inFlight >= (int) limit;
+			inFlight--;
+			long now = System.nanoTime();
+			if (overloaded) {
+				if (now - lastDecrease >= DECREASE_INTERVAL_NANOS) {
+					limit = Math.max(minLimit, limit / 2);
+					lastDecrease = now;
+					log.info("BlobStore overloaded, {} limit reduced to {}", name, (int) limit);
+				}
+			} else if (saturated) {
+				// Grows by one once a full limit's worth of requests succeeded
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+			notifyAll();
+		}
+
+		synchronized int getLimit() {
+			return (int) limit;
+		}
+
+		synchronized int getInFlight() {
+			return inFlight;
+		}
+	}
+}
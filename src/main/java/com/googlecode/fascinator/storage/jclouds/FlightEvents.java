@@ -0,0 +1,289 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.lang.reflect.Method;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+
+/**
+ * Java Flight Recorder events for BlobStore requests and manifest builds, so
+ * recordings show which container, key and plugin method a slow request
+ * belonged to instead of anonymous socket reads inside jclouds. Events cost
+ * next to nothing unless a recording enables them, and plugin operations are
+ * only tracked for their names while one does.
+ * <p>
+ * jdk.jfr is only referenced by the nested classes, which are loaded when
+ * the runtime provides it, so the plugin still runs on Java 8 builds without
+ * Flight Recorder.
+ * </p>
+ */
+final class FlightEvents {
+
+	private static final boolean AVAILABLE = isAvailable();
+
+	private static volatile boolean enabled = AVAILABLE;
+
+	private static final Span NO_SPAN = new Span() {
+		@Override
+		public void setItems(int items) {
+		}
+
+		@Override
+		public void succeeded() {
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	private FlightEvents() {
+	}
+
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.FlightRecorder");
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param enable
+	 *            whether to emit events, which only takes effect where Flight
+	 *            Recorder is available
+	 */
+	static void setEnabled(boolean enable) {
+		enabled = enable && AVAILABLE;
+		if (!enabled) {
+			PluginOperation.setRecording(false);
+		}
+	}
+
+	/**
+	 * @return boolean whether events are emitted
+	 */
+	static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Emit an event for every request of a BlobStore client.
+	 *
+	 * @param blobStore
+	 *            the client
+	 * @return BlobStore the recorded client, or the client itself if events
+	 *         are disabled
+	 */
+	static BlobStore wrap(BlobStore blobStore) {
+		if (!enabled) {
+			return blobStore;
+		}
+		RecordingWatcher.install();
+		return new RequestRecorder().proxy(blobStore);
+	}
+
+	/**
+	 * Start recording a manifest build.
+	 *
+	 * @param oid
+	 *            the object whose manifest is built
+	 * @return Span to close once the build is over
+	 */
+	static Span manifestBuild(String oid) {
+		return enabled ? new ManifestSpan(oid) : NO_SPAN;
+	}
+
+	/**
+	 * A timed piece of work, recorded as failed unless marked otherwise.
+	 */
+	interface Span extends AutoCloseable {
+		/**
+		 * @param items
+		 *            the number of items the work produced
+		 */
+		void setItems(int items);
+
+		/**
+		 * Mark the work as successful.
+		 */
+		void succeeded();
+
+		@Override
+		void close();
+	}
+
+	/**
+	 * Tracks plugin operations while a recording enables the plugin's events.
+	 */
+	private static class RecordingWatcher implements FlightRecorderListener {
+		private static boolean installed;
+
+		static synchronized void install() {
+			if (!installed) {
+				installed = true;
+				FlightRecorder.addListener(new RecordingWatcher());
+				// Recordings already running caused no notification
+				update();
+			}
+		}
+
+		@Override
+		public void recordingStateChanged(Recording recording) {
+			update();
+		}
+
+		private static void update() {
+			PluginOperation.setRecording(enabled && (EventType.getEventType(RequestEvent.class).isEnabled()
+					|| EventType.getEventType(ManifestBuildEvent.class).isEnabled()));
+		}
+	}
+
+	private static class RequestRecorder extends ForwardingBlobStore {
+		@Override
+		protected Object dispatch(Method method, Object[] args) throws Throwable {
+			RequestEvent event = new RequestEvent();
+			event.begin();
+			String outcome = "error";
+			Object result = null;
+			try {
+				result = forward(method, args);
+				outcome = "ok";
+				return result;
+			} catch (Throwable e) {
+				outcome = e.getClass().getSimpleName();
+				throw e;
+			} finally {
+				event.end();
+				if (event.shouldCommit()) {
+					event.operation = method.getName();
+					event.caller = PluginOperation.current();
+					if (args != null && args.length > 0 && args[0] instanceof String) {
+						event.container = (String) args[0];
+					}
+					if (args != null && args.length > 1) {
+						event.key = key(args[1]);
+					}
+					event.bytes = "putBlob".equals(method.getName()) ? BlobStoreMetrics.contentLength(args[1])
+							: BlobStoreMetrics.contentLength(result);
+					event.outcome = outcome;
+					event.commit();
+				}
+			}
+		}
+
+		private static String key(Object arg) {
+			if (arg instanceof String) {
+				return (String) arg;
+			}
+			if (arg instanceof Blob) {
+				return ((Blob) arg).getMetadata().getName();
+			}
+			return null;
+		}
+	}
+
+	private static class ManifestSpan implements Span {
+		private final ManifestBuildEvent event = new ManifestBuildEvent();
+
+		private String outcome = "error";
+
+		ManifestSpan(String oid) {
+			event.oid = oid;
+			event.begin();
+		}
+
+		@Override
+		public void setItems(int items) {
+			event.items = items;
+		}
+
+		@Override
+		public void succeeded() {
+			outcome = "ok";
+		}
+
+		@Override
+		public void close() {
+			event.end();
+			if (event.shouldCommit()) {
+				event.caller = PluginOperation.current();
+				event.outcome = outcome;
+				event.commit();
+			}
+		}
+	}
+
+	@Name("com.googlecode.fascinator.storage.jclouds.BlobStoreRequest")
+	@Label("BlobStore Request")
+	@Category({ "Fascinator", "BlobStore" })
+	@Description("A request from the storage plugin to the BlobStore")
+	static class RequestEvent extends Event {
+		@Label("Operation")
+		String operation;
+
+		@Label("Plugin Method")
+		String caller;
+
+		@Label("Container")
+		String container;
+
+		@Label("Key")
+		String key;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Outcome")
+		String outcome;
+	}
+
+	@Name("com.googlecode.fascinator.storage.jclouds.ManifestBuild")
+	@Label("Manifest Build")
+	@Category({ "Fascinator", "BlobStore" })
+	@Description("Reading an object's manifest and instantiating its payloads")
+	static class ManifestBuildEvent extends Event {
+		@Label("Object ID")
+		String oid;
+
+		@Label("Plugin Method")
+		String caller;
+
+		@Label("Payloads")
+		int items;
+
+		@Label("Outcome")
+		String outcome;
+	}
+}
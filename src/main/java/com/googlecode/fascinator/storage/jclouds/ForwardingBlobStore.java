@@ -0,0 +1,105 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jclouds.blobstore.BlobStore;
+
+/**
+ * Base of the BlobStore decorators. A decorator hands the client it wraps to
+ * {@link #proxy(BlobStore)} and receives every request made through the
+ * returned client in {@link #dispatch(Method, Object[])}, except for the
+ * methods the client answers locally, which go straight to the wrapped
+ * client. Implementations of {@link BlobStoreDecorator} can build on it the
+ * same way.
+ */
+public abstract class ForwardingBlobStore {
+
+	/** Methods answered locally, which never reach the backend */
+	static final List<String> LOCAL = Arrays.asList("getContext", "blobBuilder", "toString", "hashCode",
+			"equals");
+
+	private volatile BlobStore delegate;
+
+	/**
+	 * Wrap a BlobStore client in this decorator.
+	 *
+	 * @param blobStore
+	 *            the client to wrap
+	 * @return BlobStore the decorated client
+	 */
+	protected BlobStore proxy(BlobStore blobStore) {
+		this.delegate = blobStore;
+		return (BlobStore) Proxy.newProxyInstance(BlobStore.class.getClassLoader(),
+				new Class<?>[] { BlobStore.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (LOCAL.contains(method.getName())) {
+							return forward(method, args);
+						}
+						return dispatch(method, args);
+					}
+				});
+	}
+
+	/**
+	 * Handle a request made through the decorated client.
+	 *
+	 * @param method
+	 *            the BlobStore method
+	 * @param args
+	 *            its arguments, or null if it has none
+	 * @return Object the result of the request
+	 * @throws Throwable
+	 *             the failure of the request, as the BlobStore would throw it
+	 */
+	protected abstract Object dispatch(Method method, Object[] args) throws Throwable;
+
+	/**
+	 * Pass a request on to the wrapped client unchanged.
+	 */
+	protected Object forward(Method method, Object[] args) throws Throwable {
+		return invoke(delegate, method, args);
+	}
+
+	/**
+	 * @return BlobStore the wrapped client
+	 */
+	protected BlobStore getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Make a request of a BlobStore, throwing its failure as the BlobStore
+	 * threw it rather than wrapped by reflection.
+	 */
+	protected static Object invoke(BlobStore target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+/**
+ * Receives every BlobStore request measured by {@link BlobStoreMetrics}, to
+ * forward it to a metrics library of choice. Implementations configured by
+ * class name need a public no-argument constructor. They are called on the
+ * requesting thread and should return quickly.
+ */
+public interface MetricsListener {
+
+	/**
+	 * Record one BlobStore request.
+	 *
+	 * @param operation
+	 *            the BlobStore method, such as getBlob
+	 * @param caller
+	 *            the plugin method that caused it, such as getObject
+	 * @param nanos
+	 *            the duration of the request
+	 * @param error
+	 *            whether the request failed
+	 * @param bytesIn
+	 *            content bytes received, as far as known
+	 * @param bytesOut
+	 *            content bytes sent, as far as known
+	 */
+	void record(String operation, String caller, long nanos, boolean error, long bytesIn, long bytesOut);
+}
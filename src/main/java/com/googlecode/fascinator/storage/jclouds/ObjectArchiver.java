@@ -0,0 +1,330 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.jclouds.blobstore.domain.Blob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.PayloadType;
+import com.googlecode.fascinator.api.storage.StorageException;
+
+/**
+ * Streams whole objects to and from zip archives, for backups and for moving
+ * records between repositories. Each object is written as its manifest
+ * followed by one properties entry and one content entry per payload, each
+ * kind of entry in its own namespace so no payload ID can be mistaken for
+ * another kind:
+ *
+ * <pre>
+ *  manifest/oid
+ *  metadata/oid/pid
+ *  content/oid/pid
+ * </pre>
+ *
+ * Export fetches up to 'window' payloads in parallel ahead of a single writer
+ * that emits them in order, so memory use does not grow with the size or
+ * number of payloads. Import reads the archive sequentially and streams each
+ * payload straight into storage.
+ */
+public class ObjectArchiver {
+
+	/** Logging */
+	private static Logger log = LoggerFactory.getLogger(ObjectArchiver.class);
+
+	/** Default number of payloads fetched ahead of the writer */
+	private static final int DEFAULT_WINDOW = 8;
+
+	private static final String MANIFEST_ENTRY = "manifest/";
+
+	private static final String METADATA_ENTRY = "metadata/";
+
+	private static final String CONTENT_ENTRY = "content/";
+
+	private static final String LABEL = "label";
+
+	private static final String TYPE = "type";
+
+	private static final String CONTENT_TYPE = "contentType";
+
+	private static final String SIZE = "size";
+
+	private final BlobStoreStorage storage;
+
+	private int window = DEFAULT_WINDOW;
+
+	/**
+	 * @param storage
+	 *            the storage to export from or import into
+	 */
+	public ObjectArchiver(BlobStoreStorage storage) {
+		this.storage = storage;
+	}
+
+	/**
+	 * @param window
+	 *            the number of payloads fetched ahead of the writer
+	 */
+	public void setWindow(int window) {
+		this.window = window;
+	}
+
+	/**
+	 * Write the given objects to a zip stream. The stream is finished but not
+	 * closed.
+	 *
+	 * @param oids
+	 *            the Object IDs to export
+	 * @param out
+	 *            the stream to write to
+	 * @throws StorageException
+	 *             if any object could not be read or written
+	 */
+	public void exportObjects(Collection<String> oids, OutputStream out) throws StorageException {
+		ZipOutputStream zip = new ZipOutputStream(out);
+		Deque<Future<Fetched>> pending = new ArrayDeque<Future<Fetched>>();
+		// Payloads fetched but not yet written, guarded by itself
+		final Set<Fetched> open = new HashSet<Fetched>();
+		final AtomicBoolean abandoned = new AtomicBoolean();
+		boolean complete = false;
+		try {
+			for (String oid : oids) {
+				final DigitalObject object = storage.getObject(oid);
+				writeManifest(oid, zip);
+				for (final String pid : object.getPayloadIdList()) {
+					if (pending.size() >= window) {
+						writePayload(pending.removeFirst(), zip, open);
+					}
+					pending.addLast(BlobStoreClient.getExecutor().submit(new Callable<Fetched>() {
+						@Override
+						public Fetched call() throws StorageException {
+							Fetched fetched = new Fetched(object.getId(), (BlobStorePayload) object.getPayload(pid));
+							synchronized (open) {
+								if (abandoned.get()) {
+									fetched.close();
+									return null;
+								}
+								open.add(fetched);
+							}
+							return fetched;
+						}
+					}));
+				}
+			}
+			while (!pending.isEmpty()) {
+				writePayload(pending.removeFirst(), zip, open);
+			}
+			zip.finish();
+			complete = true;
+		} catch (IOException e) {
+			throw new StorageException("Failed to write archive", e);
+		} finally {
+			if (!complete) {
+				// Fetches finishing from now on close their own payload
+				synchronized (open) {
+					abandoned.set(true);
+					for (Fetched fetched : open) {
+						fetched.close();
+					}
+					open.clear();
+				}
+				for (Future<Fetched> future : pending) {
+					future.cancel(true);
+				}
+			}
+		}
+		log.info("Exported {} objects", oids.size());
+	}
+
+	private void writeManifest(String oid, ZipOutputStream zip) throws StorageException, IOException {
+		Blob manifest = BlobStoreClient.getClient().getBlob(BlobStoreClient.getContainerName(),
+				oid + "/" + BlobStoreDigitalObject.MANIFEST_KEY);
+		if (manifest == null) {
+			return;
+		}
+		zip.putNextEntry(new ZipEntry(MANIFEST_ENTRY + oid));
+		try (InputStream in = manifest.getPayload().openStream()) {
+			IOUtils.copy(in, zip);
+		}
+		zip.closeEntry();
+	}
+
+	private void writePayload(Future<Fetched> future, ZipOutputStream zip, Set<Fetched> open)
+			throws StorageException, IOException {
+		Fetched fetched;
+		try {
+			fetched = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted exporting payloads", e);
+		} catch (ExecutionException e) {
+			throw new StorageException("Failed to fetch payload", e.getCause());
+		}
+		try {
+			String name = fetched.oid + "/" + fetched.payload.getId();
+			zip.putNextEntry(new ZipEntry(METADATA_ENTRY + name));
+			fetched.metadata.store(zip, null);
+			zip.closeEntry();
+
+			zip.putNextEntry(new ZipEntry(CONTENT_ENTRY + name));
+			IOUtils.copy(fetched.content, zip);
+			zip.closeEntry();
+		} finally {
+			synchronized (open) {
+				open.remove(fetched);
+			}
+			fetched.close();
+		}
+	}
+
+	/**
+	 * Read objects from a zip stream written by
+	 * {@link #exportObjects(Collection, OutputStream)}. Objects that do not
+	 * exist are created and payloads that already exist are replaced.
+	 *
+	 * @param in
+	 *            the stream to read from, which is not closed
+	 * @return int the number of payloads imported
+	 * @throws StorageException
+	 *             if the archive could not be read or stored
+	 */
+	public int importObjects(InputStream in) throws StorageException {
+		ZipInputStream zip = new ZipInputStream(in);
+		BlobStoreDigitalObject object = null;
+		Properties metadata = null;
+		String metadataName = null;
+		int count = 0;
+		try {
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				String name = entry.getName();
+				if (name.startsWith(MANIFEST_ENTRY)) {
+					// The manifest is rebuilt as payloads are imported
+					String oid = name.substring(MANIFEST_ENTRY.length());
+					if (object == null || !object.getId().equals(oid)) {
+						object = openObject(oid);
+					}
+					continue;
+				}
+				if (name.startsWith(METADATA_ENTRY)) {
+					metadata = new Properties();
+					metadata.load(new CloseShieldInputStream(zip));
+					metadataName = name.substring(METADATA_ENTRY.length());
+					continue;
+				}
+				if (!name.startsWith(CONTENT_ENTRY)) {
+					continue;
+				}
+				name = name.substring(CONTENT_ENTRY.length());
+				int slash = name.indexOf('/');
+				if (slash < 0) {
+					continue;
+				}
+				String oid = name.substring(0, slash);
+				String pid = name.substring(slash + 1);
+				if (object == null || !object.getId().equals(oid)) {
+					object = openObject(oid);
+				}
+				if (metadata == null || !name.equals(metadataName)) {
+					throw new StorageException("Archive entry '" + name + "' has no metadata entry");
+				}
+				object.importPayload(pid, new CloseShieldInputStream(zip), Long.parseLong(metadata.getProperty(SIZE)),
+						metadata.getProperty(LABEL), PayloadType.valueOf(metadata.getProperty(TYPE)),
+						metadata.getProperty(CONTENT_TYPE));
+				metadata = null;
+				count++;
+			}
+		} catch (IOException e) {
+			throw new StorageException("Failed to read archive", e);
+		}
+		log.info("Imported {} payloads", count);
+		return count;
+	}
+
+	private BlobStoreDigitalObject openObject(String oid) throws StorageException {
+		if (BlobStoreDigitalObject.exists(oid)) {
+			return (BlobStoreDigitalObject) storage.getObject(oid);
+		}
+		return (BlobStoreDigitalObject) storage.createObject(oid);
+	}
+
+	/**
+	 * A payload whose metadata is loaded and whose content stream is open.
+	 */
+	private static class Fetched {
+		private final String oid;
+
+		private final BlobStorePayload payload;
+
+		private final Properties metadata = new Properties();
+
+		private final InputStream content;
+
+		Fetched(String oid, BlobStorePayload payload) throws StorageException {
+			this.oid = oid;
+			this.payload = payload;
+			content = payload.open();
+			try {
+				loadMetadata();
+			} catch (StorageException | RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+
+		private void loadMetadata() throws StorageException {
+			if (payload.getLabel() != null) {
+				metadata.setProperty(LABEL, payload.getLabel());
+			}
+			metadata.setProperty(TYPE, payload.getType().toString());
+			if (payload.getContentType() != null) {
+				metadata.setProperty(CONTENT_TYPE, payload.getContentType());
+			}
+			metadata.setProperty(SIZE, String.valueOf(payload.size()));
+		}
+
+		void close() {
+			try {
+				payload.close();
+			} catch (StorageException e) {
+				log.warn("Failed to close payload '{}' of '{}'", payload.getId(), oid, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.blobstore.BlobStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+
+/**
+ * Removes every blob belonging to an object. The object's keys are listed once
+ * and removed in parallel batches, using the provider's bulk delete where it
+ * has one. The manifest is removed last so that an object left behind by a
+ * failed purge still describes its remaining payloads and can be purged again.
+ * Progress can be read from other threads while the purge runs.
+ */
+public class ObjectPurge {
+
+	/** Logging */
+	private static Logger log = LoggerFactory.getLogger(ObjectPurge.class);
+
+	private final String oid;
+
+	private final int batchSize;
+
+	private final AtomicInteger total = new AtomicInteger(-1);
+
+	private final AtomicInteger removed = new AtomicInteger();
+
+	private volatile boolean finished;
+
+	ObjectPurge(String oid, int batchSize) {
+		this.oid = oid;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Perform the purge.
+	 *
+	 * @throws StorageException
+	 *             if any blob could not be removed
+	 */
+	void run() throws StorageException {
+		final BlobStore client = BlobStoreClient.getClient();
+		final String container = BlobStoreClient.getContainerName();
+		String manifestKey = oid + "/" + BlobStoreDigitalObject.MANIFEST_KEY;
+
+		List<String> keys = BlobStoreClient.listObjectKeys(oid);
+		boolean hasManifest = keys.remove(manifestKey);
+		total.set(keys.size() + (hasManifest ? 1 : 0));
+
+		List<Callable<Void>> batches = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < keys.size(); i += batchSize) {
+			final List<String> batch = keys.subList(i, Math.min(i + batchSize, keys.size()));
+			batches.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					client.removeBlobs(container, batch);
+					removed.addAndGet(batch.size());
+					return null;
+				}
+			});
+		}
+		try {
+			BlobStoreClient.invokeAll(batches);
+			if (hasManifest) {
+				client.removeBlob(container, manifestKey);
+				removed.incrementAndGet();
+			}
+			// Only the (now empty) directory or its marker remain
+			client.deleteDirectory(container, oid);
+		} finally {
+			finished = true;
+		}
+		log.debug("Purged {} blobs of object '{}'", removed.get(), oid);
+	}
+
+	/**
+	 * @return String the Object ID being purged
+	 */
+	public String getOid() {
+		return oid;
+	}
+
+	/**
+	 * @return int the number of blobs to remove, or -1 while still listing
+	 */
+	public int getTotal() {
+		return total.get();
+	}
+
+	/**
+	 * @return int the number of blobs removed so far
+	 */
+	public int getRemoved() {
+		return removed.get();
+	}
+
+	/**
+	 * @return boolean true once the purge has completed or failed
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+}
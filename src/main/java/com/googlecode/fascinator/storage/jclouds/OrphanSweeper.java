@@ -0,0 +1,263 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+
+/**
+ * Finds and removes blobs that no longer belong to any payload in their
+ * object's manifest, such as payloads and metadata sidecars left behind by
+ * earlier versions of removePayload() or by interrupted writes. Objects are
+ * swept in parallel on a small pool of the sweeper's own threads, never on the
+ * shared I/O threads, and every request of every thread is paced through one
+ * budget of requests per second so a sweep never competes with regular
+ * traffic for the BlobStore. A sweep of every object lists the container one
+ * page at a time. Blobs younger than a grace period are left alone since they
+ * may belong to a payload that is still being created.
+ */
+public class OrphanSweeper {
+
+	/** Logging */
+	private static Logger log = LoggerFactory.getLogger(OrphanSweeper.class);
+
+	private final RequestPacer pacer;
+
+	private final long gracePeriodMillis;
+
+	private final int threads;
+
+	private ScheduledExecutorService scheduler;
+
+	/** Sweeps objects, created on first use */
+	private ExecutorService workers;
+
+	private final AtomicInteger removed = new AtomicInteger();
+
+	/**
+	 * @param requestsPerSecond
+	 *            the I/O budget of the sweeper
+	 * @param gracePeriodMinutes
+	 *            minimum age of a blob before it may be removed
+	 * @param threads
+	 *            the number of objects swept in parallel
+	 */
+	public OrphanSweeper(double requestsPerSecond, long gracePeriodMinutes, int threads) {
+		this.pacer = new RequestPacer(requestsPerSecond);
+		this.gracePeriodMillis = TimeUnit.MINUTES.toMillis(gracePeriodMinutes);
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Sweep every object in storage once, one page of the object listing at a
+	 * time. A page that cannot be swept does not stop the sweep.
+	 *
+	 * @return int the number of orphans removed by this sweep
+	 * @throws StorageException
+	 *             if any object could not be swept
+	 */
+	public int sweepAll() throws StorageException {
+		int count = 0;
+		StorageException failure = null;
+		String marker = null;
+		do {
+			List<String> oids = new ArrayList<String>();
+			pacer.acquire();
+			marker = BlobStoreClient.listObjectIds(marker, oids);
+			try {
+				count += sweep(oids);
+			} catch (StorageException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		} while (marker != null && !Thread.currentThread().isInterrupted());
+		if (failure != null) {
+			throw failure;
+		}
+		return count;
+	}
+
+	/**
+	 * Sweep the given objects once on the sweeper's threads and wait for them.
+	 * An object that cannot be swept does not stop the sweep of the others.
+	 *
+	 * @param oids
+	 *            the Object IDs to sweep
+	 * @return int the number of orphans removed by this sweep
+	 * @throws StorageException
+	 *             if any object could not be swept
+	 */
+	public int sweep(Collection<String> oids) throws StorageException {
+		ExecutorService pool = workers();
+		Map<String, Future<Integer>> sweeps = new LinkedHashMap<String, Future<Integer>>();
+		for (final String oid : oids) {
+			sweeps.put(oid, pool.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws StorageException {
+					return Integer.valueOf(sweepObject(oid));
+				}
+			}));
+		}
+		int count = 0;
+		StorageException failure = null;
+		for (Map.Entry<String, Future<Integer>> sweep : sweeps.entrySet()) {
+			try {
+				count += sweep.getValue().get().intValue();
+			} catch (ExecutionException e) {
+				log.warn("Orphan sweep of '{}' failed", sweep.getKey(), e.getCause());
+				if (failure == null) {
+					failure = new StorageException("Orphan sweep of '" + sweep.getKey() + "' failed", e.getCause());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				for (Future<Integer> pending : sweeps.values()) {
+					pending.cancel(true);
+				}
+				break;
+			}
+		}
+		removed.addAndGet(count);
+		log.info("Orphan sweep of {} objects removed {} blobs", oids.size(), count);
+		if (failure != null) {
+			throw failure;
+		}
+		return count;
+	}
+
+	/**
+	 * Sweep a single object.
+	 *
+	 * @param oid
+	 *            the Object ID to sweep
+	 * @return int the number of orphans removed
+	 * @throws StorageException
+	 *             if any errors occur
+	 */
+	int sweepObject(String oid) throws StorageException {
+		pacer.acquire();
+		List<StorageMetadata> blobs = BlobStoreClient.listObjectBlobs(oid);
+		pacer.acquire();
+		Set<String> payloads = BlobStoreDigitalObject.readManifestNames(oid);
+		if (payloads == null) {
+			// Without a manifest we cannot tell what belongs to the object
+			return 0;
+		}
+
+		String prefix = oid + "/";
+		long cutoff = System.currentTimeMillis() - gracePeriodMillis;
+		List<String> orphans = new ArrayList<String>();
+		for (StorageMetadata blob : blobs) {
+			String pid = blob.getName().substring(prefix.length());
+			if (BlobStoreDigitalObject.MANIFEST_KEY.equals(pid)) {
+				continue;
+			}
+			if (pid.endsWith(BlobStorePayload.METADATA_SUFFIX)) {
+				pid = pid.substring(0, pid.length() - BlobStorePayload.METADATA_SUFFIX.length());
+			}
+			if (!payloads.contains(pid)
+					&& (blob.getLastModified() == null || blob.getLastModified().getTime() < cutoff)) {
+				orphans.add(blob.getName());
+			}
+		}
+		if (!orphans.isEmpty()) {
+			pacer.acquire();
+			BlobStoreClient.getClient().removeBlobs(BlobStoreClient.getContainerName(), orphans);
+			log.debug("Removed orphans {}", orphans);
+		}
+		return orphans.size();
+	}
+
+	private synchronized ExecutorService workers() {
+		if (workers == null) {
+			workers = Executors.newFixedThreadPool(threads, BlobStoreClient.daemonThreads("blobstore-orphan-sweep-"));
+		}
+		return workers;
+	}
+
+	/**
+	 * Sweep every object in storage periodically in the background.
+	 *
+	 * @param intervalMinutes
+	 *            time between the end of one sweep and the start of the next
+	 */
+	public synchronized void start(long intervalMinutes) {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "blobstore-orphan-sweeper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sweepAll();
+				} catch (Exception e) {
+					log.error("Orphan sweep failed", e);
+				}
+			}
+		}, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Stop background sweeping.
+	 */
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		if (workers != null) {
+			workers.shutdownNow();
+			workers = null;
+		}
+	}
+
+	/**
+	 * @return int the number of orphans removed since this sweeper was created
+	 */
+	public int getRemoved() {
+		return removed.get();
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.util.concurrent.Callable;
+
+/**
+ * The plugin operation, such as getObject or open, running on the current
+ * thread. Public methods of the storage, object and payload classes enter an
+ * operation for their duration; only the outermost one counts, so the
+ * BlobStore requests made anywhere below a call are attributed to the method
+ * the caller actually invoked.
+ * <p>
+ * Operations are only tracked while something consumes them: request
+ * metrics, a Flight Recorder recording of the plugin's events or call
+ * accounting. Otherwise {@link #enter(String)} does nothing but return a
+ * shared instance, and only call accounting gets each operation an account.
+ * </p>
+ */
+final class PluginOperation implements AutoCloseable {
+
+	/** Name reported for requests made outside any plugin operation */
+	static final String NONE_NAME = "other";
+
+	private static final ThreadLocal<PluginOperation> CURRENT = new ThreadLocal<PluginOperation>();
+
+	private static final PluginOperation NONE = new PluginOperation(NONE_NAME, null);
+
+	/** Whether request metrics need operation names */
+	private static volatile boolean tracking;
+
+	/** Whether a Flight Recorder recording needs operation names */
+	private static volatile boolean recording;
+
+	/** Whether operations keep an account of their requests */
+	private static volatile boolean accounting;
+
+	private final String name;
+
+	/** Requests made on behalf of this operation, null without accounting */
+	private final CallAccounting account;
+
+	private PluginOperation(String name, CallAccounting account) {
+		this.name = name;
+		this.account = account;
+	}
+
+	/**
+	 * Turn operation tracking for request metrics on or off.
+	 *
+	 * @param enabled
+	 *            whether operations are tracked
+	 */
+	static void setTracking(boolean enabled) {
+		tracking = enabled;
+	}
+
+	/**
+	 * Turn operation tracking for Flight Recorder on or off.
+	 *
+	 * @param enabled
+	 *            whether a recording enables the plugin's events
+	 */
+	static void setRecording(boolean enabled) {
+		recording = enabled;
+	}
+
+	/**
+	 * Turn call accounting on or off.
+	 *
+	 * @param enabled
+	 *            whether operations keep an account of their requests
+	 */
+	static void setAccounting(boolean enabled) {
+		accounting = enabled;
+	}
+
+	/**
+	 * Enter a plugin operation, unless the thread is already inside one.
+	 *
+	 * @param name
+	 *            the plugin method name
+	 * @return PluginOperation to close when the method returns
+	 */
+	static PluginOperation enter(String name) {
+		boolean account = accounting;
+		if (!(account || tracking || recording) || CURRENT.get() != null) {
+			return NONE;
+		}
+		PluginOperation operation = new PluginOperation(name, account ? new CallAccounting(name) : null);
+		CURRENT.set(operation);
+		return operation;
+	}
+
+	/**
+	 * @return String the name of the operation running on this thread
+	 */
+	static String current() {
+		PluginOperation operation = CURRENT.get();
+		return operation != null ? operation.name : NONE_NAME;
+	}
+
+	/**
+	 * @return CallAccounting the account of the operation running on this
+	 *         thread, or null outside any operation
+	 */
+	static CallAccounting currentAccount() {
+		PluginOperation operation = CURRENT.get();
+		return operation != null ? operation.account : null;
+	}
+
+	/**
+	 * Wrap a task so it runs as part of the operation submitting it, for work
+	 * an operation hands to other threads.
+	 *
+	 * @param task
+	 *            the task
+	 * @return Callable<T> the task, attributed to the current operation
+	 */
+	static <T> Callable<T> propagate(final Callable<T> task) {
+		final PluginOperation operation = CURRENT.get();
+		if (operation == null) {
+			return task;
+		}
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				PluginOperation previous = CURRENT.get();
+				CURRENT.set(operation);
+				try {
+					return task.call();
+				} finally {
+					if (previous != null) {
+						CURRENT.set(previous);
+					} else {
+						CURRENT.remove();
+					}
+				}
+			}
+		};
+	}
+
+	@Override
+	public void close() {
+		if (this != NONE) {
+			CURRENT.remove();
+			if (account != null) {
+				account.complete();
+			}
+		}
+	}
+
+	/**
+	 * @return String the plugin method name
+	 */
+	String getName() {
+		return name;
+	}
+}
@@ -0,0 +1,605 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replicates the plugin's container to one or more secondary BlobStores and
+ * hedges reads against them. Every change made through the client returned
+ * by {@link #wrap(BlobStore, String)} is applied to the primary and then to
+ * each replica, either before the call returns or in the background.
+ * Each replica applies the changes to one object in the order the primary
+ * got them: they go through one of a fixed set of single-threaded lanes,
+ * chosen by the object ID, which is the part of the key before the first
+ * '/'. A copy from another object first waits for the source object's lane
+ * to catch up.
+ * <p>
+ * Blob reads, existence checks and metadata reads go to the primary first.
+ * When it has not answered within the configured percentile of its recent
+ * read latencies, or as soon as it fails, the same read is sent to a replica
+ * as well and whichever answers first is used; this covers the content of
+ * {@link BlobStorePayload#open()} and its existence check as well as
+ * manifests. A replica that does not have the blob yet, as can happen with
+ * asynchronous replication, is not an answer, so the primary is waited for,
+ * and if the primary failed its error is what the caller gets.
+ * </p>
+ */
+public class ReplicatedBlobStore extends ForwardingBlobStore {
+
+	/** Logging */
+	private static Logger log = LoggerFactory.getLogger(ReplicatedBlobStore.class);
+
+	/** Methods changing the container, which are replicated */
+	private static final List<String> MUTATIONS = Arrays.asList("putBlob", "removeBlob", "removeBlobs",
+			"createDirectory", "deleteDirectory", "copyBlob");
+
+	/** Methods reading a blob, which are hedged and failed over */
+	private static final List<String> READS = Arrays.asList("getBlob", "blobMetadata", "blobExists");
+
+	/** Number of recent primary read latencies kept */
+	private static final int LATENCY_SAMPLES = 512;
+
+	/** Number of ordered replication lanes per replica */
+	private static final int LANES = 16;
+
+	private final List<BlobStoreTarget> replicas;
+
+	private final boolean synchronous;
+
+	private final double hedgePercentile;
+
+	/** Runs hedged reads, created on first use */
+	private ExecutorService executor;
+
+	/** Single-threaded replication lanes by replica, created on first use */
+	private ExecutorService[][] lanes;
+
+	private final ThreadFactory laneThreads = BlobStoreClient.daemonThreads("blobstore-replication-");
+
+	private BlobStore primary;
+
+	private String container;
+
+	/** Ring buffer of recent primary read latencies in microseconds */
+	private final long[] latencies = new long[LATENCY_SAMPLES];
+
+	private int samples;
+
+	private final AtomicLong hedged = new AtomicLong();
+
+	private final AtomicLong hedgeWins = new AtomicLong();
+
+	private final AtomicLong failovers = new AtomicLong();
+
+	private final AtomicLong replicationFailures = new AtomicLong();
+
+	/**
+	 * @param replicas
+	 *            the secondary BlobStores
+	 * @param synchronous
+	 *            whether changes reach the replicas before calls return
+	 * @param hedgePercentile
+	 *            the percentile of primary read latency, between 0 and 100,
+	 *            after which a read is hedged
+	 */
+	public ReplicatedBlobStore(List<BlobStoreTarget> replicas, boolean synchronous, double hedgePercentile) {
+		this.replicas = replicas;
+		this.synchronous = synchronous;
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	/**
+	 * Replicate a BlobStore client.
+	 *
+	 * @param blobStore
+	 *            the primary
+	 * @param containerName
+	 *            the container to replicate
+	 * @return BlobStore the replicating client
+	 */
+	public BlobStore wrap(BlobStore blobStore, String containerName) {
+		this.primary = blobStore;
+		this.container = containerName;
+		return proxy(blobStore);
+	}
+
+	private synchronized ExecutorService executor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(BlobStoreClient.daemonThreads("blobstore-replica-read-"));
+		}
+		return executor;
+	}
+
+	/**
+	 * @return ExecutorService the lane applying changes to the object a key
+	 *         belongs to on one replica
+	 */
+	private synchronized ExecutorService lane(int replica, String key) {
+		if (lanes == null) {
+			lanes = new ExecutorService[replicas.size()][LANES];
+		}
+		int slash = key.indexOf('/');
+		String oid = slash < 0 ? key : key.substring(0, slash);
+		int index = (oid.hashCode() & Integer.MAX_VALUE) % LANES;
+		if (lanes[replica][index] == null) {
+			lanes[replica][index] = Executors.newSingleThreadExecutor(laneThreads);
+		}
+		return lanes[replica][index];
+	}
+
+	@Override
+	protected Object dispatch(Method method, Object[] args) throws Throwable {
+		if (args == null || !container.equals(args[0])) {
+			return invoke(primary, method, args);
+		}
+		if (READS.contains(method.getName()) && !replicas.isEmpty()) {
+			return hedgedRead(method, args);
+		}
+		if (!MUTATIONS.contains(method.getName())) {
+			return invoke(primary, method, args);
+		}
+		if ("copyBlob".equals(method.getName()) && !container.equals(args[2])) {
+			return invoke(primary, method, args);
+		}
+
+		File spool = null;
+		if ("putBlob".equals(method.getName()) && !((Blob) args[1]).getPayload().isRepeatable()) {
+			// Every copy needs the content again, so keep it locally
+			spool = spool((Blob) args[1]);
+			args[1] = rebuild(primary, (Blob) args[1], spool);
+		}
+		Object result = invoke(primary, method, args);
+		replicate(method, args, spool);
+		return result;
+	}
+
+	/**
+	 * Apply a change made to the primary to every replica.
+	 */
+	private void replicate(Method method, Object[] args, File spool) throws Throwable {
+		List<CompletableFuture<Void>> copies = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < replicas.size(); i++) {
+			if ("removeBlobs".equals(method.getName())) {
+				// Keys of different objects may take different lanes
+				Map<ExecutorService, List<String>> byLane = new LinkedHashMap<ExecutorService, List<String>>();
+				@SuppressWarnings("unchecked")
+				Iterable<String> keys = (Iterable<String>) args[1];
+				for (String key : keys) {
+					ExecutorService lane = lane(i, key);
+					if (!byLane.containsKey(lane)) {
+						byLane.put(lane, new ArrayList<String>());
+					}
+					byLane.get(lane).add(key);
+				}
+				for (Map.Entry<ExecutorService, List<String>> batch : byLane.entrySet()) {
+					Object[] batchArgs = args.clone();
+					batchArgs[1] = batch.getValue();
+					copies.add(replicate(i, method, batchArgs, spool, batch.getKey(), null));
+				}
+				continue;
+			}
+			CompletableFuture<Void> source = null;
+			String key;
+			if ("putBlob".equals(method.getName())) {
+				key = ((Blob) args[1]).getMetadata().getName();
+			} else if ("copyBlob".equals(method.getName())) {
+				key = (String) args[3];
+				ExecutorService sourceLane = lane(i, (String) args[1]);
+				if (sourceLane != lane(i, key)) {
+					// Marks the point the source's lane has to reach first
+					source = CompletableFuture.runAsync(new Runnable() {
+						@Override
+						public void run() {
+						}
+					}, sourceLane);
+				}
+			} else {
+				key = (String) args[1];
+			}
+			copies.add(replicate(i, method, args, spool, lane(i, key), source));
+		}
+		CompletableFuture<Void> all = CompletableFuture.allOf(copies.toArray(new CompletableFuture<?>[copies.size()]));
+		if (spool != null) {
+			all.whenComplete(new BiConsumer<Void, Throwable>() {
+				@Override
+				public void accept(Void done, Throwable e) {
+					spool.delete();
+				}
+			});
+		}
+		if (synchronous) {
+			try {
+				all.get();
+			} catch (ExecutionException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * Queue a change to one replica on a lane, after an optional change of
+	 * another lane it depends on.
+	 */
+	private CompletableFuture<Void> replicate(int index, final Method method, final Object[] args,
+			final File spool, ExecutorService lane, final CompletableFuture<Void> after) {
+		final BlobStoreTarget replica = replicas.get(index);
+		return CompletableFuture.runAsync(new Runnable() {
+			@Override
+			public void run() {
+				if (after != null) {
+					after.join();
+				}
+				Object[] replicaArgs = args.clone();
+				replicaArgs[0] = replica.getContainerName();
+				if ("copyBlob".equals(method.getName())) {
+					replicaArgs[2] = replica.getContainerName();
+				} else if ("putBlob".equals(method.getName())) {
+					replicaArgs[1] = rebuild(replica.getBlobStore(), (Blob) args[1], spool);
+				}
+				try {
+					invoke(replica.getBlobStore(), method, replicaArgs);
+				} catch (Throwable e) {
+					replicationFailures.incrementAndGet();
+					log.warn("Replicating {} of '{}' to {} failed", method.getName(), args[1],
+							replica.getContainerName(), e);
+					if (synchronous) {
+						throw new IllegalStateException("Replication failed", e);
+					}
+				}
+			}
+		}, lane);
+	}
+
+	/**
+	 * Copy the content of a blob to a temporary file, for blobs whose payload
+	 * can only be read once.
+	 *
+	 * @param blob
+	 *            the blob
+	 * @return File the content, to be deleted by the caller
+	 * @throws IOException
+	 *             if the content could not be read or written
+	 */
+	static File spool(Blob blob) throws IOException {
+		File file = File.createTempFile("blobstore-spool-", ".tmp");
+		try (InputStream in = blob.getPayload().openStream()) {
+			Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		}
+		return file;
+	}
+
+	/**
+	 * A copy of a blob for one BlobStore, taking its content from the spool
+	 * if it had to be spooled.
+	 */
+	static Blob rebuild(BlobStore target, Blob blob, File spool) {
+		Blob copy;
+		if (spool != null) {
+			copy = target.blobBuilder(blob.getMetadata().getName()).userMetadata(blob.getMetadata().getUserMetadata())
+					.payload(spool).contentLength(spool.length())
+					.contentType(blob.getPayload().getContentMetadata().getContentType()).build();
+		} else {
+			copy = target.blobBuilder(blob.getMetadata().getName()).userMetadata(blob.getMetadata().getUserMetadata())
+					.payload(blob.getPayload()).build();
+		}
+		return copy;
+	}
+
+	/**
+	 * Read from the primary, hedging with the first replica once the primary
+	 * is slower than usual and failing over to it if the primary fails.
+	 */
+	private Object hedgedRead(Method method, Object[] args) throws Throwable {
+		HedgedRead read = new HedgedRead(method, args);
+		read.start();
+		try {
+			return read.answer.get(hedgeDelayMicros(), TimeUnit.MICROSECONDS);
+		} catch (TimeoutException slow) {
+			if (read.startReplica()) {
+				hedged.incrementAndGet();
+			}
+		} catch (ExecutionException e) {
+			throw unwrap(e.getCause());
+		}
+		try {
+			return read.answer.get();
+		} catch (ExecutionException e) {
+			throw unwrap(e.getCause());
+		}
+	}
+
+	/**
+	 * One read sent to the primary and possibly to the first replica. A
+	 * replica answer only counts if it found something, since the replica may
+	 * lag behind; when it has nothing, the primary's outcome stands, or its
+	 * error if it failed.
+	 */
+	private final class HedgedRead {
+		private final Method method;
+
+		private final Object[] args;
+
+		private final long start = System.nanoTime();
+
+		private final CompletableFuture<Object> answer = new CompletableFuture<Object>();
+
+		private boolean replicaStarted;
+
+		private boolean replicaDone;
+
+		private Throwable primaryError;
+
+		private final Callable<Object> primaryRead;
+
+		private final Callable<Object> replicaRead;
+
+		/**
+		 * Prepared on the calling thread, so both reads run as part of the
+		 * caller's plugin operation wherever they are started from.
+		 */
+		HedgedRead(final Method method, final Object[] args) {
+			this.method = method;
+			this.args = args;
+			primaryRead = PluginOperation.propagate(new Callable<Object>() {
+				@Override
+				public Object call() {
+					return ReplicatedBlobStore.call(primary, method, args);
+				}
+			});
+			final BlobStoreTarget replica = replicas.get(0);
+			final Object[] replicaArgs = args.clone();
+			replicaArgs[0] = replica.getContainerName();
+			replicaRead = PluginOperation.propagate(new Callable<Object>() {
+				@Override
+				public Object call() {
+					return ReplicatedBlobStore.call(replica.getBlobStore(), method, replicaArgs);
+				}
+			});
+		}
+
+		void start() {
+			CompletableFuture.supplyAsync(supplier(primaryRead), executor()).whenComplete(new BiConsumer<Object, Throwable>() {
+				@Override
+				public void accept(Object result, Throwable e) {
+					recordLatency(System.nanoTime() - start);
+					primaryDone(result, e);
+				}
+			});
+		}
+
+		/**
+		 * @return boolean false if the replica was already asked
+		 */
+		boolean startReplica() {
+			synchronized (this) {
+				if (replicaStarted) {
+					return false;
+				}
+				replicaStarted = true;
+			}
+			CompletableFuture.supplyAsync(supplier(replicaRead), executor()).whenComplete(new BiConsumer<Object, Throwable>() {
+				@Override
+				public void accept(Object result, Throwable e) {
+					replicaDone(result, e);
+				}
+			});
+			return true;
+		}
+
+		private void primaryDone(Object result, Throwable e) {
+			if (e == null) {
+				if (!answer.complete(result)) {
+					release(result);
+				}
+				return;
+			}
+			boolean failed;
+			synchronized (this) {
+				primaryError = unwrap(e);
+				failed = replicaDone;
+			}
+			if (failed) {
+				answer.completeExceptionally(primaryError);
+			} else if (startReplica()) {
+				failovers.incrementAndGet();
+				log.warn("{} of '{}' failed on the primary, reading from the replica", method.getName(), args[1],
+						primaryError);
+			}
+		}
+
+		private void replicaDone(Object result, Throwable e) {
+			if (e == null && result != null && !Boolean.FALSE.equals(result)) {
+				if (answer.complete(result)) {
+					hedgeWins.incrementAndGet();
+				} else {
+					release(result);
+				}
+				return;
+			}
+			release(result);
+			Throwable failure;
+			synchronized (this) {
+				replicaDone = true;
+				failure = primaryError;
+			}
+			if (failure != null) {
+				answer.completeExceptionally(failure);
+			}
+		}
+	}
+
+	private static Supplier<Object> supplier(final Callable<Object> read) {
+		return new Supplier<Object>() {
+			@Override
+			public Object get() {
+				try {
+					return read.call();
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			}
+		};
+	}
+
+	private static Object call(BlobStore target, Method method, Object[] args) {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Throwable unwrap(Throwable e) {
+		return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+	}
+
+	private static void release(Object blob) {
+		if (blob instanceof Blob && ((Blob) blob).getPayload() != null) {
+			((Blob) blob).getPayload().release();
+		}
+	}
+
+	private synchronized void recordLatency(long nanos) {
+		latencies[samples % LATENCY_SAMPLES] = TimeUnit.NANOSECONDS.toMicros(nanos);
+		samples++;
+	}
+
+	/**
+	 * @return long the configured percentile of recent primary latencies
+	 */
+	private long hedgeDelayMicros() {
+		long[] sorted;
+		synchronized (this) {
+			if (samples < 16) {
+				// Too few samples to call anything slow
+				return TimeUnit.SECONDS.toMicros(1);
+			}
+			sorted = Arrays.copyOf(latencies, Math.min(samples, LATENCY_SAMPLES));
+		}
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(hedgePercentile / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+
+	/**
+	 * @return long the number of reads that were hedged
+	 */
+	public long getHedgedReads() {
+		return hedged.get();
+	}
+
+	/**
+	 * @return long the number of hedged reads a replica answered first
+	 */
+	public long getHedgeWins() {
+		return hedgeWins.get();
+	}
+
+	/**
+	 * @return long the number of reads that failed on the primary and were
+	 *         sent to a replica
+	 */
+	public long getFailovers() {
+		return failovers.get();
+	}
+
+	/**
+	 * @return long the number of changes that failed to reach a replica
+	 */
+	public long getReplicationFailures() {
+		return replicationFailures.get();
+	}
+
+	/**
+	 * Wait up to the given time for asynchronous changes still in flight.
+	 *
+	 * @param timeoutSeconds
+	 *            how long to wait
+	 */
+	public synchronized void shutdown(long timeoutSeconds) {
+		List<ExecutorService> pools = new ArrayList<ExecutorService>();
+		if (executor != null) {
+			pools.add(executor);
+		}
+		if (lanes != null) {
+			for (ExecutorService[] replicaLanes : lanes) {
+				for (ExecutorService lane : replicaLanes) {
+					if (lane != null) {
+						pools.add(lane);
+					}
+				}
+			}
+		}
+		for (ExecutorService pool : pools) {
+			pool.shutdown();
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+		try {
+			for (ExecutorService pool : pools) {
+				if (!pool.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+					log.warn("Replication still in flight at shutdown, replicas may lag");
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executor = null;
+		lanes = null;
+	}
+}
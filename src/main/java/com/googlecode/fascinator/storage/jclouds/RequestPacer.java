@@ -0,0 +1,62 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A budget of BlobStore requests per second for a background job, shared by
+ * every thread working for the job, so the job never competes with regular
+ * traffic for the BlobStore.
+ */
+class RequestPacer {
+
+	private final double requestsPerSecond;
+
+	/** Earliest time, in nanoseconds, the next request may be issued */
+	private long nextRequest = System.nanoTime();
+
+	/**
+	 * @param requestsPerSecond
+	 *            the I/O budget of the job
+	 */
+	RequestPacer(double requestsPerSecond) {
+		this.requestsPerSecond = requestsPerSecond;
+	}
+
+	/**
+	 * Block until the budget allows another request.
+	 */
+	void acquire() {
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			long slot = Math.max(now, nextRequest);
+			nextRequest = slot + (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+			wait = slot - now;
+		}
+		if (wait > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.lang.reflect.Method;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.http.HttpResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Central failure policy for BlobStore requests. Requests failing with a
+ * transient error, that is a socket error or timeout, a refused connection or
+ * an HTTP status of 408, 429 or 5xx, are retried with jittered exponential
+ * backoff as long as repeating them is safe and the operation's time budget
+ * allows it. Reads, removals, copies and directory changes are always safe to
+ * repeat, puts only when their content can be read again.
+ * <p>
+ * A circuit breaker watches the outcome of every request. After a run of
+ * consecutive transient failures it opens and requests fail immediately with
+ * {@link BlobStoreUnavailableException} instead of queueing up on a backend
+ * that is down; the plugin's public methods report it as a StorageException.
+ * Once the open period has passed a single trial request is let through; its
+ * success closes the circuit again, its failure reopens it.
+ * </p>
+ */
+public class ResilientBlobStore extends ForwardingBlobStore {
+
+	/** Logging */
+	private static Logger log = LoggerFactory.getLogger(ResilientBlobStore.class);
+
+	private final int maxAttempts;
+
+	private final long baseDelayMillis;
+
+	private final long maxDelayMillis;
+
+	private final long operationTimeoutMillis;
+
+	private final int failureThreshold;
+
+	private final long openMillis;
+
+	private int consecutiveFailures;
+
+	/** When the circuit opened, or 0 while it is closed */
+	private long openedAt;
+
+	/** Whether a trial request is running while the circuit is half open */
+	private boolean trialRunning;
+
+	/**
+	 * @param maxAttempts
+	 *            attempts per request, including the first
+	 * @param baseDelayMillis
+	 *            backoff before the first retry, doubled for each further one
+	 * @param maxDelayMillis
+	 *            longest backoff between attempts
+	 * @param operationTimeoutSeconds
+	 *            time after which a failing request is no longer retried
+	 * @param failureThreshold
+	 *            consecutive transient failures opening the circuit, 0 to
+	 *            disable the circuit breaker
+	 * @param openSeconds
+	 *            time the circuit stays open before a trial request
+	 */
+	public ResilientBlobStore(int maxAttempts, long baseDelayMillis, long maxDelayMillis,
+			long operationTimeoutSeconds, int failureThreshold, long openSeconds) {
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.operationTimeoutMillis = TimeUnit.SECONDS.toMillis(operationTimeoutSeconds);
+		this.failureThreshold = failureThreshold;
+		this.openMillis = TimeUnit.SECONDS.toMillis(openSeconds);
+	}
+
+	/**
+	 * Apply this policy to a BlobStore client.
+	 *
+	 * @param blobStore
+	 *            the client
+	 * @return BlobStore the client applying the policy
+	 */
+	public BlobStore wrap(BlobStore blobStore) {
+		return proxy(blobStore);
+	}
+
+	@Override
+	protected Object dispatch(Method method, Object[] args) throws Throwable {
+		boolean repeatable = !"putBlob".equals(method.getName())
+				|| (args.length > 1 && args[1] instanceof Blob && ((Blob) args[1]).getPayload().isRepeatable());
+		long deadline = System.currentTimeMillis() + operationTimeoutMillis;
+		for (int attempt = 1;; attempt++) {
+			boolean trial = admit(method);
+			try {
+				Object result = forward(method, args);
+				succeeded();
+				return result;
+			} catch (Throwable e) {
+				if (!isTransient(e)) {
+					// The backend answered, so it is up
+					succeeded();
+					throw e;
+				}
+				failed(trial);
+				long delay = backoff(attempt);
+				if (!repeatable || attempt >= maxAttempts || System.currentTimeMillis() + delay > deadline) {
+					throw e;
+				}
+				log.debug("{} failed on attempt {}, retrying in {}ms", method.getName(), attempt, delay, e);
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Full jitter: a random delay up to the capped exponential backoff.
+	 */
+	private long backoff(int attempt) {
+		long cap = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+		return ThreadLocalRandom.current().nextLong(cap + 1);
+	}
+
+	/**
+	 * Whether a failure is worth retrying: socket errors and timeouts, refused
+	 * connections and HTTP statuses that signal overload or a server-side
+	 * fault, anywhere in the cause chain. Other I/O errors, such as a missing
+	 * file, would only fail again.
+	 *
+	 * @param e
+	 *            the failure
+	 * @return boolean true if the request may succeed when repeated
+	 */
+	static boolean isTransient(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof HttpResponseException && ((HttpResponseException) cause).getResponse() != null) {
+				int status = ((HttpResponseException) cause).getResponse().getStatusCode();
+				return status == 408 || status == 429 || status >= 500;
+			}
+			if (cause instanceof SocketException || cause instanceof SocketTimeoutException) {
+				return true;
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Let a request through the circuit breaker or fail it fast.
+	 *
+	 * @return boolean true if the request is the trial of a half open circuit
+	 */
+	private synchronized boolean admit(Method method) {
+		if (openedAt == 0) {
+			return false;
+		}
+		if (System.currentTimeMillis() - openedAt < openMillis || trialRunning) {
+			throw new BlobStoreUnavailableException(
+					"BlobStore unavailable, " + method.getName() + " not attempted while the circuit is open");
+		}
+		trialRunning = true;
+		return true;
+	}
+
+	private synchronized void succeeded() {
+		if (openedAt != 0) {
+			log.info("BlobStore available again, closing circuit");
+		}
+		consecutiveFailures = 0;
+		openedAt = 0;
+		trialRunning = false;
+	}
+
+	private synchronized void failed(boolean trial) {
+		consecutiveFailures++;
+		if (trial || (failureThreshold > 0 && openedAt == 0 && consecutiveFailures >= failureThreshold)) {
+			if (openedAt == 0) {
+				log.warn("BlobStore failing after {} consecutive errors, opening circuit for {}ms",
+						consecutiveFailures, openMillis);
+			}
+			openedAt = System.currentTimeMillis();
+			trialRunning = false;
+		}
+	}
+
+	/**
+	 * @return boolean whether requests are currently failed fast
+	 */
+	public synchronized boolean isOpen() {
+		return openedAt != 0;
+	}
+
+	/**
+	 * Thrown instead of a request while the circuit breaker is open, and
+	 * converted to a StorageException where it leaves the plugin.
+	 */
+	public static class BlobStoreUnavailableException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		BlobStoreUnavailableException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,463 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.options.GetOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Two-tier BlobStore: a fast hot tier, typically a local filesystem, in front
+ * of the cold tier holding the full repository. Writes go through to both
+ * tiers, reads are served from the hot tier when it has the blob and copied
+ * into it when it does not, and the least recently used blobs are evicted
+ * from the hot tier once it holds more than its capacity. Blobs larger than
+ * the capacity stay in the cold tier only.
+ * <p>
+ * The cold tier stays authoritative: listings, metadata and existence checks
+ * of unknown keys go to it, and a failure of the hot tier only costs a cold
+ * read. The hot tier does not need to support user metadata, as the metadata
+ * of hot blobs is kept in memory. For the same reason the hot container is
+ * cleared when the tier is opened and warms up again from there.
+ * </p>
+ */
+public class TieredBlobStore extends ForwardingBlobStore {
+
+	/** Logging */
+	private static Logger log = LoggerFactory.getLogger(TieredBlobStore.class);
+
+	private final BlobStoreTarget hot;
+
+	private final long capacityBytes;
+
+	private BlobStore cold;
+
+	private String coldContainer;
+
+	/** Blobs in the hot tier by key, least recently used first */
+	private final LinkedHashMap<String, HotBlob> index = new LinkedHashMap<String, HotBlob>(16, 0.75f, true);
+
+	private long hotBytes;
+
+	/** Keys with reads or writes in flight, guarded by the index */
+	private final Map<String, KeyState> inFlight = new HashMap<String, KeyState>();
+
+	private long lastVersion;
+
+	/** Serialise hot tier writes of the same key */
+	private final Object[] locks = new Object[64];
+
+	private final AtomicLong hotHits = new AtomicLong();
+
+	private final AtomicLong coldHits = new AtomicLong();
+
+	/**
+	 * @param hot
+	 *            the hot tier
+	 * @param capacityBytes
+	 *            the most content the hot tier may hold
+	 */
+	public TieredBlobStore(BlobStoreTarget hot, long capacityBytes) {
+		this.hot = hot;
+		this.capacityBytes = capacityBytes;
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Put the hot tier in front of a BlobStore client.
+	 *
+	 * @param blobStore
+	 *            the cold tier
+	 * @param container
+	 *            the container served through the hot tier
+	 * @return BlobStore the tiered client
+	 */
+	public synchronized BlobStore wrap(BlobStore blobStore, String container) {
+		this.cold = blobStore;
+		this.coldContainer = container;
+		synchronized (index) {
+			index.clear();
+			hotBytes = 0;
+		}
+		hot.getBlobStore().clearContainer(hot.getContainerName());
+		return proxy(blobStore);
+	}
+
+	@Override
+	protected Object dispatch(Method method, Object[] args) throws Throwable {
+		if (args == null || !coldContainer.equals(args[0])) {
+			return invoke(cold, method, args);
+		}
+		String name = method.getName();
+		if ("putBlob".equals(name)) {
+			return put((Blob) args[1], args);
+		}
+		if ("getBlob".equals(name)) {
+			return get((String) args[1], args.length > 2 ? (GetOptions) args[2] : null);
+		}
+		if ("blobExists".equals(name)) {
+			synchronized (index) {
+				if (index.containsKey(args[1])) {
+					return Boolean.TRUE;
+				}
+			}
+		} else if ("removeBlob".equals(name)) {
+			evict(Arrays.asList((String) args[1]));
+		} else if ("removeBlobs".equals(name)) {
+			@SuppressWarnings("unchecked")
+			Iterable<String> keys = (Iterable<String>) args[1];
+			evict(keys);
+		} else if ("deleteDirectory".equals(name)) {
+			evictDirectory((String) args[1]);
+		} else if ("copyBlob".equals(name)) {
+			// The copy is made in the cold tier, so drop any stale hot copy
+			if (coldContainer.equals(args[2])) {
+				evict(Arrays.asList((String) args[3]));
+			}
+		}
+		return invoke(cold, method, args);
+	}
+
+	/**
+	 * Write a blob to the hot tier, then from there to the cold tier. If the
+	 * hot tier fails or the blob is larger than its capacity, the blob is
+	 * written to the cold tier alone; content that can only be read once is
+	 * spooled first so that is still possible.
+	 */
+	private Object put(Blob blob, Object[] args) throws Throwable {
+		String key = blob.getMetadata().getName();
+		evict(Arrays.asList(key));
+		long version = begin(key, true);
+		File spool = null;
+		try {
+			if (!blob.getPayload().isRepeatable()) {
+				spool = ReplicatedBlobStore.spool(blob);
+				blob = ReplicatedBlobStore.rebuild(cold, blob, spool);
+				args[1] = blob;
+			}
+			HotBlob entry = new HotBlob(blob.getMetadata().getUserMetadata(),
+					blob.getPayload().getContentMetadata().getContentType());
+			Blob hotBlob = writeHot(key, blob, version);
+			if (hotBlob == null) {
+				return invoke(cold, findPut(args.length), args);
+			}
+			entry.size = sizeOf(hotBlob);
+			args[1] = entry.toBlob(cold, key, hotBlob);
+			Object etag = invoke(cold, findPut(args.length), args);
+			admit(key, entry, version);
+			return etag;
+		} finally {
+			end(key);
+			if (spool != null) {
+				spool.delete();
+			}
+		}
+	}
+
+	/**
+	 * Read a blob from the hot tier if it is there, otherwise from the cold
+	 * tier, keeping a copy in the hot tier if it fits.
+	 */
+	private Blob get(String key, GetOptions options) throws IOException {
+		HotBlob entry;
+		synchronized (index) {
+			entry = index.get(key);
+		}
+		if (entry != null) {
+			Blob blob = options != null ? hot.getBlobStore().getBlob(hot.getContainerName(), key, options)
+					: hot.getBlobStore().getBlob(hot.getContainerName(), key);
+			if (blob != null) {
+				hotHits.incrementAndGet();
+				blob.getMetadata().setUserMetadata(entry.userMetadata);
+				return blob;
+			}
+			evict(Arrays.asList(key));
+		}
+		coldHits.incrementAndGet();
+		if (options != null) {
+			// Only whole blobs are promoted
+			return cold.getBlob(coldContainer, key, options);
+		}
+		long version = begin(key, false);
+		try {
+			Blob blob = cold.getBlob(coldContainer, key);
+			if (blob == null) {
+				return null;
+			}
+			Long length = blob.getPayload().getContentMetadata().getContentLength();
+			if (length != null && length > capacityBytes) {
+				return blob;
+			}
+			entry = new HotBlob(blob.getMetadata().getUserMetadata(),
+					blob.getPayload().getContentMetadata().getContentType());
+			Blob hotBlob;
+			try (InputStream in = blob.getPayload().openStream()) {
+				hotBlob = writeHot(key, hot.getBlobStore().blobBuilder(key).payload(in)
+						.contentType(entry.contentType).build(), version);
+			}
+			if (hotBlob == null) {
+				// The content went into a failed or superseded promotion
+				return cold.getBlob(coldContainer, key);
+			}
+			entry.size = sizeOf(hotBlob);
+			admit(key, entry, version);
+			hotBlob.getMetadata().setUserMetadata(entry.userMetadata);
+			hotBlob.getMetadata().setLastModified(blob.getMetadata().getLastModified());
+			return hotBlob;
+		} finally {
+			end(key);
+		}
+	}
+
+	/**
+	 * Write a blob to the hot tier, unless its key was written or removed
+	 * since the given version or it is larger than the tier.
+	 *
+	 * @return Blob the hot copy, or null if there is none
+	 */
+	private Blob writeHot(String key, Blob blob, long version) {
+		Long length = blob.getPayload().getContentMetadata().getContentLength();
+		if (length != null && length > capacityBytes) {
+			return null;
+		}
+		// Hot writes of a key are serialised, so a superseded one cannot land last
+		synchronized (locks[(key.hashCode() & Integer.MAX_VALUE) % locks.length]) {
+			if (!isCurrent(key, version)) {
+				return null;
+			}
+			try {
+				hot.getBlobStore().putBlob(hot.getContainerName(), blob);
+				Blob hotBlob = hot.getBlobStore().getBlob(hot.getContainerName(), key);
+				if (hotBlob != null && sizeOf(hotBlob) > capacityBytes) {
+					removeHot(Arrays.asList(key));
+					return null;
+				}
+				return hotBlob;
+			} catch (RuntimeException e) {
+				log.warn("Hot tier write of '{}' failed", key, e);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Record a blob as hot, unless its key was written or removed since the
+	 * given version, and evict the least recently used blobs beyond capacity.
+	 */
+	private void admit(String key, HotBlob entry, long version) {
+		List<String> evicted = new ArrayList<String>();
+		synchronized (index) {
+			if (!isCurrent(key, version)) {
+				return;
+			}
+			HotBlob previous = index.put(key, entry);
+			hotBytes += entry.size - (previous != null ? previous.size : 0);
+			// Never more than capacity, so evicting the others always suffices
+			Iterator<Map.Entry<String, HotBlob>> eldest = index.entrySet().iterator();
+			while (hotBytes > capacityBytes && eldest.hasNext()) {
+				Map.Entry<String, HotBlob> next = eldest.next();
+				if (next.getKey().equals(key)) {
+					continue;
+				}
+				hotBytes -= next.getValue().size;
+				evicted.add(next.getKey());
+				eldest.remove();
+			}
+		}
+		if (!evicted.isEmpty()) {
+			removeHot(evicted);
+		}
+	}
+
+	/**
+	 * Start an operation on a key.
+	 *
+	 * @param write
+	 *            whether the operation writes the key, superseding those in
+	 *            flight
+	 * @return long the version the operation works on
+	 */
+	private long begin(String key, boolean write) {
+		synchronized (index) {
+			KeyState state = inFlight.get(key);
+			if (state == null) {
+				state = new KeyState();
+				inFlight.put(key, state);
+			}
+			state.operations++;
+			if (write) {
+				state.version = ++lastVersion;
+			}
+			return state.version;
+		}
+	}
+
+	private boolean isCurrent(String key, long version) {
+		synchronized (index) {
+			KeyState state = inFlight.get(key);
+			return state != null && state.version == version;
+		}
+	}
+
+	private void end(String key) {
+		synchronized (index) {
+			KeyState state = inFlight.get(key);
+			if (state != null && --state.operations == 0) {
+				inFlight.remove(key);
+			}
+		}
+	}
+
+	private void evict(Iterable<String> keys) {
+		List<String> evicted = new ArrayList<String>();
+		synchronized (index) {
+			for (String key : keys) {
+				KeyState state = inFlight.get(key);
+				if (state != null) {
+					// Operations in flight must not make it hot again
+					state.version = ++lastVersion;
+				}
+				HotBlob entry = index.remove(key);
+				if (entry != null) {
+					hotBytes -= entry.size;
+					evicted.add(key);
+				}
+			}
+		}
+		if (!evicted.isEmpty()) {
+			removeHot(evicted);
+		}
+	}
+
+	private void evictDirectory(String dir) {
+		List<String> keys = new ArrayList<String>();
+		synchronized (index) {
+			for (String key : index.keySet()) {
+				if (key.startsWith(dir + "/")) {
+					keys.add(key);
+				}
+			}
+			for (String key : inFlight.keySet()) {
+				if (key.startsWith(dir + "/") && !index.containsKey(key)) {
+					keys.add(key);
+				}
+			}
+		}
+		evict(keys);
+	}
+
+	private void removeHot(List<String> keys) {
+		try {
+			hot.getBlobStore().removeBlobs(hot.getContainerName(), keys);
+		} catch (RuntimeException e) {
+			log.warn("Hot tier eviction of {} blobs failed", keys.size(), e);
+		}
+	}
+
+	private static long sizeOf(Blob blob) {
+		Long size = blob.getMetadata().getSize();
+		return size != null ? size : 0;
+	}
+
+	private static Method findPut(int arity) throws NoSuchMethodException {
+		for (Method method : BlobStore.class.getMethods()) {
+			if ("putBlob".equals(method.getName()) && method.getParameterTypes().length == arity) {
+				return method;
+			}
+		}
+		throw new NoSuchMethodException("putBlob");
+	}
+
+	/**
+	 * @return double the share of reads answered by the hot tier
+	 */
+	public double getHotHitRatio() {
+		long hits = hotHits.get();
+		long total = hits + coldHits.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * @return double the share of reads that had to go to the cold tier
+	 */
+	public double getColdHitRatio() {
+		long hits = coldHits.get();
+		long total = hits + hotHits.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * @return long the bytes currently held by the hot tier
+	 */
+	public long getHotBytes() {
+		synchronized (index) {
+			return hotBytes;
+		}
+	}
+
+	/**
+	 * The operations in flight on a key and the version they work on, which
+	 * every write or removal of the key advances. An operation whose version
+	 * was superseded neither writes the hot tier nor admits to it.
+	 */
+	private static class KeyState {
+		private long version;
+
+		private int operations;
+	}
+
+	/**
+	 * What the hot tier cannot keep for a blob itself.
+	 */
+	private static class HotBlob {
+		private final Map<String, String> userMetadata;
+
+		private final String contentType;
+
+		private long size;
+
+		HotBlob(Map<String, String> userMetadata, String contentType) {
+			this.userMetadata = userMetadata != null ? new HashMap<String, String>(userMetadata)
+					: new HashMap<String, String>();
+			this.contentType = contentType;
+		}
+
+		Blob toBlob(BlobStore builder, String key, Blob hotBlob) {
+			return builder.blobBuilder(key).userMetadata(userMetadata).payload(hotBlob.getPayload())
+					.contentLength(size).contentType(contentType).build();
+		}
+	}
+}
@@ -0,0 +1,527 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobBuilder.PayloadBlobBuilder;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.googlecode.fascinator.api.storage.StorageException;
+
+/**
+ * Write-behind for the BlobStore. Blobs put through the client returned by
+ * {@link #wrap(BlobStore)} are written to a journal directory on local disk
+ * and synced before the put returns; background threads then upload them to
+ * the real BlobStore, retrying with backoff until they succeed. This applies
+ * to payloads, metadata sidecars and manifests alike.
+ * <p>
+ * A put returns the MD5 of the journaled content as its ETag, which is also
+ * what metadata reads report while the blob is pending. While a blob is
+ * pending, reads of its key are answered from the journal; a read opens the
+ * journal file before returning, so an upload completing meanwhile does not
+ * take the content away from under the reader.
+ * Removing a pending key cancels its upload, listing a directory first
+ * uploads the pending blobs in it and copying a pending blob uploads it first,
+ * so callers see their own writes. Pending entries survive a restart: they are
+ * reloaded from the journal directory and uploaded when the journal is
+ * opened again.
+ * </p>
+ */
+public class WriteBehindJournal extends ForwardingBlobStore {
+
+	/** Logging */
+	private static Logger log = LoggerFactory.getLogger(WriteBehindJournal.class);
+
+	private static final String DATA_SUFFIX = ".blob";
+
+	private static final String ENTRY_SUFFIX = ".properties";
+
+	private static final String USER_METADATA_PREFIX = "meta.";
+
+	/** Longest wait between upload retries */
+	private static final long MAX_BACKOFF_MILLIS = 60000;
+
+	private final File directory;
+
+	private final int uploadThreads;
+
+	private ScheduledExecutorService uploader;
+
+	/** Pending entries by container and key */
+	private final ConcurrentMap<String, Entry> pending = new ConcurrentHashMap<String, Entry>();
+
+	private boolean recovered;
+
+	/** Set by shutdown(), after which no upload is scheduled */
+	private boolean closed;
+
+	private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() * 1000);
+
+	/**
+	 * @param directory
+	 *            the journal directory, created if missing
+	 * @param uploadThreads
+	 *            the number of parallel uploads
+	 */
+	public WriteBehindJournal(File directory, int uploadThreads) {
+		this.directory = directory;
+		this.uploadThreads = uploadThreads;
+	}
+
+	/**
+	 * Wrap a BlobStore client so that its writes go through this journal. The
+	 * first time, entries left in the journal by a previous run are reloaded
+	 * and their upload started.
+	 *
+	 * @param blobStore
+	 *            the client to wrap
+	 * @return BlobStore the write-behind client
+	 * @throws StorageException
+	 *             if the journal could not be read
+	 */
+	public synchronized BlobStore wrap(BlobStore blobStore) throws StorageException {
+		BlobStore decorated = proxy(blobStore);
+		if (!recovered) {
+			recover();
+			recovered = true;
+		}
+		return decorated;
+	}
+
+	@Override
+	protected Object dispatch(Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if ("putBlob".equals(name)) {
+			return put((String) args[0], (Blob) args[1]);
+		}
+		if (("getBlob".equals(name) || "blobMetadata".equals(name) || "blobExists".equals(name))) {
+			Entry entry = pending.get(args[0] + "/" + args[1]);
+			if (entry != null) {
+				Blob blob = entry.read("getBlob".equals(name));
+				if (blob != null) {
+					if ("getBlob".equals(name)) {
+						return blob;
+					}
+					return "blobMetadata".equals(name) ? blob.getMetadata() : Boolean.TRUE;
+				}
+				// Uploaded or removed meanwhile, so the store has the answer
+			}
+		} else if ("removeBlob".equals(name)) {
+			cancel((String) args[0], Arrays.asList((String) args[1]));
+		} else if ("removeBlobs".equals(name)) {
+			@SuppressWarnings("unchecked")
+			Iterable<String> keys = (Iterable<String>) args[1];
+			cancel((String) args[0], keys);
+		} else if ("deleteDirectory".equals(name)) {
+			cancelDirectory((String) args[0], (String) args[1]);
+		} else if ("copyBlob".equals(name)) {
+			Entry entry = pending.get(args[0] + "/" + args[1]);
+			if (entry != null) {
+				upload(entry);
+			}
+		} else if ("list".equals(name) && args != null && args.length > 0) {
+			String dir = null;
+			if (args.length > 1 && args[1] instanceof ListContainerOptions) {
+				dir = ((ListContainerOptions) args[1]).getDir();
+			}
+			flush((String) args[0], dir);
+		}
+		return forward(method, args);
+	}
+
+	/**
+	 * Journal a blob and schedule its upload.
+	 */
+	private String put(String container, Blob blob) throws StorageException {
+		long seq = sequence.incrementAndGet();
+		Entry entry = new Entry(seq, container, blob.getMetadata().getName());
+		entry.contentType = blob.getPayload().getContentMetadata().getContentType();
+		if (blob.getMetadata().getUserMetadata() != null) {
+			entry.userMetadata.putAll(blob.getMetadata().getUserMetadata());
+		}
+		try {
+			try (HashingInputStream in = new HashingInputStream(Hashing.md5(), blob.getPayload().openStream());
+					FileOutputStream out = new FileOutputStream(entry.data)) {
+				IOUtils.copy(in, out);
+				out.getFD().sync();
+				entry.eTag = in.hash().toString();
+			}
+			entry.save();
+		} catch (IOException e) {
+			entry.delete();
+			throw new StorageException("Failed to journal '" + entry.name + "'", e);
+		}
+
+		Entry previous = pending.put(entry.key(), entry);
+		if (previous != null) {
+			// Waits for an upload of the old content in flight to finish
+			previous.discard();
+		}
+		schedule(entry, 0);
+		return entry.eTag;
+	}
+
+	private void cancel(String container, Iterable<String> names) {
+		for (String name : names) {
+			Entry entry = pending.remove(container + "/" + name);
+			if (entry != null) {
+				entry.discard();
+			}
+		}
+	}
+
+	private void cancelDirectory(String container, String dir) {
+		String prefix = container + "/" + dir + "/";
+		for (String key : new ArrayList<String>(pending.keySet())) {
+			if (key.startsWith(prefix)) {
+				Entry entry = pending.remove(key);
+				if (entry != null) {
+					entry.discard();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Upload pending entries of a container synchronously, optionally only
+	 * those below a directory.
+	 */
+	private void flush(String container, String dir) throws StorageException {
+		String prefix = container + "/" + (dir != null ? dir + "/" : "");
+		for (Entry entry : new ArrayList<Entry>(pending.values())) {
+			if (entry.key().startsWith(prefix)) {
+				upload(entry);
+			}
+		}
+	}
+
+	private synchronized void schedule(final Entry entry, long delayMillis) {
+		if (closed) {
+			// Stays journaled for the next run
+			return;
+		}
+		if (uploader == null) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			uploader = Executors.newScheduledThreadPool(uploadThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "blobstore-write-behind-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		uploader.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					upload(entry);
+				} catch (Exception e) {
+					entry.attempts++;
+					long backoff = Math.min(MAX_BACKOFF_MILLIS, 500L << Math.min(entry.attempts, 16));
+					log.warn("Upload of '{}' failed (attempt {}), retrying in {}ms", entry.name, entry.attempts,
+							backoff, e);
+					schedule(entry, backoff);
+				}
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Upload an entry unless it was discarded, then drop it from the journal.
+	 */
+	private void upload(Entry entry) throws StorageException {
+		synchronized (entry) {
+			if (entry.discarded) {
+				return;
+			}
+			getDelegate().putBlob(entry.container, entry.toBlob());
+			pending.remove(entry.key(), entry);
+			entry.discarded = true;
+			entry.delete();
+		}
+	}
+
+	/**
+	 * Reload entries left by a previous run, oldest first.
+	 */
+	private void recover() throws StorageException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new StorageException("Failed to create journal directory " + directory);
+		}
+		File[] files = directory.listFiles();
+		List<Entry> entries = new ArrayList<Entry>();
+		for (File file : files) {
+			if (file.getName().endsWith(ENTRY_SUFFIX)) {
+				try {
+					entries.add(load(file));
+				} catch (IOException e) {
+					throw new StorageException("Failed to read journal entry " + file, e);
+				}
+			}
+		}
+		Collections.sort(entries);
+		for (Entry entry : entries) {
+			Entry previous = pending.put(entry.key(), entry);
+			if (previous != null) {
+				previous.discard();
+			}
+			sequence.set(Math.max(sequence.get(), entry.seq));
+		}
+		for (Entry entry : pending.values()) {
+			schedule(entry, 0);
+		}
+		if (!entries.isEmpty()) {
+			log.info("Resuming upload of {} journaled blobs", pending.size());
+		}
+	}
+
+	private Entry load(File file) throws IOException {
+		Properties entry = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			entry.load(in);
+		}
+		String fileName = file.getName();
+		Entry loaded = new Entry(Long.parseLong(fileName.substring(0, fileName.length() - ENTRY_SUFFIX.length())),
+				entry.getProperty("container"), entry.getProperty("name"));
+		loaded.contentType = entry.getProperty("contentType");
+		loaded.eTag = entry.getProperty("eTag");
+		if (loaded.eTag == null) {
+			// Journaled before ETags were recorded
+			loaded.eTag = com.google.common.io.Files.asByteSource(loaded.data).hash(Hashing.md5()).toString();
+		}
+		for (String key : entry.stringPropertyNames()) {
+			if (key.startsWith(USER_METADATA_PREFIX)) {
+				loaded.userMetadata.put(key.substring(USER_METADATA_PREFIX.length()), entry.getProperty(key));
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * Stop scheduling uploads and drain the pending ones on the upload threads
+	 * for up to the given time. Whatever is still pending afterwards stays in
+	 * the journal and is uploaded after a restart.
+	 *
+	 * @param timeoutSeconds
+	 *            how long to wait for uploads to finish
+	 */
+	public void shutdown(long timeoutSeconds) {
+		ScheduledExecutorService pool;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			pool = uploader;
+			uploader = null;
+		}
+		if (pool == null) {
+			return;
+		}
+		// Entries waiting out a retry backoff are tried once more right away
+		List<Future<Void>> drains = new ArrayList<Future<Void>>();
+		for (final Entry entry : new ArrayList<Entry>(pending.values())) {
+			drains.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					try {
+						upload(entry);
+					} catch (Exception e) {
+						log.warn("Upload of '{}' failed during shutdown, it stays journaled", entry.name, e);
+					}
+					return null;
+				}
+			}));
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+		try {
+			for (Future<Void> drain : drains) {
+				drain.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			}
+		} catch (TimeoutException e) {
+			log.warn("Write-behind journal drain timed out after {}s", timeoutSeconds);
+		} catch (ExecutionException e) {
+			log.warn("Write-behind journal drain failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		pool.shutdownNow();
+		if (!pending.isEmpty()) {
+			log.warn("{} blobs remain in the write-behind journal {}", pending.size(), directory);
+		}
+	}
+
+	/**
+	 * @return int the number of blobs waiting to be uploaded
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * One journaled blob: its content file plus a properties file describing
+	 * it, which is written last so only complete entries are recovered.
+	 */
+	private class Entry implements Comparable<Entry> {
+		private final long seq;
+
+		private final String container;
+
+		private final String name;
+
+		private final File data;
+
+		private final File properties;
+
+		private String contentType;
+
+		/** Hex MD5 of the content, reported as the ETag until uploaded */
+		private String eTag;
+
+		private final Map<String, String> userMetadata = new HashMap<String, String>();
+
+		private int attempts;
+
+		private boolean discarded;
+
+		Entry(long seq, String container, String name) {
+			this.seq = seq;
+			this.container = container;
+			this.name = name;
+			data = new File(directory, seq + DATA_SUFFIX);
+			properties = new File(directory, seq + ENTRY_SUFFIX);
+		}
+
+		String key() {
+			return container + "/" + name;
+		}
+
+		void save() throws IOException {
+			Properties entry = new Properties();
+			entry.setProperty("container", container);
+			entry.setProperty("name", name);
+			if (contentType != null) {
+				entry.setProperty("contentType", contentType);
+			}
+			entry.setProperty("eTag", eTag);
+			for (Map.Entry<String, String> meta : userMetadata.entrySet()) {
+				entry.setProperty(USER_METADATA_PREFIX + meta.getKey(), meta.getValue());
+			}
+			File temp = new File(properties.getPath() + ".tmp");
+			try (FileOutputStream out = new FileOutputStream(temp)) {
+				entry.store(out, null);
+				out.getFD().sync();
+			}
+			Files.move(temp.toPath(), properties.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		Blob toBlob() {
+			return describe(getDelegate().blobBuilder(name).userMetadata(userMetadata).payload(data));
+		}
+
+		/**
+		 * Describe the blob for a read, holding the entry lock so the upload
+		 * cannot delete the journal file in between. The payload of a content
+		 * read is a stream opened here, which stays readable after the file is
+		 * deleted.
+		 *
+		 * @param content
+		 *            whether the caller reads the content
+		 * @return Blob the pending blob, or null once it was uploaded or
+		 *         discarded
+		 */
+		synchronized Blob read(boolean content) throws StorageException {
+			if (discarded) {
+				return null;
+			}
+			if (!content) {
+				return toBlob();
+			}
+			try {
+				return describe(getDelegate().blobBuilder(name).userMetadata(userMetadata)
+						.payload(new FileInputStream(data)));
+			} catch (IOException e) {
+				throw new StorageException("Failed to read journaled '" + name + "'", e);
+			}
+		}
+
+		private Blob describe(PayloadBlobBuilder builder) {
+			Blob blob = builder.contentLength(data.length()).build();
+			if (contentType != null) {
+				blob.getPayload().getContentMetadata().setContentType(contentType);
+			}
+			blob.getMetadata().setLastModified(new Date(data.lastModified()));
+			blob.getMetadata().setETag(eTag);
+			blob.getPayload().getContentMetadata().setContentMD5(HashCode.fromString(eTag));
+			return blob;
+		}
+
+		synchronized void discard() {
+			discarded = true;
+			delete();
+		}
+
+		void delete() {
+			properties.delete();
+			data.delete();
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			return Long.compare(seq, other.seq);
+		}
+	}
+}
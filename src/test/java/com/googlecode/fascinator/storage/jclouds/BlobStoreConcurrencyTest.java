@@ -0,0 +1,375 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.Payload;
+
+/**
+ * Drive storage from many threads at once, then check that what is stored
+ * matches what every thread believes it wrote, and report the throughput of
+ * each thread count.
+ *
+ * Like the stress test in {@link BlobStoreStorageTest} the load is kept small
+ * for the build. Raise it with -Dstress.threads=1,8,32,64 and
+ * -Dstress.operations=1000 to stress test your system.
+ *
+ * Every test runs twice: with payloads always in blobs of their own, and with
+ * an inline threshold that keeps about half of them in the manifest.
+ */
+@RunWith(Parameterized.class)
+public class BlobStoreConcurrencyTest {
+    private static final int[] THREADS = threadCounts(System.getProperty(
+            "stress.threads", "1,4,16"));
+
+    private static final int OPERATIONS = Integer.getInteger(
+            "stress.operations", 40);
+
+    /** Objects owned by each thread */
+    private static final int OBJECTS_PER_THREAD = 3;
+
+    /** Largest payload written, in bytes */
+    private static final int MAX_CONTENT = 8192;
+
+    private final int inlineThreshold;
+
+    private BlobStoreStorage storage;
+
+    /** Payload content each thread last wrote, by object and payload ID */
+    private Map<String, Map<String, byte[]>> expected;
+
+    /**
+     * @return Collection<Object[]> the inline thresholds to run with
+     */
+    @Parameters
+    public static Collection<Object[]> inlineThresholds() {
+        return Arrays.asList(new Object[][] { { 0 }, { MAX_CONTENT / 2 } });
+    }
+
+    public BlobStoreConcurrencyTest(int inlineThreshold) {
+        this.inlineThreshold = inlineThreshold;
+    }
+
+    @Before
+    public void init() throws Exception {
+        storage = newStorage();
+        nukeStorage();
+        expected = new ConcurrentHashMap<String, Map<String, byte[]>>();
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        if (storage != null) {
+            nukeStorage();
+            storage.shutdown();
+        }
+        BlobStoreClient.setInlineThreshold(0);
+    }
+
+    private BlobStoreStorage newStorage() throws Exception {
+        BlobStoreStorage newStorage = new BlobStoreStorage();
+        newStorage.init(new File(
+                getClass().getResource("/blobstore-config.json").toURI()));
+        BlobStoreClient.setInlineThreshold(inlineThreshold);
+        return newStorage;
+    }
+
+    private void nukeStorage() throws Exception {
+        for (String oid : storage.getObjectIdList()) {
+            storage.removeObject(oid);
+        }
+    }
+
+    /**
+     * Mixed creates, reads, updates and removes, each thread on objects of
+     * its own.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void mixedOperations() throws Exception {
+        System.out.println("\n==========\n TEST => mixedOperations()\n");
+        for (final int threads : THREADS) {
+            run(threads, new Worker() {
+                @Override
+                public void work(int thread) throws Exception {
+                    String prefix = "stress-" + threads + "-" + thread + "-";
+                    Random random = new Random(threads * 1000 + thread);
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        step(prefix + random.nextInt(OBJECTS_PER_THREAD),
+                                random);
+                    }
+                }
+            });
+        }
+        verify();
+    }
+
+    /**
+     * Many threads adding payloads through one shared DigitalObject.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void sharedObject() throws Exception {
+        System.out.println("\n==========\n TEST => sharedObject()\n");
+        for (final int threads : THREADS) {
+            String oid = "shared-" + threads;
+            final DigitalObject object = storage.createObject(oid);
+            final Map<String, byte[]> payloads = new ConcurrentHashMap<String, byte[]>();
+            expected.put(oid, payloads);
+            run(threads, new Worker() {
+                @Override
+                public void work(int thread) throws Exception {
+                    addPayloads(object, thread, payloads);
+                }
+            });
+        }
+        verify();
+    }
+
+    /**
+     * Many threads adding payloads to one object, each through a
+     * DigitalObject of its own as separate requests or nodes would.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void separateInstances() throws Exception {
+        System.out.println("\n==========\n TEST => separateInstances()\n");
+        for (final int threads : THREADS) {
+            final String oid = "separate-" + threads;
+            storage.createObject(oid);
+            final Map<String, byte[]> payloads = new ConcurrentHashMap<String, byte[]>();
+            expected.put(oid, payloads);
+            run(threads, new Worker() {
+                @Override
+                public void work(int thread) throws Exception {
+                    addPayloads(storage.getObject(oid), thread, payloads);
+                }
+            });
+        }
+        verify();
+    }
+
+    /**
+     * Work done by each thread of a run.
+     */
+    private interface Worker {
+        void work(int thread) throws Exception;
+    }
+
+    /**
+     * Run a worker on a number of threads at once and report the throughput.
+     */
+    private void run(int threads, final Worker worker) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    worker.work(thread);
+                    return null;
+                }
+            });
+        }
+        long start = System.nanoTime();
+        try {
+            for (Future<Void> task : executor.invokeAll(tasks)) {
+                task.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        report(threads, threads * OPERATIONS, System.nanoTime() - start);
+    }
+
+    private static void addPayloads(DigitalObject object, int thread,
+            Map<String, byte[]> payloads) throws Exception {
+        Random random = new Random(thread);
+        for (int i = 0; i < OPERATIONS; i++) {
+            String pid = "payload-" + thread + "-" + i;
+            byte[] content = content(random);
+            object.createStoredPayload(pid, new ByteArrayInputStream(content));
+            payloads.put(pid, content);
+        }
+    }
+
+    /**
+     * One random operation on an object, recording the expected outcome.
+     */
+    private void step(String oid, Random random) throws Exception {
+        Map<String, byte[]> payloads = expected.get(oid);
+        if (payloads == null) {
+            storage.createObject(oid);
+            expected.put(oid, new ConcurrentHashMap<String, byte[]>());
+            return;
+        }
+        DigitalObject object = storage.getObject(oid);
+        List<String> pids = new ArrayList<String>(payloads.keySet());
+        String pid = pids.isEmpty() ? null
+                : pids.get(random.nextInt(pids.size()));
+        int action = random.nextInt(20);
+        if (action == 0) {
+            storage.removeObject(oid);
+            expected.remove(oid);
+        } else if (pid == null || action < 8) {
+            String newPid = "payload" + random.nextInt(1000000);
+            byte[] content = content(random);
+            if (payloads.containsKey(newPid)) {
+                object.updatePayload(newPid, new ByteArrayInputStream(content));
+            } else {
+                object.createStoredPayload(newPid,
+                        new ByteArrayInputStream(content));
+            }
+            payloads.put(newPid, content);
+        } else if (action < 12) {
+            byte[] content = content(random);
+            object.updatePayload(pid, new ByteArrayInputStream(content));
+            payloads.put(pid, content);
+        } else if (action < 15) {
+            object.removePayload(pid);
+            payloads.remove(pid);
+        } else {
+            Assert.assertArrayEquals(oid + "/" + pid, payloads.get(pid),
+                    read(object.getPayload(pid)));
+        }
+    }
+
+    /**
+     * Check the invariants with a fresh storage instance, so nothing is
+     * answered from state cached during the run:
+     * <ul>
+     * <li>the object IDs are exactly those expected</li>
+     * <li>every manifest lists exactly the expected payloads</li>
+     * <li>every payload holds the content last written to it</li>
+     * <li>no blob is left behind for a payload missing from its manifest</li>
+     * </ul>
+     */
+    private void verify() throws Exception {
+        storage.shutdown();
+        storage = newStorage();
+        Assert.assertEquals(expected.keySet(), storage.getObjectIdList());
+        for (Map.Entry<String, Map<String, byte[]>> entry : expected
+                .entrySet()) {
+            String oid = entry.getKey();
+            Map<String, byte[]> payloads = entry.getValue();
+            DigitalObject object = storage.getObject(oid);
+            Assert.assertEquals(oid, payloads.keySet(),
+                    object.getPayloadIdList());
+            for (Map.Entry<String, byte[]> payload : payloads.entrySet()) {
+                Assert.assertArrayEquals(oid + "/" + payload.getKey(),
+                        payload.getValue(),
+                        read(object.getPayload(payload.getKey())));
+            }
+            for (String pid : storedPayloads(oid)) {
+                Assert.assertTrue("Orphaned blob " + oid + "/" + pid,
+                        payloads.containsKey(pid));
+            }
+        }
+    }
+
+    /**
+     * @return Set<String> the payload IDs with a blob of content or metadata
+     */
+    private Set<String> storedPayloads(String oid) throws Exception {
+        Set<String> pids = new HashSet<String>();
+        ListContainerOptions options = ListContainerOptions.Builder
+                .inDirectory(oid).recursive();
+        for (StorageMetadata metadata : BlobStoreClient.getClient().list(
+                BlobStoreClient.getContainerName(), options)) {
+            String pid = metadata.getName().substring(oid.length() + 1);
+            if (metadata.getType() != StorageType.BLOB
+                    || BlobStoreDigitalObject.MANIFEST_KEY.equals(pid)) {
+                continue;
+            }
+            if (pid.endsWith(BlobStorePayload.METADATA_SUFFIX)) {
+                pid = pid.substring(0, pid.length()
+                        - BlobStorePayload.METADATA_SUFFIX.length());
+            }
+            pids.add(pid);
+        }
+        return pids;
+    }
+
+    private static byte[] read(Payload payload) throws Exception {
+        try (InputStream in = payload.open()) {
+            return IOUtils.toByteArray(in);
+        } finally {
+            payload.close();
+        }
+    }
+
+    /**
+     * @return byte[] content both smaller and larger than the inline
+     *         threshold of the second run
+     */
+    private static byte[] content(Random random) {
+        byte[] content = new byte[1 + random.nextInt(MAX_CONTENT)];
+        random.nextBytes(content);
+        return content;
+    }
+
+    private static void report(int threads, int operations, long nanos) {
+        double perSecond = operations * 1e9 / nanos;
+        System.out.println(String.format(
+                "%3d thread(s): %5d operations, %8.1f ops/sec, %7.1f per thread",
+                threads, operations, perSecond, perSecond / threads));
+    }
+
+    private static int[] threadCounts(String list) {
+        String[] values = list.split(",");
+        int[] counts = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            counts[i] = Integer.parseInt(values[i].trim());
+        }
+        return counts;
+    }
+}
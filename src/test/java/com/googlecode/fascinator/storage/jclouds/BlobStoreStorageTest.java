@@ -18,19 +18,46 @@
  */
 package com.googlecode.fascinator.storage.jclouds;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
 
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.hash.Hashing;
 import com.googlecode.fascinator.api.storage.DigitalObject;
 import com.googlecode.fascinator.api.storage.Payload;
 import com.googlecode.fascinator.api.storage.PayloadType;
 import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonSimple;
 
 @SuppressWarnings("unused")
 // @Ignore
@@ -164,6 +191,100 @@ public class BlobStoreStorageTest {
         sizeTest(0);
     }
 
+    /**
+     * Test batched removal of an object with more blobs than one batch, that
+     * a failed batch leaves the object in place and the progress counters.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void objectPurge() throws Exception {
+        System.out.println("\n==========\n TEST => objectPurge()\n");
+        DigitalObject object = storage.createObject("testObject1");
+        for (int i = 0; i < 110; i++) {
+            object.createStoredPayload("testPayload" + i, in("testPayload1.txt"))
+                    .close();
+        }
+        object.close();
+        int keys = BlobStoreClient.listObjectKeys("testObject1").size();
+        Assert.assertTrue(keys > 200);
+
+        // 1) One failed batch leaves the manifest and the object listed
+        final BlobStore original = BlobStoreClient.getClient();
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        BlobStoreClient.setClient((BlobStore) Proxy.newProxyInstance(
+                BlobStore.class.getClassLoader(),
+                new Class<?>[] { BlobStore.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        if ("removeBlobs".equals(method.getName())) {
+                            batches.incrementAndGet();
+                            if (((List<?>) args[1]).size() == 100
+                                    && failures.getAndIncrement() == 0) {
+                                throw new IllegalStateException("batch failed");
+                            }
+                        }
+                        try {
+                            return method.invoke(original, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                }));
+        ObjectPurge purge = new ObjectPurge("testObject1", 100);
+        try {
+            purge.run();
+            Assert.fail();
+        } catch (StorageException ex) {
+            // This is what should occur
+        } finally {
+            BlobStoreClient.setClient(original);
+        }
+        Assert.assertEquals(3, batches.get());
+        Assert.assertTrue(purge.isFinished());
+        Assert.assertEquals(keys, purge.getTotal());
+        Assert.assertEquals(keys - 101, purge.getRemoved());
+        Assert.assertTrue(blobExists("testObject1/"
+                + BlobStoreDigitalObject.MANIFEST_KEY));
+        sizeTest(1);
+
+        // 2) Progress is visible while the removal runs
+        final int[] seen = new int[] { -1, -1 };
+        final boolean[] finished = new boolean[1];
+        BlobStoreClient.setClient((BlobStore) Proxy.newProxyInstance(
+                BlobStore.class.getClassLoader(),
+                new Class<?>[] { BlobStore.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        if ("removeBlobs".equals(method.getName())) {
+                            ObjectPurge running = storage
+                                    .getRemovalProgress("testObject1");
+                            seen[0] = running.getTotal();
+                            seen[1] = running.getRemoved();
+                            finished[0] = running.isFinished();
+                        }
+                        try {
+                            return method.invoke(original, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                }));
+        try {
+            storage.removeObject("testObject1");
+        } finally {
+            BlobStoreClient.setClient(original);
+        }
+        Assert.assertEquals(101, seen[0]);
+        Assert.assertEquals(0, seen[1]);
+        Assert.assertFalse(finished[0]);
+        Assert.assertNull(storage.getRemovalProgress("testObject1"));
+        sizeTest(0);
+    }
+
     /**
      * Test the payload creation process for all use cases
      *
@@ -333,6 +454,8 @@ public class BlobStoreStorageTest {
         object.removePayload("testPayload1");
         sizeTest(1);
         sizeTest(object, 0);
+        // 4) Removal persists in the manifest
+        sizeTest(storage.getObject("testObject1"), 0);
         storage.removeObject("testObject1");
         sizeTest(0);
     }
@@ -515,6 +638,1319 @@ public class BlobStoreStorageTest {
         storage.removeObject("testObject1");
     }
 
+    /**
+     * Update payload metadata in place and confirm the content is untouched.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void payloadMetadataUpdate() throws Exception {
+        System.out.println("\n==========\n TEST => payloadMetadataUpdate()\n");
+        DigitalObject object = storage.createObject("testObject1");
+        object.createStoredPayload("testPayload1", in("testPayload4.png"));
+
+        BlobStorePayload payload1 = (BlobStorePayload) object
+                .getPayload("testPayload1");
+        Long startTime = payload1.lastModified();
+        Thread.sleep(1000);
+        payload1.setLabel("Relabelled");
+        payload1.setContentType("application/octet-stream");
+        payload1.updateMetadata();
+
+        Payload payload2 = object.getPayload("testPayload1");
+        Assert.assertEquals("Relabelled", payload2.getLabel());
+        Assert.assertEquals("application/octet-stream",
+                payload2.getContentType());
+        Assert.assertEquals("Source", payload2.getType().toString());
+        sizeTest(payload2, 16261);
+        Assert.assertTrue(startTime < payload2.lastModified());
+
+        // Cleanup
+        storage.removeObject("testObject1");
+    }
+
+    /**
+     * Reading a payload and closing it must not write anything back.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void payloadReadOnlyClose() throws Exception {
+        System.out.println("\n==========\n TEST => payloadReadOnlyClose()\n");
+        DigitalObject object = storage.createObject("testObject1");
+        object.createStoredPayload("testPayload1", in("testPayload4.png"));
+
+        final AtomicInteger writes = new AtomicInteger();
+        final BlobStore client = BlobStoreClient.getClient();
+        BlobStore counting = (BlobStore) Proxy.newProxyInstance(
+                BlobStore.class.getClassLoader(),
+                new Class<?>[] { BlobStore.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if (name.startsWith("put") || name.startsWith("copy")
+                                || name.startsWith("remove")
+                                || name.startsWith("delete")) {
+                            writes.incrementAndGet();
+                        }
+                        try {
+                            return method.invoke(client, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        BlobStoreClient.setClient(counting);
+        try {
+            Payload payload = object.getPayload("testPayload1");
+            InputStream stream = payload.open();
+            Assert.assertEquals(16261, IOUtils.toByteArray(stream).length);
+            Assert.assertEquals("testPayload1", payload.getLabel());
+            payload.close();
+            Assert.assertEquals(0, writes.get());
+
+            // A real change is still persisted on close
+            payload = object.getPayload("testPayload1");
+            payload.setLabel("Changed");
+            payload.close();
+            Assert.assertEquals(1, writes.get());
+        } finally {
+            BlobStoreClient.setClient(client);
+        }
+        Assert.assertEquals("Changed",
+                object.getPayload("testPayload1").getLabel());
+
+        // Cleanup
+        storage.removeObject("testObject1");
+    }
+
+    /**
+     * Copy and rename objects inside the BlobStore.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void objectCopyAndRename() throws Exception {
+        System.out.println("\n==========\n TEST => objectCopyAndRename()\n");
+        DigitalObject object = storage.createObject("testObject1");
+        object.createStoredPayload("testPayload1", in("testPayload4.png"));
+        object.createStoredPayload("testPayload2", in("testPayload2.xml"));
+
+        // 1) Copy
+        DigitalObject copy = storage.copyObject("testObject1", "testObject2");
+        sizeTest(2);
+        sizeTest(copy, 2);
+        Assert.assertEquals("testPayload1", copy.getSourceId());
+        sizeTest(copy.getPayload("testPayload1"), 16261);
+        Assert.assertEquals("text/xml",
+                copy.getPayload("testPayload2").getContentType());
+
+        // 2) Copy onto an existing object
+        try {
+            storage.copyObject("testObject1", "testObject2");
+            Assert.fail();
+        } catch (StorageException ex) {
+            // This is what should occur
+        }
+
+        // 3) Rename
+        DigitalObject renamed = storage.renameObject("testObject2",
+                "testObject3");
+        sizeTest(2);
+        sizeTest(renamed, 2);
+        Assert.assertFalse(storage.getObjectIdList().contains("testObject2"));
+
+        // 4) A failed copy leaves nothing behind
+        final BlobStore original = BlobStoreClient.getClient();
+        BlobStoreClient.setClient((BlobStore) Proxy.newProxyInstance(
+                BlobStore.class.getClassLoader(),
+                new Class<?>[] { BlobStore.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        if ("copyBlob".equals(method.getName())
+                                && "testObject4/testPayload2".equals(args[3])) {
+                            throw new IllegalStateException("copy failed");
+                        }
+                        try {
+                            return method.invoke(original, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                }));
+        try {
+            storage.copyObject("testObject1", "testObject4");
+            Assert.fail();
+        } catch (StorageException ex) {
+            // This is what should occur
+        } finally {
+            BlobStoreClient.setClient(original);
+        }
+        Assert.assertFalse(blobExists("testObject4/testPayload1"));
+        Assert.assertFalse(blobExists("testObject4/"
+                + BlobStoreDigitalObject.MANIFEST_KEY));
+        Assert.assertFalse(storage.getObjectIdList().contains("testObject4"));
+        try {
+            storage.getObject("testObject4");
+            Assert.fail();
+        } catch (StorageException ex) {
+            // This is what should occur
+        }
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        storage.removeObject("testObject3");
+    }
+
+    /**
+     * Sweep an object with orphaned content and sidecar blobs, keeping those
+     * of the payloads in its manifest.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void orphanSweep() throws Exception {
+        System.out.println("\n==========\n TEST => orphanSweep()\n");
+        DigitalObject object = storage.createObject("testObject1");
+        object.createStoredPayload("testPayload1", in("testPayload4.png"));
+        BlobStore client = BlobStoreClient.getClient();
+        String container = BlobStoreClient.getContainerName();
+        for (String key : Arrays.asList("testObject1/orphan",
+                "testObject1/orphan" + BlobStorePayload.METADATA_SUFFIX)) {
+            client.putBlob(container,
+                    client.blobBuilder(key).payload("left behind").build());
+        }
+
+        // Young blobs may belong to payloads still being created
+        Assert.assertEquals(0, new OrphanSweeper(1000, 60, 2)
+                .sweep(Arrays.asList("testObject1")));
+        Assert.assertTrue(blobExists("testObject1/orphan"));
+
+        Thread.sleep(10);
+        Assert.assertEquals(2, new OrphanSweeper(1000, 0, 2)
+                .sweep(Arrays.asList("testObject1")));
+        Assert.assertFalse(blobExists("testObject1/orphan"));
+        Assert.assertFalse(blobExists("testObject1/orphan"
+                + BlobStorePayload.METADATA_SUFFIX));
+        Assert.assertTrue(blobExists("testObject1/testPayload1"));
+        Assert.assertTrue(blobExists("testObject1/testPayload1"
+                + BlobStorePayload.METADATA_SUFFIX));
+        sizeTest(storage.getObject("testObject1"), 1);
+
+        // Cleanup
+        storage.removeObject("testObject1");
+    }
+
+    /**
+     * Run the main operations through the asynchronous API.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void asyncOperations() throws Exception {
+        System.out.println("\n==========\n TEST => asyncOperations()\n");
+        BlobStoreDigitalObject object = (BlobStoreDigitalObject) storage
+                .createObjectAsync("testObject1").get();
+        sizeTest(1);
+
+        BlobStorePayload payload = (BlobStorePayload) object
+                .createStoredPayloadAsync("testPayload1",
+                        in("testPayload4.png")).get();
+        Assert.assertEquals(16261,
+                IOUtils.toByteArray(payload.openAsync().get()).length);
+        payload.closeAsync().get();
+
+        // Failures surface through the future
+        try {
+            storage.getObjectAsync("testObject2").get();
+            Assert.fail();
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof StorageException);
+        }
+
+        storage.removeObjectAsync("testObject1").get();
+        sizeTest(0);
+    }
+
+    /**
+     * Export objects to an archive and import them back.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void archiveRoundTrip() throws Exception {
+        System.out.println("\n==========\n TEST => archiveRoundTrip()\n");
+        DigitalObject object = storage.createObject("testObject1");
+        object.createStoredPayload("testPayload1", in("testPayload4.png"));
+        Payload payload2 = object.createStoredPayload("testPayload2",
+                in("testPayload2.xml"));
+        payload2.setLabel("Test Payload 2");
+        payload2.setType(PayloadType.Annotation);
+        payload2.close();
+        // Not to be mistaken for metadata in the archive
+        object.createStoredPayload("testPayload3.meta", in("testPayload1.txt"))
+                .close();
+
+        ObjectArchiver archiver = new ObjectArchiver(storage);
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        archiver.exportObjects(Arrays.asList("testObject1"), archive);
+
+        storage.removeObject("testObject1");
+        sizeTest(0);
+        Assert.assertEquals(3, archiver.importObjects(
+                new ByteArrayInputStream(archive.toByteArray())));
+
+        object = storage.getObject("testObject1");
+        sizeTest(object, 3);
+        sizeTest(object.getPayload("testPayload3.meta"), 4);
+        Assert.assertEquals("testPayload1", object.getSourceId());
+        sizeTest(object.getPayload("testPayload1"), 16261);
+        Payload payload = object.getPayload("testPayload2");
+        Assert.assertEquals("Test Payload 2", payload.getLabel());
+        Assert.assertEquals("Annotation", payload.getType().toString());
+        Assert.assertEquals("text/xml", payload.getContentType());
+
+        // Cleanup
+        storage.removeObject("testObject1");
+    }
+
+    /**
+     * Small payloads live in the manifest and move out when they grow.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void inlinePayloads() throws Exception {
+        System.out.println("\n==========\n TEST => inlinePayloads()\n");
+        BlobStoreClient.setInlineThreshold(1024);
+        try {
+            DigitalObject object = storage.createObject("testObject1");
+            object.createStoredPayload("testPayload1", in("testPayload1.txt"));
+            object.createStoredPayload("testPayload2", in("testPayload4.png"));
+            Assert.assertFalse(blobExists("testObject1/testPayload1"));
+            Assert.assertTrue(blobExists("testObject1/testPayload2"));
+
+            // Re-instantiate and read back from the manifest
+            object = storage.getObject("testObject1");
+            sizeTest(object, 2);
+            Assert.assertEquals("testPayload1", object.getSourceId());
+            Payload payload = object.getPayload("testPayload1");
+            sizeTest(payload, 4);
+            Assert.assertEquals("text/plain", payload.getContentType());
+            Assert.assertEquals(4, IOUtils.toByteArray(payload.open()).length);
+            payload.setLabel("Inline Payload");
+            payload.close();
+            Assert.assertEquals("Inline Payload", storage
+                    .getObject("testObject1").getPayload("testPayload1")
+                    .getLabel());
+
+            // Growing past the threshold moves it to its own blob
+            object.updatePayload("testPayload1", in("testPayload4.png"));
+            Assert.assertTrue(blobExists("testObject1/testPayload1"));
+            payload = storage.getObject("testObject1")
+                    .getPayload("testPayload1");
+            sizeTest(payload, 16261);
+            Assert.assertEquals("Inline Payload", payload.getLabel());
+
+            // Shrinking moves it back, and the blob goes after the manifest
+            object.updatePayload("testPayload1", in("testPayload1.txt"));
+            Assert.assertFalse(blobExists("testObject1/testPayload1"));
+            Assert.assertFalse(blobExists("testObject1/testPayload1"
+                    + BlobStorePayload.METADATA_SUFFIX));
+            sizeTest(storage.getObject("testObject1")
+                    .getPayload("testPayload1"), 4);
+
+            storage.removeObject("testObject1");
+        } finally {
+            BlobStoreClient.setInlineThreshold(0);
+        }
+    }
+
+    /**
+     * Test that write-behind serves journaled writes before they are uploaded
+     * and uploads them after a restart.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void writeBehind() throws Exception {
+        System.out.println("\n==========\n TEST => writeBehind()\n");
+        final BlobStore original = BlobStoreClient.getClient();
+        File directory = new File(System.getProperty("java.io.tmpdir"),
+                "blobstore-journal-" + System.nanoTime());
+        // An unreachable store: every upload fails
+        BlobStore offline = (BlobStore) Proxy.newProxyInstance(
+                BlobStore.class.getClassLoader(),
+                new Class<?>[] { BlobStore.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        if ("putBlob".equals(method.getName())) {
+                            throw new IllegalStateException("offline");
+                        }
+                        try {
+                            return method.invoke(original, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        WriteBehindJournal journal = new WriteBehindJournal(directory, 2);
+        BlobStoreClient.setClient(journal.wrap(offline));
+        try {
+            DigitalObject object = storage.createObject("testObject1");
+            object.createStoredPayload("testPayload1", in("testPayload1.txt"));
+            object = storage.getObject("testObject1");
+            sizeTest(object, 1);
+            sizeTest(object.getPayload("testPayload1"), 4);
+            // Pending blobs report the MD5 of their content as the ETag
+            Assert.assertEquals(
+                    Hashing.md5().hashBytes(
+                            IOUtils.toByteArray(in("testPayload1.txt")))
+                            .toString(),
+                    BlobStoreClient.getClient().blobMetadata(
+                            BlobStoreClient.getContainerName(),
+                            "testObject1/testPayload1").getETag());
+            journal.shutdown(1);
+            Assert.assertTrue(journal.getPendingCount() > 0);
+        } finally {
+            BlobStoreClient.setClient(original);
+        }
+        Assert.assertFalse(blobExists("testObject1/testPayload1"));
+
+        // Restarting on the same journal uploads everything
+        journal = new WriteBehindJournal(directory, 2);
+        journal.wrap(original);
+        journal.shutdown(30);
+        Assert.assertEquals(0, journal.getPendingCount());
+        Assert.assertTrue(blobExists("testObject1/testPayload1"));
+        sizeTest(storage.getObject("testObject1").getPayload("testPayload1"),
+                4);
+        storage.removeObject("testObject1");
+        directory.delete();
+    }
+
+    /**
+     * Test that a pending blob read while its upload completes stays readable
+     * after the upload removed it from the journal.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void writeBehindReadDuringUpload() throws Exception {
+        System.out.println(
+                "\n==========\n TEST => writeBehindReadDuringUpload()\n");
+        final BlobStore original = BlobStoreClient.getClient();
+        File directory = new File(System.getProperty("java.io.tmpdir"),
+                "blobstore-journal-" + System.nanoTime());
+        // The first upload fails, so the retry completes after the read
+        final AtomicInteger puts = new AtomicInteger();
+        BlobStore flaky = (BlobStore) Proxy.newProxyInstance(
+                BlobStore.class.getClassLoader(),
+                new Class<?>[] { BlobStore.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        if ("putBlob".equals(method.getName())
+                                && puts.incrementAndGet() == 1) {
+                            throw new IllegalStateException("offline");
+                        }
+                        try {
+                            return method.invoke(original, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        WriteBehindJournal journal = new WriteBehindJournal(directory, 1);
+        BlobStore client = journal.wrap(flaky);
+        String container = BlobStoreClient.getContainerName();
+        byte[] content = IOUtils.toByteArray(in("testPayload1.txt"));
+        client.putBlob(container, client.blobBuilder("testObject1/pending")
+                .payload(content).build());
+        Blob blob = client.getBlob(container, "testObject1/pending");
+        try {
+            long deadline = System.currentTimeMillis() + 30000;
+            while (journal.getPendingCount() > 0
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertEquals(0, journal.getPendingCount());
+            Assert.assertEquals(0, directory.list().length);
+            Assert.assertArrayEquals(content,
+                    IOUtils.toByteArray(blob.getPayload().openStream()));
+        } finally {
+            blob.getPayload().release();
+            journal.shutdown(1);
+        }
+        Assert.assertTrue(blobExists("testObject1/pending"));
+        original.removeBlob(container, "testObject1/pending");
+        directory.delete();
+    }
+
+    /**
+     * Test reads through a hot tier and eviction beyond its capacity.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void tieredStorage() throws Exception {
+        System.out.println("\n==========\n TEST => tieredStorage()\n");
+        BlobStore original = BlobStoreClient.getClient();
+        BlobStoreTarget hotTarget = BlobStoreTarget.connect(new JsonSimple(
+                "{\"provider\": \"filesystem\","
+                        + " \"containerName\": \"blobstorehot\","
+                        + " \"fileSystemLocation\": \"blobstore-hot\","
+                        + " \"supportsUserMetadata\": \"false\"}"));
+        TieredBlobStore tiered = new TieredBlobStore(hotTarget, 20000);
+        BlobStoreClient.setClient(tiered.wrap(original,
+                BlobStoreClient.getContainerName()));
+        try {
+            DigitalObject object = storage.createObject("testObject1");
+            object.createStoredPayload("testPayload1", in("testPayload1.txt"));
+            object = storage.getObject("testObject1");
+            Payload payload = object.getPayload("testPayload1");
+            Assert.assertEquals(4, IOUtils.toByteArray(payload.open()).length);
+            payload.close();
+            Assert.assertTrue(tiered.getHotHitRatio() > 0);
+
+            // The second image pushes the first out of the hot tier
+            object.createStoredPayload("testPayload2", in("testPayload4.png"));
+            object.createStoredPayload("testPayload3", in("testPayload4.png"));
+            Assert.assertTrue(tiered.getHotBytes() <= 20000);
+            payload = storage.getObject("testObject1").getPayload(
+                    "testPayload2");
+            Assert.assertEquals(16261,
+                    IOUtils.toByteArray(payload.open()).length);
+            payload.close();
+            Assert.assertTrue(tiered.getColdHitRatio() > 0);
+
+            // A stream larger than the hot tier goes to the cold tier only
+            long hotBytes = tiered.getHotBytes();
+            object.createStoredPayload("testPayload5",
+                    new ByteArrayInputStream(new byte[30000]));
+            Assert.assertEquals(hotBytes, tiered.getHotBytes());
+            payload = storage.getObject("testObject1").getPayload(
+                    "testPayload5");
+            Assert.assertEquals(30000,
+                    IOUtils.toByteArray(payload.open()).length);
+            payload.close();
+            Assert.assertEquals(hotBytes, tiered.getHotBytes());
+
+            storage.removeObject("testObject1");
+            Assert.assertEquals(0, tiered.getHotBytes());
+        } finally {
+            BlobStoreClient.setClient(original);
+            hotTarget.close();
+        }
+    }
+
+    /**
+     * Test demotion of idle payloads to the cold container and promotion on
+     * the next read.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void coldStorage() throws Exception {
+        System.out.println("\n==========\n TEST => coldStorage()\n");
+        // Everything written before tomorrow is idle, and no reads count
+        ColdStorage cold = new ColdStorage("blobstoretest-cold", -1, 0, 1000);
+        cold.init();
+        BlobStoreClient.setColdStorage(cold);
+        try {
+            DigitalObject object = storage.createObject("testObject1");
+            object.createStoredPayload("testPayload1", in("testPayload4.png"));
+            Assert.assertEquals(1, cold.demote(Arrays.asList("testObject1")));
+            Assert.assertFalse(blobExists("testObject1/testPayload1"));
+
+            // Metadata stays hot, content is promoted when read
+            Payload payload = storage.getObject("testObject1").getPayload(
+                    "testPayload1");
+            Assert.assertEquals("image/png", payload.getContentType());
+            Assert.assertEquals(Long.valueOf(16261), payload.size());
+            payload.setLabel("Demoted");
+            payload.close();
+            Assert.assertEquals(0, cold.getPromoted());
+            Assert.assertFalse(blobExists("testObject1/testPayload1"));
+
+            payload = storage.getObject("testObject1").getPayload(
+                    "testPayload1");
+            Assert.assertEquals("Demoted", payload.getLabel());
+            Assert.assertEquals(16261,
+                    IOUtils.toByteArray(payload.open()).length);
+            payload.close();
+            Assert.assertEquals(1, cold.getPromoted());
+            Assert.assertTrue(blobExists("testObject1/testPayload1"));
+
+            storage.removeObject("testObject1");
+        } finally {
+            BlobStoreClient.setColdStorage(null);
+        }
+    }
+
+    /**
+     * Test that a payload rewritten while it is being demoted keeps its new
+     * content.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void coldStorageRewriteDuringDemotion() throws Exception {
+        System.out.println(
+                "\n==========\n TEST => coldStorageRewriteDuringDemotion()\n");
+        final BlobStore original = BlobStoreClient.getClient();
+        final ColdStorage cold = new ColdStorage("blobstoretest-cold", -1, 0,
+                1000);
+        cold.init();
+        final DigitalObject object = storage.createObject("testObject1");
+        object.createStoredPayload("testPayload1", in("testPayload1.txt"));
+        final Thread[] writer = new Thread[1];
+        // The rewrite starts just before demotion drops the hot copy
+        BlobStore racing = (BlobStore) Proxy.newProxyInstance(
+                BlobStore.class.getClassLoader(),
+                new Class<?>[] { BlobStore.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        if ("removeBlob".equals(method.getName())
+                                && BlobStoreClient.getContainerName().equals(
+                                        args[0])
+                                && "testObject1/testPayload1".equals(args[1])
+                                && writer[0] == null) {
+                            writer[0] = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    try {
+                                        object.updatePayload("testPayload1",
+                                                in("testPayload2.xml"));
+                                    } catch (StorageException e) {
+                                        throw new RuntimeException(e);
+                                    }
+                                }
+                            });
+                            writer[0].start();
+                            // Long enough for an unguarded rewrite to land
+                            writer[0].join(500);
+                        }
+                        try {
+                            return method.invoke(original, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        BlobStoreClient.setClient(racing);
+        BlobStoreClient.setColdStorage(cold);
+        try {
+            cold.demote(Arrays.asList("testObject1"));
+            writer[0].join();
+            Payload payload = storage.getObject("testObject1").getPayload(
+                    "testPayload1");
+            Assert.assertArrayEquals(
+                    IOUtils.toByteArray(in("testPayload2.xml")),
+                    IOUtils.toByteArray(payload.open()));
+            payload.close();
+            Assert.assertEquals(0, cold.getPromoted());
+            storage.removeObject("testObject1");
+        } finally {
+            BlobStoreClient.setClient(original);
+            BlobStoreClient.setColdStorage(null);
+        }
+    }
+
+    /**
+     * Test that writes reach a replica and that reads from a slow primary are
+     * answered by the replica.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void replication() throws Exception {
+        System.out.println("\n==========\n TEST => replication()\n");
+        final BlobStore original = BlobStoreClient.getClient();
+        final AtomicInteger delay = new AtomicInteger();
+        BlobStore slow = (BlobStore) Proxy.newProxyInstance(
+                BlobStore.class.getClassLoader(),
+                new Class<?>[] { BlobStore.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        if ("getBlob".equals(method.getName())) {
+                            Thread.sleep(delay.get());
+                        }
+                        try {
+                            return method.invoke(original, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        BlobStoreTarget replica = BlobStoreTarget.connect(new JsonSimple(
+                "{\"provider\": \"filesystem\","
+                        + " \"containerName\": \"blobstorereplica\","
+                        + " \"fileSystemLocation\": \"blobstore-replica\","
+                        + " \"supportsUserMetadata\": \"false\"}"));
+        ReplicatedBlobStore replicated = new ReplicatedBlobStore(
+                Arrays.asList(replica), true, 95);
+        BlobStoreClient.setClient(replicated.wrap(slow,
+                BlobStoreClient.getContainerName()));
+        try {
+            DigitalObject object = storage.createObject("testObject1");
+            object.createStoredPayload("testPayload1", in("testPayload1.txt"));
+            Assert.assertTrue(replica.getBlobStore().blobExists(
+                    "blobstorereplica", "testObject1/testPayload1"));
+
+            // A primary this slow is always hedged
+            delay.set(5000);
+            long start = System.currentTimeMillis();
+            Payload payload = storage.getObject("testObject1").getPayload(
+                    "testPayload1");
+            Assert.assertEquals(4, IOUtils.toByteArray(payload.open()).length);
+            payload.close();
+            Assert.assertTrue(replicated.getHedgeWins() > 0);
+            Assert.assertTrue(System.currentTimeMillis() - start < 15000);
+            delay.set(0);
+
+            storage.removeObject("testObject1");
+            Assert.assertFalse(replica.getBlobStore().blobExists(
+                    "blobstorereplica", "testObject1/testPayload1"));
+        } finally {
+            delay.set(0);
+            BlobStoreClient.setClient(original);
+            replicated.shutdown(5);
+            replica.close();
+        }
+    }
+
+    /**
+     * Test that reads failing on the primary are answered by the replica, and
+     * that the primary's error stands when the replica has nothing.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void replicationFailover() throws Exception {
+        System.out.println("\n==========\n TEST => replicationFailover()\n");
+        final BlobStore original = BlobStoreClient.getClient();
+        final AtomicInteger failing = new AtomicInteger();
+        BlobStore broken = (BlobStore) Proxy.newProxyInstance(
+                BlobStore.class.getClassLoader(),
+                new Class<?>[] { BlobStore.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if (failing.get() > 0 && ("getBlob".equals(name)
+                                || "blobExists".equals(name)
+                                || "blobMetadata".equals(name))) {
+                            throw new IllegalStateException("primary down");
+                        }
+                        try {
+                            return method.invoke(original, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        BlobStoreTarget replica = BlobStoreTarget.connect(new JsonSimple(
+                "{\"provider\": \"filesystem\","
+                        + " \"containerName\": \"blobstorereplica\","
+                        + " \"fileSystemLocation\": \"blobstore-replica\","
+                        + " \"supportsUserMetadata\": \"false\"}"));
+        ReplicatedBlobStore replicated = new ReplicatedBlobStore(
+                Arrays.asList(replica), true, 95);
+        BlobStoreClient.setClient(replicated.wrap(broken,
+                BlobStoreClient.getContainerName()));
+        try {
+            DigitalObject object = storage.createObject("testObject1");
+            object.createStoredPayload("testPayload1", in("testPayload1.txt"));
+
+            failing.set(1);
+            Payload payload = storage.getObject("testObject1").getPayload(
+                    "testPayload1");
+            Assert.assertEquals("text/plain", payload.getContentType());
+            Assert.assertEquals(4, IOUtils.toByteArray(payload.open()).length);
+            payload.close();
+            Assert.assertTrue(replicated.getFailovers() > 0);
+
+            // Nothing on the replica either: the primary's error stands
+            try {
+                BlobStoreClient.getClient().getBlob(
+                        BlobStoreClient.getContainerName(), "testObject1/none");
+                Assert.fail("The primary's error was swallowed");
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("primary down", e.getMessage());
+            }
+            failing.set(0);
+
+            storage.removeObject("testObject1");
+        } finally {
+            failing.set(0);
+            BlobStoreClient.setClient(original);
+            replicated.shutdown(5);
+            replica.close();
+        }
+    }
+
+    /**
+     * Import a directory tree, interrupt the import part way through one
+     * object and make sure a second run only finishes what is missing.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void bulkImport() throws Exception {
+        System.out.println("\n==========\n TEST => bulkImport()\n");
+        Path root = Files.createTempDirectory("blobstore-import");
+        Path checkpoint = Files.createTempFile("blobstore-import", ".done");
+        try {
+            // 'a/b' and 'a_b' must become different objects
+            Files.createDirectories(root.resolve("a/b"));
+            Files.createDirectories(root.resolve("a_b"));
+            for (String file : new String[] { "a/1.txt", "a/b/1.txt",
+                    "a/b/2.txt", "a_b/1.txt" }) {
+                Files.write(root.resolve(file),
+                        file.getBytes(StandardCharsets.UTF_8));
+            }
+
+            // 1) The second payload of 'a/b' fails, as if interrupted
+            final BlobStore original = BlobStoreClient.getClient();
+            final AtomicInteger uploads = new AtomicInteger();
+            BlobStoreClient.setClient((BlobStore) Proxy.newProxyInstance(
+                    BlobStore.class.getClassLoader(),
+                    new Class<?>[] { BlobStore.class },
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method,
+                                Object[] args) throws Throwable {
+                            if ("putBlob".equals(method.getName())) {
+                                String key = ((Blob) args[1]).getMetadata()
+                                        .getName();
+                                if (key.startsWith("a_b/")
+                                        && key.endsWith(".txt")
+                                        && uploads.incrementAndGet() == 2) {
+                                    throw new IllegalStateException(
+                                            "interrupted");
+                                }
+                            }
+                            try {
+                                return method.invoke(original, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                    }));
+            BulkImporter importer = new BulkImporter(storage, checkpoint);
+            try {
+                importer.importTree(root);
+            } finally {
+                BlobStoreClient.setClient(original);
+            }
+            Assert.assertEquals(2, importer.getObjectCount());
+            Assert.assertEquals(1, importer.getFailureCount());
+            Assert.assertEquals(1, storage.getObject("a_b").getPayloadIdList()
+                    .size());
+            Assert.assertEquals(1, storage.getObject("a%5Fb")
+                    .getPayloadIdList().size());
+
+            // 2) Resuming skips finished objects and uploads what is missing
+            importer = new BulkImporter(storage, checkpoint);
+            importer.importTree(root);
+            Assert.assertEquals(2, importer.getSkippedCount());
+            Assert.assertEquals(1, importer.getObjectCount());
+            Assert.assertEquals(1, importer.getPayloadCount());
+            Assert.assertEquals(0, importer.getFailureCount());
+            Assert.assertEquals(2, storage.getObject("a_b").getPayloadIdList()
+                    .size());
+            sizeTest(3);
+        } finally {
+            FileUtils.deleteQuietly(root.toFile());
+            Files.deleteIfExists(checkpoint);
+        }
+    }
+
+    /**
+     * Test a migration from the filesystem provider, which keeps payload
+     * metadata in sidecars, to the transient provider, which keeps it on the
+     * blob, and that a second run only copies what is missing.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void migration() throws Exception {
+        System.out.println("\n==========\n TEST => migration()\n");
+        DigitalObject object = storage.createObject("testObject1");
+        object.createStoredPayload("testPayload1", in("testPayload1.txt"));
+        object = storage.createObject("testObject2");
+        object.createStoredPayload("testPayload2", in("testPayload2.xml"));
+
+        BlobStoreTarget source = BlobStoreTarget.connect(new JsonSimple(
+                "{\"provider\": \"filesystem\","
+                        + " \"containerName\": \"blobstoretest\","
+                        + " \"fileSystemLocation\": \"blobstore\","
+                        + " \"supportsUserMetadata\": \"false\"}"));
+        BlobStoreTarget target = BlobStoreTarget.connect(new JsonSimple(
+                "{\"provider\": \"transient\","
+                        + " \"containerName\": \"blobstoremigrated\"}"));
+        File checkpoint = File.createTempFile("blobstore-migration-",
+                ".properties");
+        checkpoint.delete();
+        try {
+            BlobStoreMigration migration = new BlobStoreMigration(source,
+                    target, checkpoint.toPath());
+            migration.run();
+            Assert.assertEquals(2, migration.getObjectCount());
+            BlobStore to = target.getBlobStore();
+            Assert.assertTrue(to.blobExists("blobstoremigrated",
+                    "testObject1/" + BlobStoreDigitalObject.MANIFEST_KEY));
+            // Sidecars became user metadata
+            Assert.assertFalse(to.blobExists("blobstoremigrated",
+                    "testObject1/testPayload1"
+                            + BlobStorePayload.METADATA_SUFFIX));
+            Assert.assertEquals("text/plain",
+                    to.blobMetadata("blobstoremigrated",
+                            "testObject1/testPayload1").getUserMetadata()
+                            .get("contenttype"));
+            Assert.assertEquals("testPayload2",
+                    to.blobMetadata("blobstoremigrated",
+                            "testObject2/testPayload2").getUserMetadata()
+                            .get("label"));
+            long copied = migration.getBlobCount();
+
+            // A second run skips everything but what went missing
+            to.removeBlob("blobstoremigrated", "testObject2/testPayload2");
+            migration = new BlobStoreMigration(source, target,
+                    checkpoint.toPath());
+            migration.run();
+            Assert.assertEquals(1, migration.getBlobCount());
+            Assert.assertEquals(copied - 1, migration.getSkippedCount());
+            Assert.assertTrue(to.blobExists("blobstoremigrated",
+                    "testObject2/testPayload2"));
+        } finally {
+            checkpoint.delete();
+            source.close();
+            target.close();
+            storage.removeObject("testObject1");
+            storage.removeObject("testObject2");
+        }
+    }
+
+    /**
+     * Test retries of transient failures and the circuit breaker failing fast
+     * while the BlobStore is down.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void retryAndCircuitBreaker() throws Exception {
+        System.out.println("\n==========\n TEST => retryAndCircuitBreaker()\n");
+        final BlobStore original = BlobStoreClient.getClient();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger calls = new AtomicInteger();
+        BlobStore flaky = (BlobStore) Proxy.newProxyInstance(
+                BlobStore.class.getClassLoader(),
+                new Class<?>[] { BlobStore.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        calls.incrementAndGet();
+                        if (failures.getAndDecrement() > 0) {
+                            throw new RuntimeException(new SocketException(
+                                    "connection reset"));
+                        }
+                        try {
+                            return method.invoke(original, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        BlobStore client = new ResilientBlobStore(3, 1, 10, 60, 3, 3600)
+                .wrap(flaky);
+        String container = BlobStoreClient.getContainerName();
+
+        // Two transient failures are absorbed by the third attempt
+        failures.set(2);
+        Assert.assertFalse(client.blobExists(container, "testObject1/none"));
+        Assert.assertEquals(3, calls.get());
+
+        // Three more open the circuit, after which nothing reaches the store
+        failures.set(Integer.MAX_VALUE);
+        try {
+            client.blobExists(container, "testObject1/none");
+            Assert.fail("Expected the transient failure");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        calls.set(0);
+        try {
+            client.blobExists(container, "testObject1/none");
+            Assert.fail("Expected the circuit to be open");
+        } catch (ResilientBlobStore.BlobStoreUnavailableException e) {
+            Assert.assertEquals(0, calls.get());
+        }
+
+        // Callers of the plugin see a StorageException
+        BlobStoreClient.setClient(client);
+        try {
+            storage.getObject("testObject1");
+            Assert.fail("Expected the circuit to be open");
+        } catch (StorageException e) {
+            Assert.assertTrue(e.getCause() instanceof
+                    ResilientBlobStore.BlobStoreUnavailableException);
+        } finally {
+            BlobStoreClient.setClient(original);
+        }
+
+        // Only network errors are transient
+        Assert.assertTrue(ResilientBlobStore.isTransient(
+                new RuntimeException(new ConnectException())));
+        Assert.assertFalse(ResilientBlobStore.isTransient(
+                new RuntimeException(new FileNotFoundException())));
+    }
+
+    /**
+     * Test that the concurrency limiter caps concurrent requests and halves
+     * its limit when the BlobStore times out.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void concurrencyLimiter() throws Exception {
+        System.out.println("\n==========\n TEST => concurrencyLimiter()\n");
+        final BlobStore original = BlobStoreClient.getClient();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final AtomicInteger timeouts = new AtomicInteger();
+        BlobStore slow = (BlobStore) Proxy.newProxyInstance(
+                BlobStore.class.getClassLoader(),
+                new Class<?>[] { BlobStore.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        int now = running.incrementAndGet();
+                        peak.accumulateAndGet(now, Math::max);
+                        try {
+                            Thread.sleep(20);
+                            if (timeouts.getAndDecrement() > 0) {
+                                throw new RuntimeException(
+                                        new SocketTimeoutException());
+                            }
+                            return method.invoke(original, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        } finally {
+                            running.decrementAndGet();
+                        }
+                    }
+                });
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 4, 0, 0, 0);
+        final BlobStore client = limiter.wrap(slow);
+        final String container = BlobStoreClient.getContainerName();
+
+        Thread[] threads = new Thread[16];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    client.blobExists(container, "testObject1/none");
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertTrue(peak.get() <= 4);
+        Assert.assertEquals(4, limiter.getLimit("reads"));
+
+        timeouts.set(1);
+        try {
+            client.blobExists(container, "testObject1/none");
+            Assert.fail("Expected the timeout");
+        } catch (RuntimeException e) {
+            Assert.assertEquals(2, limiter.getLimit("reads"));
+            Assert.assertEquals(4, limiter.getLimit("writes"));
+        }
+    }
+
+    /**
+     * Test that requests are measured by BlobStore method and by the plugin
+     * method that caused them.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void requestMetrics() throws Exception {
+        System.out.println("\n==========\n TEST => requestMetrics()\n");
+        BlobStore original = BlobStoreClient.getClient();
+        BlobStoreMetrics metrics = new BlobStoreMetrics();
+        final AtomicInteger heard = new AtomicInteger();
+        metrics.addListener(new MetricsListener() {
+            @Override
+            public void record(String operation, String caller, long nanos,
+                    boolean error, long bytesIn, long bytesOut) {
+                heard.incrementAndGet();
+            }
+        });
+        BlobStoreClient.setClient(metrics.wrap(original));
+        try {
+            DigitalObject object = storage.createObject("testObject1");
+            object.createStoredPayload("testPayload1", in("testPayload4.png"));
+            Payload payload = storage.getObject("testObject1").getPayload(
+                    "testPayload1");
+            IOUtils.toByteArray(payload.open());
+            payload.close();
+
+            Assert.assertEquals(1, metrics.getTimer("blobExists",
+                    "createObject").getCount());
+            Assert.assertTrue(metrics.getTimer("putBlob",
+                    "createStoredPayload").getCount() > 0);
+            BlobStoreMetrics.TimerStats reads = metrics.getTimer("getBlob",
+                    "open");
+            Assert.assertTrue(reads.getBytesIn() >= 16261);
+            Assert.assertTrue(reads.getP99Millis() >= reads.getP50Millis());
+            Assert.assertTrue(heard.get() > 0);
+            Assert.assertTrue(metrics.getTimers().size() > 3);
+            storage.removeObject("testObject1");
+        } finally {
+            BlobStoreClient.setClient(original);
+        }
+    }
+
+    /**
+     * Pin down the BlobStore round trips of the main operations, so a new
+     * request sneaking into any of them fails the build. Counts are for
+     * providers without user metadata, which keep it in sidecar blobs.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void callCounts() throws Exception {
+        System.out.println("\n==========\n TEST => callCounts()\n");
+        BlobStore original = BlobStoreClient.getClient();
+        BlobStoreClient.setClient(CallAccounting.wrap(original));
+        try {
+            // blobExists and putBlob manifest
+            DigitalObject object = storage.createObject("testObject1");
+            assertCalls("createObject", 2);
+
+            // blobExists, putBlob content and sidecar, blobMetadata and
+            // putBlob manifest
+            object.createStoredPayload("testPayload1", in("testPayload4.png"));
+            assertCalls("createStoredPayload", 5);
+
+            // blobExists manifest
+            object = storage.getObject("testObject1");
+            assertCalls("getObject", 1);
+
+            // getBlob manifest, payloads load lazily
+            Payload payload = object.getPayload("testPayload1");
+            assertCalls("getPayload", 1);
+
+            // blobExists, getBlob content and sidecar
+            payload.open();
+            assertCalls("open", 3);
+            Assert.assertEquals(2,
+                    CallAccounting.lastOperation().getCalls("getBlob"));
+
+            // Nothing changed, nothing written
+            payload.close();
+            assertCalls("close", 0);
+
+            // blobMetadata and putBlob manifest, removeBlobs content and
+            // sidecar
+            object.removePayload("testPayload1");
+            assertCalls("removePayload", 3);
+
+            // blobExists, list, removeBlob manifest, deleteDirectory
+            storage.removeObject("testObject1");
+            assertCalls("removeObject", 4);
+        } finally {
+            BlobStoreClient.setClient(original);
+        }
+    }
+
+    /**
+     * Check the latency, consistency delay and errors of the emulated remote
+     * BlobStore used by benchmarks.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void latencyInjection() throws Exception {
+        System.out.println("\n==========\n TEST => latencyInjection()\n");
+        BlobStore original = BlobStoreClient.getClient();
+        BlobStore remote = new LatencyInjectingBlobStore().decorate(original,
+                new JsonSimple("{\"operationLatencyMillis\": {\"putBlob\": 50},"
+                        + " \"consistencyDelayMillis\": 300}"));
+        String container = BlobStoreClient.getContainerName();
+        String manifest = "testObject1/"
+                + BlobStoreDigitalObject.MANIFEST_KEY;
+        BlobStoreClient.setClient(remote);
+        try {
+            long start = System.currentTimeMillis();
+            storage.createObject("testObject1");
+            Assert.assertTrue(System.currentTimeMillis() - start >= 50);
+
+            // Written, but not visible yet
+            Assert.assertTrue(original.blobExists(container, manifest));
+            Assert.assertFalse(remote.blobExists(container, manifest));
+            Thread.sleep(350);
+            Assert.assertTrue(remote.blobExists(container, manifest));
+
+            // An overwrite reads as the previous content until visible
+            String key = "testObject1/testPayload1";
+            remote.putBlob(container,
+                    remote.blobBuilder(key).payload("first").build());
+            Thread.sleep(350);
+            remote.putBlob(container,
+                    remote.blobBuilder(key).payload("second").build());
+            Assert.assertTrue(remote.blobExists(container, key));
+            Assert.assertEquals("first", IOUtils.toString(remote
+                    .getBlob(container, key).getPayload().openStream(),
+                    "UTF-8"));
+            Thread.sleep(350);
+            Assert.assertEquals("second", IOUtils.toString(remote
+                    .getBlob(container, key).getPayload().openStream(),
+                    "UTF-8"));
+        } finally {
+            BlobStoreClient.setClient(original);
+        }
+
+        BlobStore failing = new LatencyInjectingBlobStore().decorate(original,
+                new JsonSimple("{\"errorRate\": \"1\"}"));
+        try {
+            failing.blobExists(container, manifest);
+            Assert.fail();
+        } catch (RuntimeException e) {
+            Assert.assertTrue(ResilientBlobStore.isTransient(e));
+        }
+    }
+
+    /**
+     * Objects read their manifest on first use, and report a manifest that
+     * cannot be read to the caller instead of appearing empty.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void lazyManifest() throws Exception {
+        System.out.println("\n==========\n TEST => lazyManifest()\n");
+        storage.createObject("testObject1").createStoredPayload("testPayload1",
+                in("testPayload1.txt"));
+        BlobStore client = BlobStoreClient.getClient();
+        String manifest = "testObject1/" + BlobStoreDigitalObject.MANIFEST_KEY;
+        client.putBlob(BlobStoreClient.getContainerName(),
+                client.blobBuilder(manifest).payload("{ not a manifest")
+                        .build());
+
+        // Only the existence of the object is checked
+        DigitalObject object = storage.getObject("testObject1");
+        try {
+            object.getPayload("testPayload1");
+            Assert.fail();
+        } catch (StorageException ex) {
+            // This is what should occur
+        }
+        try {
+            object.getPayloadIdList();
+            Assert.fail();
+        } catch (RuntimeException ex) {
+            // This is what should occur
+        }
+
+        storage.removeObject("testObject1");
+    }
+
+    /**
+     * Change an object through two instances, as two nodes would, and make
+     * sure neither overwrites the other's manifest changes.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void manifestCompareAndSwap() throws Exception {
+        System.out.println("\n==========\n TEST => manifestCompareAndSwap()\n");
+        storage.createObject("testObject1").createStoredPayload("testPayload1",
+                in("testPayload1.txt"));
+        DigitalObject node1 = storage.getObject("testObject1");
+        DigitalObject node2 = storage.getObject("testObject1");
+
+        node1.createStoredPayload("testPayload2", in("testPayload2.xml"));
+        node2.createStoredPayload("testPayload3", in("testPayload3"));
+        // node1 has not seen testPayload3 yet
+        node1.removePayload("testPayload1");
+
+        DigitalObject object = storage.getObject("testObject1");
+        Assert.assertEquals(
+                new HashSet<String>(Arrays.asList("testPayload2",
+                        "testPayload3")), object.getPayloadIdList());
+
+        storage.removeObject("testObject1");
+    }
+
+    /**
+     * Test that a manifest write overwritten by another node right after it
+     * landed is merged and written again.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void manifestOverwrittenAfterWrite() throws Exception {
+        System.out.println(
+                "\n==========\n TEST => manifestOverwrittenAfterWrite()\n");
+        storage.createObject("testObject1").createStoredPayload("testPayload1",
+                in("testPayload1.txt"));
+        final BlobStore original = BlobStoreClient.getClient();
+        final String container = BlobStoreClient.getContainerName();
+        final String key = "testObject1/"
+                + BlobStoreDigitalObject.MANIFEST_KEY;
+        // What a node that read the manifest before the write puts back
+        final byte[] stale = IOUtils.toByteArray(original
+                .getBlob(container, key).getPayload().openStream());
+        final AtomicBoolean overwritten = new AtomicBoolean();
+        BlobStore racing = (BlobStore) Proxy.newProxyInstance(
+                BlobStore.class.getClassLoader(),
+                new Class<?>[] { BlobStore.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        Object result;
+                        try {
+                            result = method.invoke(original, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                        if ("putBlob".equals(method.getName())
+                                && key.equals(((Blob) args[1]).getMetadata()
+                                        .getName())
+                                && overwritten.compareAndSet(false, true)) {
+                            original.putBlob(container, original
+                                    .blobBuilder(key).payload(stale).build());
+                        }
+                        return result;
+                    }
+                });
+        BlobStoreClient.setClient(racing);
+        try {
+            storage.getObject("testObject1").createStoredPayload(
+                    "testPayload2", in("testPayload2.xml"));
+        } finally {
+            BlobStoreClient.setClient(original);
+        }
+        Assert.assertTrue(overwritten.get());
+        Assert.assertEquals(
+                new HashSet<String>(Arrays.asList("testPayload1",
+                        "testPayload2")),
+                storage.getObject("testObject1").getPayloadIdList());
+
+        storage.removeObject("testObject1");
+    }
+
     /**
      * Modify the metadata on an object and ensure it persists.
      *
@@ -686,6 +2122,30 @@ public class BlobStoreStorageTest {
         return file.getAbsolutePath();
     }
 
+    /**
+     * Assert the number of BlobStore requests made by the last operation on
+     * this thread.
+     *
+     * @param operation The expected plugin operation
+     * @param calls The expected number of requests
+     */
+    private void assertCalls(String operation, int calls) {
+        CallAccounting last = CallAccounting.lastOperation();
+        Assert.assertEquals(operation, last.getOperation());
+        Assert.assertEquals(last.toString(), calls, last.getCalls());
+    }
+
+    /**
+     * Check for a blob directly in the BlobStore.
+     *
+     * @param key The full key of the blob
+     * @return boolean true if the blob exists
+     */
+    private boolean blobExists(String key) throws Exception {
+        return BlobStoreClient.getClient().blobExists(
+                BlobStoreClient.getContainerName(), key);
+    }
+
     /**
      * Confirm that the number of objects in Storage is as expected. This method
      * simply wraps up the storage request, JUnit assertion and common message
@@ -0,0 +1,152 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.io.File;
+import java.io.InputStream;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.jclouds.blobstore.BlobStore;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Flight Recorder events of the plugin. Kept apart from
+ * {@link BlobStoreStorageTest} since it needs jdk.jfr, and skipped on
+ * runtimes without it.
+ */
+public class FlightEventsTest {
+    private BlobStoreStorage storage;
+
+    @Before
+    public void init() throws Exception {
+        storage = new BlobStoreStorage();
+        storage.init(new File(
+                getClass().getResource("/blobstore-config.json").toURI()));
+        Assume.assumeTrue("Flight Recorder is not available",
+                FlightEvents.isEnabled());
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        if (storage != null) {
+            for (String oid : storage.getObjectIdList()) {
+                storage.removeObject(oid);
+            }
+            storage.shutdown();
+        }
+    }
+
+    /**
+     * Record BlobStore requests and manifest builds with Flight Recorder and
+     * make sure the events name the key and the plugin method behind them.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void flightEvents() throws Exception {
+        System.out.println("\n==========\n TEST => flightEvents()\n");
+        Assert.assertTrue(FlightEvents.isEnabled());
+        BlobStore original = BlobStoreClient.getClient();
+        File dump = File.createTempFile("blobstore", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(FlightEvents.RequestEvent.class);
+            recording.enable(FlightEvents.ManifestBuildEvent.class);
+            recording.start();
+            BlobStoreClient.setClient(FlightEvents.wrap(original));
+            storage.createObject("testObject1")
+                    .createStoredPayload("testPayload1", in("testPayload4.png"));
+            storage.getObject("testObject1").getPayloadIdList();
+            storage.removeObject("testObject1");
+            recording.stop();
+            recording.dump(dump.toPath());
+        } finally {
+            BlobStoreClient.setClient(original);
+        }
+
+        boolean payloadPut = false;
+        int manifestBuilds = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+            String type = event.getEventType().getName();
+            if (type.endsWith(".BlobStoreRequest")
+                    && "putBlob".equals(event.getString("operation"))
+                    && "testObject1/testPayload1".equals(event.getString("key"))) {
+                payloadPut = true;
+                Assert.assertEquals("createStoredPayload",
+                        event.getString("caller"));
+                Assert.assertEquals("ok", event.getString("outcome"));
+            } else if (type.endsWith(".ManifestBuild")) {
+                manifestBuilds++;
+                Assert.assertEquals("testObject1", event.getString("oid"));
+            }
+        }
+        dump.delete();
+        Assert.assertTrue(payloadPut);
+        // The payload list, new objects have nothing to read
+        Assert.assertTrue(manifestBuilds >= 1);
+    }
+
+    /**
+     * Operations are not tracked for Flight Recorder unless a recording
+     * enables the plugin's events.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void trackingFollowsRecordings() throws Exception {
+        System.out.println(
+                "\n==========\n TEST => trackingFollowsRecordings()\n");
+        // Other consumers, left on by earlier tests, would track regardless
+        PluginOperation.setTracking(false);
+        PluginOperation.setAccounting(false);
+        BlobStore original = BlobStoreClient.getClient();
+        BlobStoreClient.setClient(FlightEvents.wrap(original));
+        try {
+            Assert.assertEquals(PluginOperation.NONE_NAME, trackedName());
+            try (Recording recording = new Recording()) {
+                recording.enable(FlightEvents.RequestEvent.class);
+                recording.start();
+                Assert.assertEquals("createObject", trackedName());
+                recording.stop();
+            }
+            Assert.assertEquals(PluginOperation.NONE_NAME, trackedName());
+        } finally {
+            BlobStoreClient.setClient(original);
+        }
+    }
+
+    /**
+     * @return String the operation name seen while inside createObject
+     */
+    private String trackedName() {
+        try (PluginOperation operation = PluginOperation.enter("createObject")) {
+            return PluginOperation.current();
+        }
+    }
+
+    private InputStream in(String fileName) {
+        return getClass().getResourceAsStream("/" + fileName);
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * The Fascinator - JClouds BlobStore storage plugin
+ * Copyright (C) 2016 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.jclouds;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.internal.PageSetImpl;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * Makes a local BlobStore behave like a remote one, so tests and benchmarks
+ * show the cost of round trips without a network. Configured as an entry of
+ * 'decorators':
+ *
+ * <ul>
+ * <li>latencyMillis: added to every request (default 0)</li>
+ * <li>operationLatencyMillis: an object of BlobStore method names to the
+ * latency of that method, instead of latencyMillis</li>
+ * <li>bandwidthKilobytesPerSecond: time to transfer blob content in either
+ * direction (default 0, unlimited)</li>
+ * <li>errorRate: the fraction of requests failing with an I/O error before
+ * reaching the BlobStore (default 0)</li>
+ * <li>consistencyDelayMillis: how long a write takes to become visible
+ * (default 0). A new blob is missing from reads and listings until then, and
+ * an overwritten one reads as its previous content.</li>
+ * <li>seed: for the random errors (default random)</li>
+ * </ul>
+ */
+public class LatencyInjectingBlobStore extends ForwardingBlobStore
+        implements BlobStoreDecorator {
+
+    /** Reads of a single blob */
+    private static final List<String> READS = Arrays.asList("getBlob",
+            "blobExists", "blobMetadata");
+
+    private long latencyMillis;
+
+    private JsonObject operationLatencyMillis;
+
+    private long bytesPerSecond;
+
+    private double errorRate;
+
+    private long consistencyDelayMillis;
+
+    private Random random;
+
+    /** Recent writes not visible yet, by key */
+    private final Map<String, Delayed> delayed = new ConcurrentHashMap<String, Delayed>();
+
+    @Override
+    public BlobStore decorate(BlobStore blobStore, JsonSimple config)
+            throws StorageException {
+        latencyMillis = config.getInteger(0, "latencyMillis");
+        operationLatencyMillis = config.getObject("operationLatencyMillis");
+        bytesPerSecond = 1024L
+                * config.getInteger(0, "bandwidthKilobytesPerSecond");
+        consistencyDelayMillis = config.getInteger(0, "consistencyDelayMillis");
+        Integer seed = config.getInteger(null, "seed");
+        random = seed != null ? new Random(seed) : new Random();
+        try {
+            errorRate = Double.parseDouble(config.getString("0", "errorRate"));
+        } catch (NumberFormatException e) {
+            throw new StorageException("Invalid errorRate", e);
+        }
+        return proxy(blobStore);
+    }
+
+    @Override
+    protected Object dispatch(Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        pause(latency(name));
+        if (errorRate > 0 && nextDouble() < errorRate) {
+            throw new RuntimeException(new SocketException(
+                    "Injected failure of " + name));
+        }
+        if (READS.contains(name) && args.length > 1) {
+            Delayed write = delayed((String) args[1]);
+            if (write != null) {
+                return write.read(name);
+            }
+        }
+        Delayed write = null;
+        if ("putBlob".equals(name)) {
+            pause(transferMillis(args[1]));
+            if (consistencyDelayMillis > 0) {
+                write = before((String) args[0],
+                        ((Blob) args[1]).getMetadata().getName());
+            }
+        } else if ("removeBlob".equals(name)) {
+            delayed.remove(args[1]);
+        } else if ("removeBlobs".equals(name)) {
+            for (Object key : (Iterable<?>) args[1]) {
+                delayed.remove(key);
+            }
+        }
+        Object result = forward(method, args);
+        if ("getBlob".equals(name)) {
+            pause(transferMillis(result));
+        } else if (write != null) {
+            delayed.put(write.key, write);
+        } else if ("list".equals(name) && result instanceof PageSet) {
+            result = visible((PageSet<?>) result);
+        }
+        return result;
+    }
+
+    private long latency(String operation) {
+        if (operationLatencyMillis != null
+                && operationLatencyMillis.containsKey(operation)) {
+            return ((Number) operationLatencyMillis.get(operation)).longValue();
+        }
+        return latencyMillis;
+    }
+
+    private long transferMillis(Object blob) {
+        if (bytesPerSecond <= 0 || blob == null) {
+            return 0;
+        }
+        return BlobStoreMetrics.contentLength(blob) * 1000 / bytesPerSecond;
+    }
+
+    private synchronized double nextDouble() {
+        return random.nextDouble();
+    }
+
+    /**
+     * @return Delayed the write of a key that is not visible yet, or null
+     */
+    private Delayed delayed(String key) {
+        Delayed write = delayed.get(key);
+        if (write == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() < write.visibleAt) {
+            return write;
+        }
+        delayed.remove(key, write);
+        return null;
+    }
+
+    /**
+     * Record what readers keep seeing of a key while a write to it is not
+     * visible: the content visible now, or nothing for a new key.
+     */
+    private Delayed before(String container, String key) throws IOException {
+        Delayed write = new Delayed(key,
+                System.currentTimeMillis() + consistencyDelayMillis);
+        Delayed pending = delayed(key);
+        if (pending != null) {
+            // The earlier write is not visible yet either
+            write.previous = pending.previous;
+            write.content = pending.content;
+            return write;
+        }
+        Blob previous = getDelegate().getBlob(container, key);
+        if (previous != null) {
+            write.previous = previous.getMetadata();
+            try (InputStream in = previous.getPayload().openStream()) {
+                write.content = IOUtils.toByteArray(in);
+            }
+        }
+        return write;
+    }
+
+    private PageSet<StorageMetadata> visible(PageSet<?> page) {
+        List<StorageMetadata> entries = new ArrayList<StorageMetadata>();
+        for (Object entry : page) {
+            Delayed write = delayed(((StorageMetadata) entry).getName());
+            if (write == null || write.previous != null) {
+                entries.add((StorageMetadata) entry);
+            }
+        }
+        return new PageSetImpl<StorageMetadata>(entries, page.getNextMarker());
+    }
+
+    /**
+     * A write to a key that readers do not see yet, with what they see
+     * instead.
+     */
+    private final class Delayed {
+        private final String key;
+
+        private final long visibleAt;
+
+        /** The blob before the write, or null if the key is new */
+        private BlobMetadata previous;
+
+        private byte[] content;
+
+        Delayed(String key, long visibleAt) {
+            this.key = key;
+            this.visibleAt = visibleAt;
+        }
+
+        Object read(String operation) {
+            if ("blobExists".equals(operation)) {
+                return Boolean.valueOf(previous != null);
+            }
+            if (previous == null) {
+                return null;
+            }
+            if ("blobMetadata".equals(operation)) {
+                return previous;
+            }
+            Blob blob = getDelegate().blobBuilder(key)
+                    .userMetadata(previous.getUserMetadata()).payload(content)
+                    .contentLength(content.length)
+                    .contentType(previous.getContentMetadata().getContentType())
+                    .build();
+            blob.getMetadata().setETag(previous.getETag());
+            blob.getMetadata().setLastModified(previous.getLastModified());
+            return blob;
+        }
+    }
+
+    private static void pause(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}